@@ -3,9 +3,31 @@
 // license found at www.lloseng.com 
 
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import common.ChatIF;
+import ocsf.codec.BinaryCodec;
+import ocsf.codec.Codecs;
+import ocsf.codec.FileChunk;
+import ocsf.codec.ResetPolicy;
+import ocsf.history.HistoryLog;
+import ocsf.history.HistoryRecord;
+import ocsf.history.Mailboxes;
 import ocsf.server.*;
 
 /**
@@ -27,11 +49,77 @@ public class EchoServer extends AbstractServer
    */
   final public static int DEFAULT_PORT = 5555;
 
+  /**
+   * The room clients are in when they log on, and go back to when they
+   * leave a room.
+   */
+  final public static String LOBBY = "lobby";
+
+  /**
+   * The most messages a client can ask the history for at once.
+   */
+  final public static int MAX_HISTORY = 1000;
+
+  /**
+   * The most messages a search returns.
+   */
+  final public static int MAX_SEARCH_RESULTS = 20;
+
+  /**
+   * The largest mailbox of an offline user, in bytes.
+   */
+  final public static int MAX_MAILBOX_SIZE = 64 * 1024;
+
+  /**
+   * The most room messages kept for a user while they are offline.
+   */
+  final public static int MAX_BACKLOG = 500;
+
+  /**
+   * The number of waiting messages sent to a user at a time.
+   */
+  final public static int BACKLOG_PAGE_SIZE = 50;
+
   /**
    * The interface type variable.  It allows the implementation of 
    * the display method in the server.
    */
   private static ChatIF serverUI;
+
+  //Instance variables **********************************************
+
+  /**
+   * The number of private messages delivered.
+   */
+  private final LongAdder whispers = new LongAdder();
+
+  /**
+   * The number of private messages addressed to clients that were not
+   * logged in.
+   */
+  private final LongAdder undeliveredWhispers = new LongAdder();
+
+  /**
+   * The statistics last shown by #stats, whose rates cover the time since.
+   */
+  private ServerMetrics.Snapshot lastStats;
+
+  /**
+   * Numbers the files sent on to clients.
+   */
+  private final AtomicInteger transferCount = new AtomicInteger();
+
+  /**
+   * The log of the messages sent to the rooms, or null if it could not
+   * be opened.
+   */
+  private HistoryLog history;
+
+  /**
+   * The mailboxes of the offline users, or null if they could not be
+   * opened.
+   */
+  private Mailboxes mailboxes;
   
   //Constructors ****************************************************
   
@@ -43,8 +131,57 @@ public class EchoServer extends AbstractServer
    */
   public EchoServer(int port, ChatIF serverUI) 
   {
-    super(port);
+    this(port, serverUI, ServerEngine.THREAD_PER_CONNECTION);
+  }
+
+  /**
+   * Constructs an instance of the echo server running on the given engine.
+   *
+   * @param port The port number to connect on.
+   * @param serverUI The interface of the server.
+   * @param engine The engine servicing the client connections.
+   */
+  public EchoServer(int port, ChatIF serverUI, ServerEngine engine) 
+  {
+    this(port, serverUI, engine, null);
+  }
+
+  /**
+   * Constructs an instance of the echo server as a node of a cluster.
+   * Each node keeps its history and mailboxes in directories of its own.
+   *
+   * @param port The port number to connect on.
+   * @param serverUI The interface of the server.
+   * @param engine The engine servicing the client connections.
+   * @param nodeID The ID of the node in the cluster, or null if the
+   *          server runs alone.
+   */
+  public EchoServer(int port, ChatIF serverUI, ServerEngine engine, String nodeID) 
+  {
+    super(port, engine);
     this.serverUI = serverUI;
+
+    // Each client's messages only touch that client's connection and
+    // the broadcast, so clients need not wait for each other
+    setConcurrentDispatch(true);
+
+    try {
+      history = new HistoryLog(new File(nodeID == null ? "history" : "history-" + nodeID));
+    } catch (IOException e) {
+      serverUI.display("Error: Could not open the history log, "
+        + "messages will not be kept: " + e.getMessage());
+    }
+
+    try {
+      mailboxes = new Mailboxes(new File(nodeID == null ? "mailboxes" : "mailboxes-" + nodeID),
+        MAX_MAILBOX_SIZE);
+    } catch (IOException e) {
+      serverUI.display("Error: Could not open the mailboxes, "
+        + "offline users will miss messages: " + e.getMessage());
+    }
+
+    if (nodeID != null)
+      joinCluster(nodeID);
   }
   
   //Instance methods ************************************************
@@ -58,17 +195,38 @@ public class EchoServer extends AbstractServer
   public void handleMessageFromClient
     (Object msg, ConnectionToClient client)
   {
+    if (msg instanceof FileChunk) {
+      receiveChunk(client, (FileChunk) msg);
+      return;
+    }
+
     // Check for first message from client
     String[] splStrings = ((String) msg).split(" ");
 
     if (splStrings[0].equals("#login")){
       if (client.getInfo("loginID") == null){ // If client has not logged in yet
-        client.setInfo("loginID", splStrings[1]); // Set client's login ID
+        // Set client's login ID, unless another client already has it
+        if (!getConnectionRegistry().claimLoginID(client, splStrings[1])) {
+          try {
+            client.sendToClient("Login ID " + splStrings[1] + " is already in use.");
+            client.closeLater();
+          } catch (IOException e) {}
+          return;
+        }
 
         serverUI.display("A new client has connected to the server.");
         serverUI.display(splStrings[1] + " has logged on.");
 
-        this.sendToAllClients(splStrings[1] + " has logged on."); // Send message to all clients
+        // The token lets the client take up where it left off if its
+        // connection drops
+        try {
+          client.sendToClient("#session " + openSession(client).getToken());
+        } catch (IOException e) {}
+
+        getRooms().join(LOBBY, client);
+        client.setInfo("room", LOBBY);
+        this.sendToRoom(LOBBY, splStrings[1] + " has logged on."); // Send message to the lobby
+        deliverMailbox(client, splStrings[1]);
       } else { // If client has already logged in, disconnect them
         try {
           client.sendToClient("You are already logged in.");
@@ -78,9 +236,507 @@ public class EchoServer extends AbstractServer
         }
       }
     }
-    else { // If client has already logged in, echo message to all clients
+    else if (splStrings[0].equals("#resume") && splStrings.length > 3) { // Takes up a session where it was left
+      if (client.getInfo("loginID") == null) {
+        resume(client, splStrings[1], splStrings[2], splStrings[3]);
+      }
+    }
+    else if (splStrings[0].equals("#logoff")) { // The client leaves for good
+      closeSession(client);
+    }
+    else if (splStrings[0].equals("#join") && splStrings.length > 1) { // Moves the client to a room
+      if (!splStrings[1].equals(client.getInfo("room"))) {
+        leaveRoom(client);
+        enterRoom(client, splStrings[1]);
+      }
+    }
+    else if (splStrings[0].equals("#w") && splStrings.length > 2) { // Sends a private message
+      whisper(client, splStrings[1],
+        ((String) msg).substring(splStrings[0].length() + splStrings[1].length() + 2));
+    }
+    else if (splStrings[0].equals("#sendfile") && splStrings.length > 4) { // Starts sending a file
+      startUpload(client, splStrings[1], splStrings[2], splStrings[3],
+        ((String) msg).substring(splStrings[0].length() + splStrings[1].length()
+          + splStrings[2].length() + splStrings[3].length() + 4));
+    }
+    else if (splStrings[0].equals("#leave")) { // Moves the client back to the lobby
+      if (!LOBBY.equals(client.getInfo("room"))) {
+        leaveRoom(client);
+        enterRoom(client, LOBBY);
+      }
+    }
+    else if (splStrings[0].equals("#history")) { // Replays the last messages of the client's room
+      sendHistory(client, splStrings.length > 1 ? splStrings[1] : "20");
+    }
+    else if (splStrings[0].equals("#more")) { // Sends the next page of waiting messages
+      sendBacklogPage(client);
+    }
+    else if (splStrings[0].equals("#search")) { // Finds the latest messages holding some words
+      search(client, Arrays.copyOfRange(splStrings, 1, splStrings.length));
+    }
+    else { // If client has already logged in, echo message to the client's room
       System.out.println("Message received: \"" + msg + "\" from " + client.getInfo("loginID"));
-      this.sendToAllClients((String) client.getInfo("loginID") + "> " + msg);
+      String room = (String) client.getInfo("room");
+      record(room, (String) client.getInfo("loginID"), (String) msg);
+      this.sendToRoom(room, (String) client.getInfo("loginID") + "> " + msg);
+    }
+  }
+
+  /**
+   * Appends a message to the history log, if there is one. The append
+   * only copies the message into memory; it reaches the disk later.
+   *
+   * @param room The room the message is sent to.
+   * @param sender Who sent the message.
+   * @param text The message.
+   */
+  private void record(String room, String sender, String text)
+  {
+    if (history == null || room == null || sender == null)
+      return;
+
+    try {
+      history.append(room, sender, text);
+    } catch (IOException | IllegalArgumentException e) {
+      serverUI.display("Error: Could not record a message: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Sends a client the latest messages holding some words, from any room.
+   * A word written from:loginID only keeps the messages of that client.
+   *
+   * @param client The connection of the client.
+   * @param words The words, as sent by the client.
+   */
+  private void search(ConnectionToClient client, String[] words)
+  {
+    try {
+      String sender = null;
+      StringBuilder text = new StringBuilder();
+
+      for (String word : words) {
+        if (word.startsWith("from:") && word.length() > 5)
+          sender = word.substring(5);
+        else
+          text.append(word).append(' ');
+      }
+
+      if (text.length() == 0 && sender == null) {
+        client.sendToClient("Usage: #search [from:<loginID>] <words>");
+        return;
+      }
+
+      if (history == null) {
+        client.sendToClient("No history is kept.");
+        return;
+      }
+
+      List<HistoryRecord> records =
+        history.search(text.toString(), sender, MAX_SEARCH_RESULTS);
+      client.sendToClient(records.size() + " messages found:");
+      for (HistoryRecord record : records) {
+        client.sendToClient(record.getRoom() + " " + record);
+      }
+    } catch (IOException e) {}
+  }
+
+  /**
+   * Sends a client the last messages of its room.
+   *
+   * @param client The connection of the client.
+   * @param count How many messages, as sent by the client.
+   */
+  private void sendHistory(ConnectionToClient client, String count)
+  {
+    try {
+      String room = (String) client.getInfo("room");
+      int n;
+
+      try {
+        n = Math.min(Integer.parseInt(count), MAX_HISTORY);
+      } catch (NumberFormatException e) {
+        client.sendToClient("Usage: #history <number of messages>");
+        return;
+      }
+
+      if (history == null || room == null) {
+        client.sendToClient("No history is kept.");
+        return;
+      }
+
+      List<HistoryRecord> records = history.getLast(room, n);
+      client.sendToClient("Last " + records.size() + " messages in " + room + ":");
+      for (HistoryRecord record : records) {
+        client.sendToClient(record.toString());
+      }
+    } catch (IOException e) {}
+  }
+
+  /**
+   * Gives a client that lost its connection its session back, along with
+   * the messages it missed, as given by the number it received. Nobody is
+   * told it logged on, since for everyone else it never left. If the
+   * session is over or the client missed too much, it logs on afresh.
+   *
+   * @param client The new connection of the client.
+   * @param token The token of the session.
+   * @param received The number of messages the client received.
+   * @param loginID The login ID of the client.
+   */
+  private void resume(ConnectionToClient client, String token,
+    String received, String loginID)
+  {
+    try {
+      if (resumeSession(client, token, Long.parseLong(received),
+        "#resumed " + received) != null) {
+        client.setInfo("lostAt", null);
+        serverUI.display(client.getInfo("loginID") + " resumed their session.");
+        return;
+      }
+    } catch (IOException | NumberFormatException e) {}
+
+    handleMessageFromClient("#login " + loginID, client);
+  }
+
+  /**
+   * Sends a private message to one client only, found through the login
+   * index rather than by looking at every client. In a cluster, a
+   * recipient connected to another node is reached through the node
+   * owning its login ID.
+   *
+   * @param client The connection of the sender.
+   * @param target The login ID of the recipient.
+   * @param text The message.
+   */
+  private void whisper(ConnectionToClient client, String target, String text)
+  {
+    ConnectionToClient recipient = getClientConnection(target);
+
+    try {
+      if (recipient == null) {
+        if (getCluster() != null && sendToUser(target,
+          client.getInfo("loginID") + " whispers> " + text)) {
+          whispers.increment();
+          client.sendToClient("to " + target + "> " + text);
+        } else {
+          postToMailbox(client, target, text);
+        }
+        return;
+      }
+
+      recipient.sendToClient(client.getInfo("loginID") + " whispers> " + text);
+      whispers.increment();
+
+      if (recipient != client)
+        client.sendToClient("to " + target + "> " + text);
+    } catch (IOException e) {
+      undeliveredWhispers.increment();
+    }
+  }
+
+  /**
+   * Keeps a private message for a user who is offline.
+   *
+   * @param client The connection of the sender.
+   * @param target The login ID of the recipient.
+   * @param text The message.
+   */
+  private void postToMailbox(ConnectionToClient client, String target,
+    String text) throws IOException
+  {
+    try {
+      if (mailboxes != null && mailboxes.post(target,
+        (String) client.getInfo("loginID"), text)) {
+        whispers.increment();
+        client.sendToClient(target + " is offline and will get the message on logging on.");
+        return;
+      }
+    } catch (IOException e) {
+      undeliveredWhispers.increment();
+      client.sendToClient("The message could not be kept for " + target
+        + ": " + e.getMessage());
+      return;
+    }
+
+    undeliveredWhispers.increment();
+    client.sendToClient(target + " is not logged on.");
+  }
+
+  /**
+   * Records that a client left, so what is said meanwhile waits for them.
+   * Called once per client, however the connection ended.
+   *
+   * @param client The connection of the client.
+   */
+  private void depart(ConnectionToClient client)
+  {
+    String loginID = (String) client.getInfo("loginID");
+
+    if (mailboxes == null || loginID == null || client.getInfo("departed") != null)
+      return;
+
+    client.setInfo("departed", Boolean.TRUE);
+    Object lostAt = client.getInfo("lostAt");
+    try {
+      mailboxes.depart(loginID, (String) client.getInfo("room"),
+        history == null ? -1 : lostAt != null ? (Long) lostAt : history.getNextSequence());
+    } catch (IOException e) {
+      serverUI.display("Error: Could not open a mailbox for " + loginID
+        + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Gives a client that logs on what was said while it was away: the
+   * messages of the room it left, from the history log, and the private
+   * messages kept in its mailbox. They are sent a page at a time, the rest
+   * on #more.
+   *
+   * @param client The connection of the client.
+   * @param loginID The login ID of the client.
+   */
+  private void deliverMailbox(ConnectionToClient client, String loginID)
+  {
+    if (mailboxes == null)
+      return;
+
+    try {
+      Mailboxes.Contents contents = mailboxes.collect(loginID);
+      if (contents == null)
+        return;
+
+      List<HistoryRecord> missed = new ArrayList<HistoryRecord>();
+      int dropped = 0;
+
+      if (history != null && contents.getRoom() != null && contents.getSince() >= 0) {
+        missed.addAll(history.getSince(contents.getRoom(), contents.getSince(), MAX_BACKLOG));
+        dropped = history.countSince(contents.getRoom(), contents.getSince()) - missed.size();
+      }
+      missed.addAll(contents.getMessages());
+
+      if (missed.isEmpty())
+        return;
+
+      Collections.sort(missed, new Comparator<HistoryRecord>() {
+        public int compare(HistoryRecord a, HistoryRecord b) {
+          return Long.compare(a.getTime(), b.getTime());
+        }
+      });
+
+      LinkedList<String> backlog = new LinkedList<String>();
+      for (HistoryRecord record : missed) {
+        backlog.add(record.getRoom().isEmpty()
+          ? "[private] " + record.toString().replaceFirst("> ", " whispers> ")
+          : record.getRoom() + " " + record);
+      }
+
+      client.sendToClient("While you were away: " + contents.getMessages().size()
+        + " private messages, " + (missed.size() - contents.getMessages().size())
+        + " messages in " + contents.getRoom()
+        + (dropped > 0 ? " (" + dropped + " older ones dropped)" : "") + ".");
+      client.setInfo("backlog", backlog);
+      sendBacklogPage(client);
+    } catch (IOException e) {
+      serverUI.display("Error: Could not read the mailbox of " + loginID
+        + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Sends a client the next page of the messages that waited for it, as
+   * one message.
+   *
+   * @param client The connection of the client.
+   */
+  @SuppressWarnings("unchecked")
+  private void sendBacklogPage(ConnectionToClient client)
+  {
+    LinkedList<String> backlog = (LinkedList<String>) client.getInfo("backlog");
+
+    try {
+      if (backlog == null || backlog.isEmpty()) {
+        client.sendToClient("No more messages waiting.");
+        return;
+      }
+
+      StringBuilder page = new StringBuilder();
+      for (int i = 0; i < BACKLOG_PAGE_SIZE && !backlog.isEmpty(); i++) {
+        if (i > 0)
+          page.append('\n');
+        page.append(backlog.removeFirst());
+      }
+
+      if (!backlog.isEmpty())
+        page.append("\n").append(backlog.size()).append(" more waiting, #more to see them.");
+      else
+        client.setInfo("backlog", null);
+
+      client.sendToClient(page.toString());
+    } catch (IOException e) {}
+  }
+
+  /**
+   * Prepares to receive a file a client sends to another client. The file
+   * is spooled to disk as its chunks arrive, then streamed on to the
+   * recipient.
+   *
+   * @param client The connection of the sender.
+   * @param target The login ID of the recipient.
+   * @param id The sender's transfer ID.
+   * @param size The size of the file.
+   * @param name The name of the file.
+   */
+  private void startUpload(ConnectionToClient client, String target,
+    String id, String size, String name)
+  {
+    try {
+      ConnectionToClient recipient = getClientConnection(target);
+
+      if (recipient == null) {
+        client.sendToClient(target + " is not logged on.");
+        return;
+      }
+
+      if (!BinaryCodec.usesBinaryFrames(recipient.getCodec())) {
+        client.sendToClient(target + " cannot receive files.");
+        return;
+      }
+
+      Upload upload = new Upload(target, name, Long.parseLong(size));
+      getUploads(client).put(Integer.valueOf(id), upload);
+      client.sendToClient("Sending " + name + " to " + target + ".");
+
+      if (upload.size == 0)
+        finishUpload(client, Integer.valueOf(id), upload);
+    } catch (NumberFormatException e) {
+      // Not a file the client can send
+    } catch (IOException e) {
+      serverUI.display("Error: Could not receive file " + name + ".");
+    }
+  }
+
+  /**
+   * Spools a chunk of a file a client is sending.
+   *
+   * @param client The connection of the sender.
+   * @param chunk The chunk.
+   */
+  private void receiveChunk(ConnectionToClient client, FileChunk chunk)
+  {
+    Integer id = chunk.getTransferID();
+    Upload upload = getUploads(client).get(id);
+
+    if (upload == null)
+      return;
+
+    try {
+      upload.spool.write(ByteBuffer.wrap(chunk.getData()), chunk.getOffset());
+      upload.received += chunk.getData().length;
+
+      if (upload.received >= upload.size)
+        finishUpload(client, id, upload);
+    } catch (IOException e) {
+      getUploads(client).remove(id);
+      upload.discard();
+    }
+  }
+
+  /**
+   * Streams a file that has been spooled to its recipient, then deletes
+   * it.
+   *
+   * @param client The connection of the sender.
+   * @param id The sender's transfer ID.
+   * @param upload The spooled file.
+   */
+  private void finishUpload(final ConnectionToClient client, Integer id,
+    final Upload upload) throws IOException
+  {
+    getUploads(client).remove(id);
+    upload.spool.close();
+
+    ConnectionToClient recipient = getClientConnection(upload.target);
+    if (recipient == null) {
+      upload.discard();
+      client.sendToClient(upload.target + " is not logged on.");
+      return;
+    }
+
+    int transferID = transferCount.incrementAndGet();
+    recipient.sendToClient("#file " + transferID + " " + upload.size + " "
+      + client.getInfo("loginID") + " " + upload.name);
+
+    recipient.sendFile(transferID, upload.path).whenComplete((done, failure) -> {
+      upload.discard();
+      try {
+        client.sendToClient(upload.name + (failure == null
+          ? " delivered to " : " could not be delivered to ") + upload.target + ".");
+      } catch (IOException e) {}
+    });
+  }
+
+  /**
+   * Returns the files a client is sending, by transfer ID.
+   *
+   * @param client The connection of the sender.
+   * @return The uploads of the client.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<Integer, Upload> getUploads(ConnectionToClient client)
+  {
+    Map<Integer, Upload> uploads = (Map<Integer, Upload>) client.getInfo("uploads");
+
+    if (uploads == null) {
+      uploads = new ConcurrentHashMap<Integer, Upload>();
+      client.setInfo("uploads", uploads);
+    }
+    return uploads;
+  }
+
+  /**
+   * Deletes the files a client was sending when it went away.
+   *
+   * @param client The connection of the sender.
+   */
+  @SuppressWarnings("unchecked")
+  private void discardUploads(ConnectionToClient client)
+  {
+    Map<Integer, Upload> uploads = (Map<Integer, Upload>) client.getInfo("uploads");
+
+    if (uploads != null) {
+      for (Upload upload : uploads.values())
+        upload.discard();
+      uploads.clear();
+    }
+  }
+
+  /**
+   * Makes a client a member of a room and tells the room.
+   *
+   * @param client The connection of the client.
+   * @param room The name of the room.
+   */
+  private void enterRoom(ConnectionToClient client, String room)
+  {
+    if (getRooms().join(room, client)) {
+      client.setInfo("room", room);
+      this.sendToRoom(room, client.getInfo("loginID") + " has joined " + room + ".");
+    }
+  }
+
+  /**
+   * Removes a client from its room and tells the room.
+   *
+   * @param client The connection of the client.
+   */
+  private void leaveRoom(ConnectionToClient client)
+  {
+    String room = (String) client.getInfo("room");
+
+    if (room != null && getRooms().leave(room, client)) {
+      client.setInfo("room", null);
+      this.sendToRoom(room, client.getInfo("loginID") + " has left " + room + ".");
     }
   }
 
@@ -98,6 +754,7 @@ public class EchoServer extends AbstractServer
     { // If no command, send message to all clients and echo back
       // to the serverUI
       serverUI.display("SERVER MSG> " + message);
+      record(LOBBY, "SERVER MSG", message);
       this.sendToAllClients("SERVER MSG> " + message);
     }
   }
@@ -122,6 +779,9 @@ public class EchoServer extends AbstractServer
           close();
         } catch (IOException e1) { e1.printStackTrace(); }
 
+        if (history != null)
+          history.close();
+
         System.exit(0);
         break;
 
@@ -163,12 +823,210 @@ public class EchoServer extends AbstractServer
         serverUI.display("Port: " + getPort());
         break;
 
+      case "#clients": // Lists the logged in clients
+        StringBuilder logins = new StringBuilder();
+        for (ConnectionToClient client : getConnectionRegistry()) {
+          if (client.getInfo("loginID") != null)
+            logins.append(' ').append(client.getInfo("loginID"));
+        }
+        serverUI.display(getNumberOfClients() + " clients connected:" + logins);
+        break;
+
+      case "#whispers": // Shows how many private messages were sent
+        serverUI.display(whispers.sum() + " whispers delivered, "
+          + undeliveredWhispers.sum() + " undelivered");
+        break;
+
+      case "#stats": // Shows the statistics since the last #stats
+        ServerMetrics.Snapshot stats = getMetrics().snapshot();
+        for (String line : formatStatistics(stats, lastStats).split("\\R")) {
+          serverUI.display(line);
+        }
+        lastStats = stats;
+        break;
+
+      case "#statsfile": // Writes the statistics to a file every so often
+        if (commandArgs.length > 1 && commandArgs[1].equals("off")) {
+          stopStatisticsFile();
+          break;
+        }
+        try {
+          startStatisticsFile(new File(commandArgs[1]),
+            commandArgs.length > 2 ? Integer.parseInt(commandArgs[2]) : 10);
+        }
+        catch(IOException e) {
+          serverUI.display("Error: Could not write the statistics file: " + e.getMessage());
+        }
+        catch(RuntimeException e) {
+          serverUI.display("Error: Usage is #statsfile <file> [seconds] or #statsfile off.");
+        }
+        break;
+
+      case "#sessions": // Shows how many sessions are open and resumed
+        serverUI.display(getSessionCount() + " sessions open, "
+          + getResumedSessionCount() + " resumed");
+        break;
+
+      case "#rooms": // Lists the rooms and how many clients are in each
+        for (String room : getRooms().getRoomNames()) {
+          serverUI.display(room + ": " + getRooms().getMembers(room).size() + " members");
+        }
+        break;
+
+      case "#queues": // Shows how many messages wait for each client
+        for (ConnectionToClient client : getConnectionRegistry()) {
+          serverUI.display(client.getInfo("loginID") + ": "
+            + client.getOutboundQueueDepth() + " queued, "
+            + client.getSpilledMessageCount() + " spilled, "
+            + client.getDroppedMessageCount() + " dropped");
+        }
+        break;
+
+      case "#setpolicy": // Sets what happens when a client falls behind
+        try {
+          setSlowConsumerPolicy(
+            SlowConsumerPolicy.valueOf(commandArgs[1].toUpperCase()));
+        }
+        catch(RuntimeException e) {
+          serverUI.display("Error: Policy must be one of reject, "
+            + "drop_oldest, disconnect or spill_to_disk.");
+        }
+        break;
+
+      case "#getpolicy":
+        serverUI.display("Slow consumer policy: " + getSlowConsumerPolicy());
+        break;
+
+      case "#streams": // Shows how much each client's stream remembers
+        for (ConnectionToClient client : getConnectionRegistry()) {
+          serverUI.display(client.getInfo("loginID") + ": "
+            + client.getCodec() + ", "
+            + client.getHandleCount() + " objects held, "
+            + client.getResetCount() + " resets");
+        }
+        break;
+
+      case "#setreset": // Sets when the client streams are reset
+        try {
+          setResetPolicy(ResetPolicy.parse(
+            Arrays.copyOfRange(commandArgs, 1, commandArgs.length)));
+        }
+        catch(IllegalArgumentException e) {
+          serverUI.display("Error: Reset policy must be never, "
+            + "messages <n>, bytes <n> or adaptive <objects> <bytes>.");
+        }
+        break;
+
+      case "#getreset":
+        serverUI.display("Reset policy: " + getResetPolicy());
+        break;
+
+      case "#io": // Shows how well writes to the clients are coalesced
+        long writes = getWriteCount();
+        serverUI.display(writes + " writes, " + getBytesWritten() + " bytes, "
+          + (writes == 0 ? 0 : getBytesWritten() / writes) + " bytes per write");
+        serverUI.display("Compression: "
+          + Codecs.DEFLATE.getUncompressedBytes() + " bytes to "
+          + Codecs.DEFLATE.getCompressedBytes() + " bytes");
+        break;
+
+      case "#setdelay": // Sets how long output may wait to share a write
+        try {
+          setMaxWriteDelay(Long.parseLong(commandArgs[1]));
+        }
+        catch(RuntimeException e) {
+          serverUI.display("Error: Delay must be a number of microseconds.");
+        }
+        break;
+
+      case "#getdelay":
+        serverUI.display("Max write delay: " + getMaxWriteDelay() + " us");
+        break;
+
+      case "#log": // Shows what the history log holds
+        if (history == null) {
+          serverUI.display("No history log.");
+          break;
+        }
+        serverUI.display("History: messages " + history.getFirstSequence()
+          + " to " + (history.getNextSequence() - 1) + ", "
+          + history.getSegmentCount() + " segments, "
+          + history.getSize() + " bytes, "
+          + history.getWordCount() + " words indexed, "
+          + history.getCommitCount() + " commits");
+        break;
+
+      case "#peer": // Links this cluster node to another
+        if (getCluster() == null) {
+          serverUI.display("Error: The server is not a cluster node.");
+        } else if (commandArgs.length < 2 || !addPeer(commandArgs[1])) {
+          serverUI.display("Error: Peer must be given as host:port.");
+        }
+        break;
+
+      case "#cluster": // Shows the links to the other cluster nodes
+        ClusterNode node = getCluster();
+        if (node == null) {
+          serverUI.display("The server is not a cluster node.");
+          break;
+        }
+        serverUI.display("Node " + node.getNodeID() + ": "
+          + node.getPublishedCount() + " sent, "
+          + node.getDeliveredCount() + " received in "
+          + node.getBatchCount() + " batches sent, "
+          + node.getDuplicateCount() + " duplicates dropped, "
+          + node.getOverflowCount() + " overflowed, "
+          + node.getPeerConnectionCount() + " peers linked in");
+        serverUI.display("Ring " + node.getNodes() + ": "
+          + node.getOwnedRoomCount() + " rooms and "
+          + node.getOwnedUserCount() + " users owned, "
+          + node.getProxiedCount() + " messages proxied, "
+          + node.getUndeliverableCount() + " undeliverable");
+        for (String peer : node.getPeers()) {
+          serverUI.display("  " + peer);
+        }
+        break;
+
       default:
         serverUI.display("Error: Invalid command.");
         break;
     }
   }
-    
+
+  /**
+   * This method overrides the one in the superclass.  Adds the
+   * whispers, the history log, compression and the cluster to the
+   * statistics of the framework.
+   */
+  protected String formatStatistics(ServerMetrics.Snapshot now,
+    ServerMetrics.Snapshot previous)
+  {
+    StringBuilder text = new StringBuilder(super.formatStatistics(now, previous));
+    String newline = System.lineSeparator();
+
+    text.append("Whispers: ").append(whispers.sum()).append(" delivered, ")
+      .append(undeliveredWhispers.sum()).append(" undelivered").append(newline);
+    text.append("Compression: ").append(Codecs.DEFLATE.getUncompressedBytes())
+      .append(" bytes to ").append(Codecs.DEFLATE.getCompressedBytes())
+      .append(" bytes").append(newline);
+
+    if (history != null) {
+      text.append("History: ").append(history.getNextSequence()).append(" messages, ")
+        .append(history.getSegmentCount()).append(" segments, ")
+        .append(history.getSize()).append(" bytes").append(newline);
+    }
+
+    ClusterNode node = getCluster();
+    if (node != null) {
+      text.append("Cluster: ").append(node.getPublishedCount()).append(" sent, ")
+        .append(node.getDeliveredCount()).append(" received, ")
+        .append(node.getProxiedCount()).append(" proxied, ")
+        .append(node.getUndeliverableCount()).append(" undeliverable, ")
+        .append(node.getNodes().size()).append(" nodes").append(newline);
+    }
+    return text.toString();
+  }
+
   /**
    * This method overrides the one in the superclass.  Called
    * when the server starts listening for connections.
@@ -203,9 +1061,95 @@ public class EchoServer extends AbstractServer
    */
   synchronized protected void clientDisconnected(ConnectionToClient client) {
     System.out.println("Client disconnected: " + client.getInfo("loginID"));
+    discardUploads(client);
+    depart(client);
+  }
+
+  /**
+   * This method overrides the one in the superclass.  Called when a
+   * client with a session loses its connection. Where the history log
+   * was is noted, so that if the client does not come back in time, it
+   * is later sent what was said since then.
+   */
+  synchronized protected void clientWaiting(ConnectionToClient client) {
+    if (history != null)
+      client.setInfo("lostAt", history.getNextSequence());
+  }
+
+  /**
+   * This method overrides the one in the superclass.  Called
+   * when a client's connection fails.
+   */
+  synchronized protected void clientException(ConnectionToClient client,
+    Throwable exception) {
+    discardUploads(client);
+    depart(client);
   }
   
+  /**
+   * Links this cluster node to the peers named by the command line
+   * arguments after the third.
+   *
+   * @param args The command line arguments.
+   */
+  void addPeers(String[] args)
+  {
+    for (int i = 3; i < args.length; i++) {
+      if (!addPeer(args[i]))
+        serverUI.display("Error: Peer must be given as host:port, not " + args[i] + ".");
+    }
+  }
+
+  /**
+   * Links this cluster node to another.
+   *
+   * @param address The host and port of the other node, as host:port.
+   * @return false if the address is not valid.
+   */
+  private boolean addPeer(String address)
+  {
+    int colon = address.lastIndexOf(':');
+
+    try {
+      getCluster().addPeer(address.substring(0, colon),
+        Integer.parseInt(address.substring(colon + 1)));
+      return true;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
   //Class methods ***************************************************
+
+  /**
+   * Reads the ID of the cluster node from the third command line argument.
+   *
+   * @param args The command line arguments.
+   * @return The node ID, or null if the server runs alone.
+   */
+  static String parseNodeID(String[] args)
+  {
+    return args.length > 2 ? args[2] : null;
+  }
+
+  /**
+   * Reads the engine to run on from the second command line argument.
+   *
+   * @param args The command line arguments.
+   * @return The engine named, or the thread per connection engine if
+   *          none or an unknown one is named.
+   */
+  static ServerEngine parseEngine(String[] args)
+  {
+    try
+    {
+      return ServerEngine.valueOf(args[1].toUpperCase());
+    }
+    catch(Throwable t)
+    {
+      return ServerEngine.THREAD_PER_CONNECTION;
+    }
+  }
   
   /**
    * This method is responsible for the creation of 
@@ -213,6 +1157,9 @@ public class EchoServer extends AbstractServer
    *
    * @param args[0] The port number to listen on.  Defaults to 5555 
    *          if no argument is entered.
+   * @param args[1] The engine to run on (thread_per_connection,
+   *          virtual_thread or nio_selector).  Defaults to
+   *          thread_per_connection.
    */
   public static void main(String[] args) 
   {
@@ -226,9 +1173,11 @@ public class EchoServer extends AbstractServer
     {
       port = DEFAULT_PORT; //Set port to 5555
     }
+
+    ServerEngine engine = parseEngine(args);
 	
-    serverUI = new ServerConsole(port);
-    EchoServer sv = new EchoServer(port, serverUI);
+    serverUI = new ServerConsole(port, engine, args);
+    EchoServer sv = new EchoServer(port, serverUI, engine);
     
     try 
     {
@@ -239,5 +1188,41 @@ public class EchoServer extends AbstractServer
       System.out.println("ERROR - Could not listen for clients!");
     }
   }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A file a client is sending, spooled to disk until all of it has
+   * arrived.
+   */
+  private static class Upload
+  {
+    final String target;
+    final String name;
+    final long size;
+    final Path path;
+    final FileChannel spool;
+    long received;
+
+    Upload(String target, String name, long size) throws IOException
+    {
+      this.target = target;
+      this.name = name;
+      this.size = size;
+      this.path = Files.createTempFile("ocsf-upload-", ".bin");
+      this.spool = FileChannel.open(path, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Closes and deletes the spooled file.
+     */
+    void discard()
+    {
+      try {
+        spool.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {}
+    }
+  }
 }
 //End of EchoServer class
@@ -0,0 +1,735 @@
+// This file contains material supporting section 3.7 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import ocsf.client.AbstractClient;
+import ocsf.codec.Codec;
+import ocsf.codec.Codecs;
+import ocsf.common.LatencyHistogram;
+import ocsf.common.VirtualThreads;
+
+/**
+ * This class simulates many chat users against an echo server on the
+ * local host, from one JVM and without a console, to measure the
+ * throughput and latency the server delivers under load.<p>
+ *
+ * Each simulated user is a client of its own that logs in and joins a
+ * small room, so that every message fans out to the room and not to
+ * everyone. Messages are sent at a fixed total rate, whatever the server's
+ * replies, by users taken in turn, with sizes drawn from a weighted mix.
+ * Each message carries the time it was due to be sent; every member of the
+ * room that receives it, the sender included, records how long it took
+ * since then. A generator that falls behind thus counts its own delay
+ * against the server rather than hiding it.<p>
+ *
+ * Options are given as name=value:
+ * <ul>
+ * <li>port: the port of the server (5555)
+ * <li>users: the number of simulated users (100)
+ * <li>room: the number of users in a room (10)
+ * <li>rate: the messages sent per second, by all users together (1000)
+ * <li>duration: how long to measure, in seconds (30)
+ * <li>warmup: how long to send before measuring, in seconds (5)
+ * <li>sizes: the mix of message sizes in characters, as
+ *     size:weight,... (64:70,512:25,4096:5)
+ * <li>codec: the codec of the connections (binary)
+ * <li>virtual: true to give each user virtual threads, where the JDK
+ *     has them (false); a client's writer waits on a monitor, which
+ *     before JDK 24 ties up a carrier thread, so this stalls past a few
+ *     hundred users
+ * <li>report: a file to write the summary to, as well as the console
+ * </ul>
+ */
+public class LoadGenerator
+{
+  //Class variables *************************************************
+
+  /**
+   * The default port to connect on.
+   */
+  final public static int DEFAULT_PORT = 5555;
+
+  /**
+   * The default mix of message sizes.
+   */
+  final public static String DEFAULT_SIZES = "64:70,512:25,4096:5";
+
+  /**
+   * The character that starts the messages of the generator.
+   */
+  final public static char MARK = '@';
+
+  /**
+   * How often the progress is shown, in seconds.
+   */
+  final public static int PROGRESS_INTERVAL = 5;
+
+  /**
+   * How long the users still to join their rooms are waited for once
+   * none has joined, in milliseconds.
+   */
+  final public static long JOIN_TIMEOUT = 30000;
+
+  /**
+   * How long the messages still on their way are waited for once sending
+   * has stopped and none has arrived, in milliseconds.
+   */
+  final public static long DRAIN_TIME = 2000;
+
+  /**
+   * The number of users disconnected at once.
+   */
+  final public static int CLOSING_THREADS = 32;
+
+  /**
+   * How the generator is used.
+   */
+  final public static String USAGE = "Usage: java LoadGenerator [port=5555] "
+    + "[users=100] [room=10] [rate=1000] [duration=30] [warmup=5] "
+    + "[sizes=" + DEFAULT_SIZES + "] [codec=binary] [virtual=false] "
+    + "[report=<file>]";
+
+  //Instance variables **********************************************
+
+  /**
+   * The port of the server.
+   */
+  private final int port;
+
+  /**
+   * The number of simulated users.
+   */
+  private final int userCount;
+
+  /**
+   * The number of users in a room.
+   */
+  private final int roomSize;
+
+  /**
+   * The messages sent per second.
+   */
+  private final int rate;
+
+  /**
+   * How long to measure and to send beforehand, in seconds.
+   */
+  private final int duration, warmup;
+
+  /**
+   * The message sizes, and the sum of the weights up to each of them.
+   */
+  private final int[] sizes, weights;
+
+  /**
+   * The codec of the connections.
+   */
+  private final Codec codec;
+
+  /**
+   * Whether the users get virtual threads.
+   */
+  private final boolean virtual;
+
+  /**
+   * The file to write the summary to, or null.
+   */
+  private final String reportFile;
+
+  /**
+   * Makes the login IDs and rooms of this run its own.
+   */
+  private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+  /**
+   * The users connected.
+   */
+  private final List<SimulatedUser> users = new ArrayList<SimulatedUser>();
+
+  /**
+   * When the messages counted were due to be sent, in System.nanoTime
+   * terms: from measureStart included to measureEnd excluded.
+   */
+  private volatile long measureStart = Long.MAX_VALUE, measureEnd = Long.MAX_VALUE;
+
+  /**
+   * How long the messages counted took to reach each member of the room.
+   */
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * What was sent and delivered of the messages counted, and how many
+   * deliveries the rooms they were sent to should have made.
+   */
+  private final LongAdder sent = new LongAdder(), sentBytes = new LongAdder(),
+    delivered = new LongAdder(), deliveredBytes = new LongAdder(),
+    expected = new LongAdder();
+
+  /**
+   * How far behind its schedule the generator fell, in nanoseconds.
+   */
+  private final LongAccumulator maxLag = new LongAccumulator(Math::max, 0);
+
+  /**
+   * The users that could not connect, and those whose connection was
+   * lost before the end.
+   */
+  private final AtomicInteger failed = new AtomicInteger(), lost = new AtomicInteger();
+
+  /**
+   * The users that have joined their room.
+   */
+  private final AtomicInteger joined = new AtomicInteger();
+
+  /**
+   * Set once the users are being disconnected.
+   */
+  private volatile boolean stopping = false;
+
+  /**
+   * Spaces messages out to their size.
+   */
+  private final String padding;
+
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a load generator.
+   *
+   * @param options The options, by name.
+   * @exception IllegalArgumentException if an option is not valid.
+   */
+  public LoadGenerator(Map<String, String> options)
+  {
+    Map<String, String> remaining = new HashMap<String, String>(options);
+
+    port = intOption(remaining, "port", DEFAULT_PORT, 1);
+    userCount = intOption(remaining, "users", 100, 1);
+    roomSize = intOption(remaining, "room", 10, 1);
+    rate = intOption(remaining, "rate", 1000, 1);
+    duration = intOption(remaining, "duration", 30, 1);
+    warmup = intOption(remaining, "warmup", 5, 0);
+
+    String codecName = option(remaining, "codec", "binary");
+    codec = Codecs.forName(codecName);
+    if (codec == null)
+      throw new IllegalArgumentException("no codec is called " + codecName);
+
+    virtual = Boolean.parseBoolean(option(remaining, "virtual", "false"))
+      && VirtualThreads.isSupported();
+    reportFile = option(remaining, "report", null);
+
+    String[] mix = option(remaining, "sizes", DEFAULT_SIZES).split(",");
+    sizes = new int[mix.length];
+    weights = new int[mix.length];
+
+    int largest = 0;
+    for (int i = 0; i < mix.length; i++) {
+      String[] entry = mix[i].split(":");
+      try {
+        sizes[i] = Integer.parseInt(entry[0].trim());
+        weights[i] = (i == 0 ? 0 : weights[i - 1])
+          + (entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("sizes must be given as size:weight,...");
+      }
+      if (sizes[i] < 1 || weights[i] <= (i == 0 ? 0 : weights[i - 1]))
+        throw new IllegalArgumentException("sizes and weights must be positive");
+      largest = Math.max(largest, sizes[i]);
+    }
+
+    if (!remaining.isEmpty())
+      throw new IllegalArgumentException("unknown option " + remaining.keySet().iterator().next());
+
+    StringBuilder spaces = new StringBuilder(largest);
+    for (int i = 0; i < largest; i++)
+      spaces.append('x');
+    padding = spaces.toString();
+  }
+
+
+  //Instance methods ************************************************
+
+  /**
+   * Runs the load test: connects the users, sends for the warm-up and
+   * the duration of the test, waits for the last messages, disconnects
+   * the users and shows the summary.
+   *
+   * @exception IOException if the summary cannot be written to its file.
+   */
+  public void run() throws IOException
+  {
+    System.out.println("Connecting " + userCount + " users to localhost:" + port + "...");
+    connect();
+
+    if (users.isEmpty()) {
+      System.out.println("Error: No user could connect. Is the server running?");
+      return;
+    }
+    System.out.println(users.size() + " users connected, " + failed.get() + " failed, "
+      + joined.get() + " in their rooms.");
+
+    send();
+    drain();
+
+    String summary = summary();
+    disconnect();
+
+    System.out.println();
+    System.out.print(summary);
+    if (reportFile != null)
+      Files.write(Paths.get(reportFile), summary.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Connects, logs in and moves each user to its room, then waits until
+   * they are all there, or until the server has stopped moving them.
+   */
+  private void connect()
+  {
+    for (int i = 0; i < userCount; i++) {
+      SimulatedUser user = new SimulatedUser("load" + runId + "-" + i,
+        "load" + runId + "-" + (i / roomSize), roomSizeOf(i));
+      user.setCodecs(codec);
+      user.setUseVirtualThread(virtual);
+
+      try {
+        user.openConnection();
+
+        // Joining right after logging in keeps the lobby, which is told
+        // of every arrival, nearly empty
+        user.sendToServerAsync("#login " + user.loginID);
+        user.sendToServerAsync("#join " + user.room);
+        users.add(user);
+      } catch (IOException e) {
+        if (failed.incrementAndGet() == 1)
+          System.out.println("Error: Could not connect: " + e.getMessage());
+      }
+    }
+
+    // A busy server takes a while to log everyone on; only give up
+    // once it stops making progress
+    int count = joined.get();
+    long lastJoin = System.currentTimeMillis();
+
+    while (count < users.size() - lost.get()
+      && System.currentTimeMillis() - lastJoin < JOIN_TIMEOUT) {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      if (joined.get() > count) {
+        count = joined.get();
+        lastJoin = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Sends messages at the rate asked for, for the warm-up and the duration
+   * of the test, showing the progress of the measurement as it goes. A message due while the
+   * previous one is still being sent goes out as soon as it can, stamped
+   * with the time it was due.
+   */
+  private void send()
+  {
+    long interval = 1000000000L / rate;
+    long start = System.nanoTime();
+    long end = start + (warmup + duration) * 1000000000L;
+    measureStart = start + warmup * 1000000000L;
+    measureEnd = end;
+
+    long nextProgress = measureStart + PROGRESS_INTERVAL * 1000000000L;
+    long lastSent = 0, lastDelivered = 0;
+    LatencyHistogram lastLatencies = latencies.copy();
+
+    System.out.println("Sending " + rate + " messages per second for "
+      + (warmup + duration) + " s, of which " + warmup + " s of warm-up...");
+
+    int next = 0;
+    for (long due = start; due < end; due += interval) {
+      long now = System.nanoTime();
+      while (now < due) {
+        LockSupport.parkNanos(due - now);
+        now = System.nanoTime();
+      }
+      if (due >= measureStart)
+        maxLag.accumulate(now - due);
+
+      SimulatedUser user = users.get(next);
+      next = (next + 1) % users.size();
+      if (user.isConnected())
+        user.send(due, size());
+
+      if (now >= nextProgress) {
+        LatencyHistogram total = latencies.copy();
+        LatencyHistogram recent = total.since(lastLatencies);
+
+        System.out.println(String.format(Locale.ROOT, "%4d s: %s sent, %s delivered, p99 %s",
+          (now - measureStart) / 1000000000L,
+          perSecond(sent.sum() - lastSent, PROGRESS_INTERVAL),
+          perSecond(delivered.sum() - lastDelivered, PROGRESS_INTERVAL),
+          LatencyHistogram.format(recent.getPercentile(99))));
+
+        lastSent = sent.sum();
+        lastDelivered = delivered.sum();
+        lastLatencies = total;
+        nextProgress += PROGRESS_INTERVAL * 1000000000L;
+      }
+    }
+  }
+
+  /**
+   * Waits for the messages still on their way, until they have all
+   * arrived or none has for a while.
+   */
+  private void drain()
+  {
+    long count = delivered.sum();
+    long lastDelivery = System.currentTimeMillis();
+
+    while (count < expected.sum()
+      && System.currentTimeMillis() - lastDelivery < DRAIN_TIME) {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      if (delivered.sum() > count) {
+        count = delivered.sum();
+        lastDelivery = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Logs the users off and disconnects them. Closing a connection waits a
+   * few seconds at most for what was sent on it; the users are closed a
+   * batch at a time so that a server that stopped reading does not make
+   * them wait one after the other.
+   */
+  private void disconnect()
+  {
+    stopping = true;
+
+    for (SimulatedUser user : users) {
+      if (user.isConnected())
+        user.sendToServerAsync("#logoff");
+    }
+
+    ExecutorService closers = Executors.newFixedThreadPool(CLOSING_THREADS);
+    for (final SimulatedUser user : users) {
+      closers.execute(new Runnable() {
+        public void run() {
+          try {
+            user.closeConnection();
+          } catch (IOException e) {}
+        }
+      });
+    }
+
+    closers.shutdown();
+    try {
+      closers.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Records the delivery of a message of the generator, if it was due to
+   * be sent while measuring.
+   *
+   * @param text The message, as the server relayed it.
+   * @param from Where the time the message was due starts in it.
+   * @param receivedAt When it was received, in System.nanoTime terms.
+   */
+  private void delivered(String text, int from, long receivedAt)
+  {
+    long due = 0;
+    for (int i = from; i < text.length() && Character.isDigit(text.charAt(i)); i++)
+      due = due * 10 + (text.charAt(i) - '0');
+
+    if (due < measureStart || due >= measureEnd)
+      return;
+
+    latencies.record(receivedAt - due);
+    delivered.increment();
+    deliveredBytes.add(text.length());
+  }
+
+  /**
+   * Makes the summary of the test.
+   *
+   * @return the summary, one line after the other.
+   */
+  private String summary()
+  {
+    StringBuilder mix = new StringBuilder();
+    for (int i = 0; i < sizes.length; i++) {
+      int weight = weights[i] - (i == 0 ? 0 : weights[i - 1]);
+      mix.append(i == 0 ? "" : ", ").append(sizes[i])
+        .append(String.format(Locale.ROOT, " (%.0f%%)", 100.0 * weight / weights[weights.length - 1]));
+    }
+
+    long expectedCount = expected.sum();
+    StringBuilder summary = new StringBuilder();
+
+    summary.append(String.format(Locale.ROOT,
+      "Load test of localhost:%d, %s codec, %s threads%n", port, codec,
+      virtual ? "virtual" : "platform"));
+    summary.append(String.format(Locale.ROOT,
+      "Users: %d connected in rooms of %d, %d failed to connect, %d lost%n",
+      users.size(), roomSize, failed.get(), lost.get()));
+    summary.append(String.format(Locale.ROOT,
+      "Offered: %d messages/s for %d s after %d s of warm-up, sizes %s%n",
+      rate, duration, warmup, mix));
+    summary.append(String.format(Locale.ROOT,
+      "Sent: %d messages, %s, %s%n", sent.sum(),
+      perSecond(sent.sum(), duration), megabytes(sentBytes.sum())));
+    summary.append(String.format(Locale.ROOT,
+      "Delivered: %d messages, %s, %s, %.2f%% of those expected%n",
+      delivered.sum(), perSecond(delivered.sum(), duration),
+      megabytes(deliveredBytes.sum()),
+      expectedCount == 0 ? 0 : 100.0 * delivered.sum() / expectedCount));
+    summary.append(String.format(Locale.ROOT,
+      "Latency: %s%n", latencies));
+    summary.append(String.format(Locale.ROOT,
+      "         mean %s, p90 %s, p99.99 %s%n",
+      LatencyHistogram.format((long) latencies.getMean()),
+      LatencyHistogram.format(latencies.getPercentile(90)),
+      LatencyHistogram.format(latencies.getPercentile(99.99))));
+    summary.append(String.format(Locale.ROOT,
+      "Generator: fell behind its schedule by up to %s%n",
+      LatencyHistogram.format(maxLag.get())));
+
+    return summary.toString();
+  }
+
+  /**
+   * @return a message size drawn from the mix.
+   */
+  private int size()
+  {
+    int draw = ThreadLocalRandom.current().nextInt(weights[weights.length - 1]);
+
+    int i = 0;
+    while (draw >= weights[i])
+      i++;
+    return sizes[i];
+  }
+
+  /**
+   * @return the number of users in the room of a user.
+   */
+  private int roomSizeOf(int user)
+  {
+    int first = user / roomSize * roomSize;
+    return Math.min(roomSize, userCount - first);
+  }
+
+
+  //Class methods ***************************************************
+
+  /**
+   * Formats a number of messages as a rate.
+   */
+  private static String perSecond(long count, int seconds)
+  {
+    return String.format(Locale.ROOT, "%.1f/s", (double) count / seconds);
+  }
+
+  /**
+   * Formats a number of bytes in megabytes.
+   */
+  private static String megabytes(long bytes)
+  {
+    return String.format(Locale.ROOT, "%.1f MB", bytes / 1e6);
+  }
+
+  /**
+   * Takes an option out of those given.
+   *
+   * @return its value, or the default if it was not given.
+   */
+  private static String option(Map<String, String> options, String name, String value)
+  {
+    String given = options.remove(name);
+    return given == null ? value : given;
+  }
+
+  /**
+   * Takes a whole number option out of those given.
+   *
+   * @return its value, or the default if it was not given.
+   * @exception IllegalArgumentException if it is not a number, or is
+   *  below the minimum.
+   */
+  private static int intOption(Map<String, String> options, String name,
+    int value, int minimum)
+  {
+    String given = options.remove(name);
+    if (given == null)
+      return value;
+
+    try {
+      value = Integer.parseInt(given);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(name + " must be a number");
+    }
+    if (value < minimum)
+      throw new IllegalArgumentException(name + " must be at least " + minimum);
+    return value;
+  }
+
+  /**
+   * This method runs a load test against a server on the local host.
+   *
+   * @param args The options, as name=value.
+   */
+  public static void main(String[] args)
+  {
+    Map<String, String> options = new HashMap<String, String>();
+
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals <= 0) {
+        System.out.println(USAGE);
+        System.exit(1);
+      }
+      options.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+
+    try {
+      new LoadGenerator(options).run();
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.out.println(USAGE);
+      System.exit(1);
+    } catch (IOException e) {
+      System.out.println("Error: Could not write the report: " + e.getMessage());
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * One simulated user, quietly counting the messages of the generator it
+   * receives.
+   */
+  private class SimulatedUser extends AbstractClient
+  {
+    /**
+     * The login ID of the user.
+     */
+    final String loginID;
+
+    /**
+     * The room of the user, and the number of users in it.
+     */
+    final String room;
+    final int members;
+
+    /**
+     * Set once the user is in its room. Only used by the thread reading
+     * from the server.
+     */
+    boolean inRoom = false;
+
+    /**
+     * Constructs a user, not yet connected.
+     */
+    SimulatedUser(String loginID, String room, int members)
+    {
+      super("localhost", port);
+      this.loginID = loginID;
+      this.room = room;
+      this.members = members;
+    }
+
+    /**
+     * Sends a message of the generator without waiting for it to be
+     * written.
+     *
+     * @param due When the message was due to be sent.
+     * @param size The number of characters in the message.
+     */
+    void send(long due, int size)
+    {
+      String stamp = MARK + Long.toString(due) + " ";
+      String text = size > stamp.length()
+        ? stamp + padding.substring(0, size - stamp.length()) : stamp;
+
+      sendToServerAsync(text);
+
+      if (due >= measureStart && due < measureEnd) {
+        sent.increment();
+        sentBytes.add(text.length());
+        expected.add(members);
+      }
+    }
+
+    /**
+     * Counts the messages of the generator and notices when the user is
+     * in its room; anything else is ignored.
+     *
+     * @param msg The message from the server.
+     */
+    protected void handleMessageFromServer(Object msg)
+    {
+      long receivedAt = System.nanoTime();
+
+      if (!(msg instanceof String))
+        return;
+
+      String text = (String) msg;
+      int mark = text.indexOf("> " + MARK);
+
+      if (mark > 0) {
+        delivered(text, mark + 3, receivedAt);
+      }
+      else if (!inRoom && text.equals(loginID + " has joined " + room + ".")) {
+        inRoom = true;
+        joined.incrementAndGet();
+      }
+    }
+
+    /**
+     * Counts the user as lost when its connection fails during the test.
+     *
+     * @param exception The exception raised.
+     */
+    protected void connectionException(Exception exception)
+    {
+      if (!stopping)
+        lost.incrementAndGet();
+    }
+  }
+}
+//End of LoadGenerator class
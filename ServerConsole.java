@@ -2,6 +2,7 @@ import java.io.*;
 import java.util.Scanner;
 
 import common.*;
+import ocsf.server.ServerEngine;
 
 public class ServerConsole implements ChatIF{
 
@@ -24,8 +25,33 @@ public class ServerConsole implements ChatIF{
      * @param port
      */
     ServerConsole(int port){
+        this(port, ServerEngine.THREAD_PER_CONNECTION);
+    }
+
+    /**
+     * Constructs an instance of the ServerConsole UI whose server runs
+     * on the given engine.
+     * 
+     * @param port
+     * @param engine
+     */
+    ServerConsole(int port, ServerEngine engine){
+        this(port, engine, new String[0]);
+    }
+
+    /**
+     * Constructs an instance of the ServerConsole UI whose server runs
+     * on the given engine and, if the command line names one, as a node
+     * of a cluster linked to the peers named after it.
+     * 
+     * @param port
+     * @param engine
+     * @param args The command line arguments.
+     */
+    ServerConsole(int port, ServerEngine engine, String[] args){
 
-        server = new EchoServer(port, this);
+        server = new EchoServer(port, this, engine, EchoServer.parseNodeID(args));
+        server.addPeers(args);
 
         try {
             server.listen();
@@ -64,6 +90,9 @@ public class ServerConsole implements ChatIF{
      * This method is responsible for the creation of the Server UI.
      * 
      * @param args[0] The port number to listen on. Defaults to 5555 if no argument is entered.
+     * @param args[1] The engine to run on (thread_per_connection, virtual_thread or nio_selector).
+     * @param args[2] The ID of this node in a cluster, if it is one.
+     * @param args[3...] The other nodes of the cluster, as host:port.
      */
     public static void main(String[] args) {
         int port; //Port to listen on
@@ -77,7 +106,7 @@ public class ServerConsole implements ChatIF{
             port = 5555; //Set port to 5555
         }
 
-        ServerConsole chat = new ServerConsole(port);
+        ServerConsole chat = new ServerConsole(port, EchoServer.parseEngine(args), args);
         
         chat.waitForMessage();
     }
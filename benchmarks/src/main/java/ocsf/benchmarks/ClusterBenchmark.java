@@ -0,0 +1,156 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.codec.Codecs;
+import ocsf.server.AbstractServer;
+import ocsf.server.ClusterNode;
+import ocsf.server.ServerEngine;
+
+/**
+* Measures relaying room messages between the nodes of a cluster running
+* in one process: how long a batch of messages sent to a room on
+* <code>node0</code> takes to be delivered on <code>node1</code>, which
+* owns the room and has its only member. Each invocation sends the batch
+* and returns once all of it has been delivered.<p>
+*
+* With more than two nodes, the others have no member in the room and
+* must receive none of the messages; the benchmark fails if they do.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.ClusterNode
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ClusterBenchmark
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The number of messages sent in each invocation.
+   */
+  private static final int BATCH = 20000;
+
+  /**
+   * How long a batch has to be delivered, in milliseconds.
+   */
+  private static final long DELIVERY_TIMEOUT = 60000;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The number of nodes in the cluster, linked in a full mesh.
+   */
+  @Param({"2", "4"})
+  public int nodes;
+
+  /**
+   * The cluster.
+   */
+  private LocalCluster cluster;
+
+  /**
+   * The member of the room.
+   */
+  private RawClients member;
+
+  /**
+   * The room, owned by <code>node1</code>.
+   */
+  private String room;
+
+  /**
+   * The message sent to the room, a line of chat.
+   */
+  private final String message = "alice> has anyone seen the slides for today's lecture?";
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Starts the nodes, connects the member of the room to
+   * <code>node1</code>, and links the cluster.
+   */
+  @Setup(Level.Trial)
+  public void connect() throws IOException
+  {
+    cluster = new LocalCluster(nodes, ServerEngine.NIO_SELECTOR);
+    room = cluster.keyOwnedBy(1, "room");
+
+    AbstractServer receiver = cluster.getServer(1);
+    member = new RawClients(receiver, 1, Codecs.BINARY);
+    receiver.getRooms().join(room, receiver.getClientConnections()[0]);
+
+    cluster.link();
+  }
+
+  /**
+   * Checks that the nodes without members in the room received none of
+   * its messages, then disconnects the member and closes the cluster.
+   */
+  @TearDown(Level.Trial)
+  public void close() throws IOException
+  {
+    try
+    {
+      for (int i = 2; i < nodes; i++)
+      {
+        if (cluster.getNode(i).getDeliveredCount() > 0)
+          throw new IllegalStateException(LocalCluster.nodeID(i)
+            + " received messages for a room it has no members in");
+      }
+    }
+    finally
+    {
+      member.close();
+      cluster.close();
+    }
+  }
+
+  /**
+   * Sends a batch of messages to the room on <code>node0</code>, and waits
+   * until <code>node1</code> has delivered them all.
+   */
+  @Benchmark
+  public void sendToRoom() throws IOException
+  {
+    AbstractServer sender = cluster.getServer(0);
+    ClusterNode receiver = cluster.getNode(1);
+    long expected = receiver.getDeliveredCount() + BATCH;
+
+    for (int i = 0; i < BATCH; i++)
+      sender.sendToRoom(room, message);
+
+    long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT;
+
+    while (receiver.getDeliveredCount() < expected)
+    {
+      if (System.currentTimeMillis() > deadline)
+        throw new IOException("node1 delivered "
+          + (receiver.getDeliveredCount() - expected + BATCH) + " of "
+          + BATCH + " messages");
+
+      try
+      {
+        Thread.sleep(1);
+      }
+      catch (InterruptedException ex)
+      {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+}
+// End of ClusterBenchmark Class
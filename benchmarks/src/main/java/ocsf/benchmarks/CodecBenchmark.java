@@ -0,0 +1,182 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.codec.*;
+
+/**
+* Measures encoding and decoding chat messages with each codec. The
+* <code>java</code> codec is the <code>ObjectOutputStream</code> and
+* <code>ObjectInputStream</code> path every connection used before codecs
+* were negotiated; the others are there to compare it with.<p>
+*
+* The messages are all different, as a chat's are, so that Java
+* serialization cannot send back references to strings it has already
+* sent.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The number of different messages, a power of two.
+   */
+  private static final int MESSAGES = 1024;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The name of the codec.
+   */
+  @Param({"java", "binary", "deflate"})
+  public String codec;
+
+  /**
+   * The number of characters in a message.
+   */
+  @Param({"40", "1000"})
+  public int length;
+
+  /**
+   * The codec benchmarked.
+   */
+  private Codec chosen;
+
+  /**
+   * The messages, encoded in turn.
+   */
+  private String[] messages;
+
+  /**
+   * The next message to encode.
+   */
+  private int next;
+
+  /**
+   * The encoder of a connection.
+   */
+  private MessageEncoder encoder;
+
+  /**
+   * The decoder of a connection, reading <code>stream</code>.
+   */
+  private MessageDecoder decoder;
+
+  /**
+   * A stream of the messages as a connection receives them, starting
+   * with the encoder's header.
+   */
+  private ByteBuffer stream;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Creates the messages, the encoder, and the stream to decode.
+   */
+  @Setup(Level.Trial)
+  public void prepare() throws IOException
+  {
+    chosen = Codecs.forName(codec);
+    messages = new String[MESSAGES];
+
+    StringBuilder text = new StringBuilder("alice> ");
+    while (text.length() < length)
+      text.append("the quick brown fox jumps over the lazy dog ");
+    text.setLength(Math.max(0, length - 6));
+
+    for (int i = 0; i < MESSAGES; i++)
+      messages[i] = text + String.format(" %05d", i);
+
+    encoder = chosen.newEncoder();
+    encoder.header();
+
+    // The stream holds the messages as one connection would send them,
+    // back references and resets included
+    MessageEncoder sender = chosen.newEncoder();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    write(bytes, sender.header());
+
+    for (String message : messages)
+      write(bytes, sender.encode(message));
+
+    stream = ByteBuffer.wrap(bytes.toByteArray());
+    decoder = chosen.newDecoder();
+  }
+
+  /**
+   * Releases the decoder.
+   */
+  @TearDown(Level.Trial)
+  public void release()
+  {
+    decoder.close();
+  }
+
+  /**
+   * Encodes a message for one connection.
+   */
+  @Benchmark
+  public ByteBuffer encode() throws IOException
+  {
+    return encoder.encode(messages[next++ & (MESSAGES - 1)]);
+  }
+
+  /**
+   * Encodes a message once for any number of connections, as a
+   * broadcast is.
+   */
+  @Benchmark
+  public ByteBuffer encodeShared() throws IOException
+  {
+    return chosen.encodeShared(messages[next++ & (MESSAGES - 1)]);
+  }
+
+  /**
+   * Decodes the next message a connection received. Once the stream is
+   * read to its end, a new connection starts reading it again.
+   */
+  @Benchmark
+  public Object decode() throws IOException, ClassNotFoundException
+  {
+    Object message = decoder.decode(stream);
+
+    if (message == MessageDecoder.INCOMPLETE)
+    {
+      stream.rewind();
+      decoder.close();
+      decoder = chosen.newDecoder();
+      message = decoder.decode(stream);
+    }
+    return message;
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Appends the bytes of a frame to a stream.
+   */
+  private static void write(ByteArrayOutputStream bytes, ByteBuffer frame)
+  {
+    byte[] copy = new byte[frame.remaining()];
+    frame.duplicate().get(copy);
+    bytes.write(copy, 0, copy.length);
+  }
+}
+// End of CodecBenchmark Class
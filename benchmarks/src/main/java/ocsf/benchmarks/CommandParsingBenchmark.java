@@ -0,0 +1,147 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import common.ChatIF;
+import ocsf.codec.Codecs;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ServerEngine;
+
+/**
+* Measures <code>EchoServer.handleMessageFromClient</code> with the
+* commands of a logged-on client, from splitting the command to queueing
+* the replies. Plain chat lines are left out, because the server prints
+* each of them.<p>
+*
+* <code>EchoServer</code> is in the default package, which no named
+* package can import, so it is created and called reflectively. It keeps
+* its history and mailboxes in the working directory, where the benchmark
+* leaves <code>history</code> and <code>mailboxes</code> directories.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandParsingBenchmark
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The login ID of the client.
+   */
+  private static final String LOGIN_ID = "bench";
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The echo server.
+   */
+  private AbstractServer server;
+
+  /**
+   * Its <code>handleMessageFromClient</code> method.
+   */
+  private MethodHandle handler;
+
+  /**
+   * The client sending the commands.
+   */
+  private RawClients clients;
+
+  /**
+   * The server's connection to the client.
+   */
+  private ConnectionToClient client;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Starts an echo server, connects a client to it, and logs the client
+   * on.
+   */
+  @Setup(Level.Trial)
+  public void connect() throws Throwable
+  {
+    Class<?> echoServer = Class.forName("EchoServer");
+    ChatIF quiet = message -> {};
+
+    server = (AbstractServer)echoServer
+      .getConstructor(int.class, ChatIF.class, ServerEngine.class)
+      .newInstance(NullServer.freePort(), quiet, ServerEngine.NIO_SELECTOR);
+
+    handler = MethodHandles.publicLookup()
+      .findVirtual(echoServer, "handleMessageFromClient",
+        MethodType.methodType(void.class, Object.class, ConnectionToClient.class))
+      .asType(MethodType.methodType(void.class,
+        AbstractServer.class, Object.class, ConnectionToClient.class));
+
+    server.listen();
+    clients = new RawClients(server, 1, Codecs.BINARY);
+    client = server.getClientConnections()[0];
+
+    handle("#login " + LOGIN_ID);
+  }
+
+  /**
+   * Disconnects the client and closes the server.
+   */
+  @TearDown(Level.Trial)
+  public void close() throws IOException
+  {
+    clients.close();
+    server.close();
+  }
+
+  /**
+   * Moves the client to a room and back to the lobby.
+   */
+  @Benchmark
+  public void joinAndLeave() throws Throwable
+  {
+    handle("#join benchmarks");
+    handle("#leave");
+  }
+
+  /**
+   * Has the client whisper to itself.
+   */
+  @Benchmark
+  public void whisper() throws Throwable
+  {
+    handle("#w " + LOGIN_ID + " are you there?");
+  }
+
+  /**
+   * Has the client ask for the next page of messages waiting for it, of
+   * which there are none.
+   */
+  @Benchmark
+  public void more() throws Throwable
+  {
+    handle("#more");
+  }
+
+  /**
+   * Hands a message from the client to the server.
+   */
+  private void handle(Object msg) throws Throwable
+  {
+    handler.invokeExact(server, msg, client);
+  }
+}
+// End of CommandParsingBenchmark Class
@@ -0,0 +1,93 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ocsf.codec.Codecs;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ServerEngine;
+
+/**
+* Measures going through every client connection, with 10, 1000 and 10000
+* clients connected: through the array <code>getClientConnections</code>
+* copies, and through the connection registry, which is iterated without
+* copying.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionEnumerationBenchmark
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The number of clients connected.
+   */
+  @Param({"10", "1000", "10000"})
+  public int connections;
+
+  /**
+   * The server.
+   */
+  private NullServer server;
+
+  /**
+   * Its clients.
+   */
+  private RawClients clients;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Starts the server and connects the clients.
+   */
+  @Setup(Level.Trial)
+  public void connect() throws IOException
+  {
+    server = new NullServer(ServerEngine.NIO_SELECTOR);
+    clients = new RawClients(server, connections, Codecs.BINARY);
+  }
+
+  /**
+   * Disconnects the clients and closes the server.
+   */
+  @TearDown(Level.Trial)
+  public void close() throws IOException
+  {
+    clients.close();
+    server.close();
+  }
+
+  /**
+   * Goes through the array of client connections.
+   */
+  @Benchmark
+  public void getClientConnections(Blackhole hole)
+  {
+    for (ConnectionToClient client : server.getClientConnections())
+      hole.consume(client);
+  }
+
+  /**
+   * Goes through the connection registry.
+   */
+  @Benchmark
+  public void getConnectionRegistry(Blackhole hole)
+  {
+    for (ConnectionToClient client : server.getConnectionRegistry())
+      hole.consume(client);
+  }
+}
+// End of ConnectionEnumerationBenchmark Class
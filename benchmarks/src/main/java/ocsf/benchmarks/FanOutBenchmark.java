@@ -0,0 +1,96 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.codec.Codec;
+import ocsf.codec.Codecs;
+import ocsf.server.ServerEngine;
+
+/**
+* Measures <code>sendToAllClients</code>: how long a broadcast takes to be
+* encoded and queued for every client, with 10, 1000 and 10000 clients
+* connected. The clients read everything they are sent, but no faster than
+* a single thread can; what they cannot keep up with is dropped from their
+* queues, as a server with the <code>DROP_OLDEST</code> policy would.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The number of clients connected.
+   */
+  @Param({"10", "1000", "10000"})
+  public int connections;
+
+  /**
+   * The codec the clients use.
+   */
+  @Param({"java", "binary"})
+  public String codec;
+
+  /**
+   * The server broadcasting.
+   */
+  private NullServer server;
+
+  /**
+   * Its clients.
+   */
+  private RawClients clients;
+
+  /**
+   * The message broadcast, a line of chat.
+   */
+  private final String message = "alice> has anyone seen the slides for today's lecture?";
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Starts the server and connects the clients.
+   */
+  @Setup(Level.Trial)
+  public void connect() throws IOException
+  {
+    Codec chosen = Codecs.forName(codec);
+
+    server = new NullServer(ServerEngine.NIO_SELECTOR);
+    server.setCodecs(chosen);
+    clients = new RawClients(server, connections, chosen);
+  }
+
+  /**
+   * Disconnects the clients and closes the server.
+   */
+  @TearDown(Level.Trial)
+  public void close() throws IOException
+  {
+    clients.close();
+    server.close();
+  }
+
+  /**
+   * Broadcasts a message to every client.
+   */
+  @Benchmark
+  public void sendToAllClients()
+  {
+    server.sendToAllClients(message);
+  }
+}
+// End of FanOutBenchmark Class
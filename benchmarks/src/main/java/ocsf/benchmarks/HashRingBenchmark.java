@@ -0,0 +1,96 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ocsf.server.HashRing;
+
+/**
+* Measures the consistent-hash ring of a cluster: finding the owner of a
+* room or login ID, which every message for a room or user does, and
+* adding and removing a node, which rebuilds the ring.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.benchmarks.RingBalance
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashRingBenchmark
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The number of different keys, a power of two.
+   */
+  private static final int KEYS = 1024;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The number of nodes on the ring.
+   */
+  @Param({"4", "16", "64"})
+  public int nodes;
+
+  /**
+   * The ring.
+   */
+  private HashRing ring;
+
+  /**
+   * The keys, looked up in turn.
+   */
+  private String[] keys;
+
+  /**
+   * The next key to look up.
+   */
+  private int next;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Creates the ring and the keys.
+   */
+  @Setup(Level.Trial)
+  public void prepare()
+  {
+    ring = new HashRing();
+    for (int i = 0; i < nodes; i++)
+      ring.add(LocalCluster.nodeID(i));
+
+    keys = new String[KEYS];
+    for (int i = 0; i < KEYS; i++)
+      keys[i] = "room" + i;
+  }
+
+  /**
+   * Finds the owner of a key.
+   */
+  @Benchmark
+  public String getOwner()
+  {
+    return ring.getOwner(keys[next++ & (KEYS - 1)]);
+  }
+
+  /**
+   * Adds a node to the ring and removes it again.
+   */
+  @Benchmark
+  public boolean addAndRemove()
+  {
+    ring.add(LocalCluster.nodeID(nodes));
+    return ring.remove(LocalCluster.nodeID(nodes));
+  }
+}
+// End of HashRingBenchmark Class
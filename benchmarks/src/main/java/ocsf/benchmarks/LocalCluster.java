@@ -0,0 +1,199 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import ocsf.server.AbstractServer;
+import ocsf.server.ClusterNode;
+import ocsf.server.HashRing;
+import ocsf.server.ServerEngine;
+
+/**
+* A <code> LocalCluster </code> is a cluster of servers running in one
+* process, for benchmarks of what the cluster nodes do. Each server is a
+* <code>NullServer</code> listening on the local host, and, once linked,
+* the node <code>node0</code>, <code>node1</code> and so on, with a link
+* to every other node.<p>
+*
+* The servers are started unlinked, so that a benchmark can give them
+* clients and rooms first; those are announced to the other nodes when
+* the cluster is linked, as they would be when a server joins a running
+* cluster.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.ClusterNode
+*/
+final class LocalCluster implements Closeable
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * How long the nodes have to link up and agree on the ring, in
+   * milliseconds. Nodes learn of each other once a second.
+   */
+  private static final long LINK_TIMEOUT = 30000;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The servers, indexed as their node IDs are numbered.
+   */
+  private final NullServer[] servers;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Starts the servers of a cluster, not linked yet.
+   *
+   * @param count the number of nodes.
+   * @param engine the engine servicing the connections of each server.
+   * @exception IOException if a server cannot listen.
+   */
+  LocalCluster(int count, ServerEngine engine) throws IOException
+  {
+    servers = new NullServer[count];
+
+    try
+    {
+      for (int i = 0; i < count; i++)
+        servers[i] = new NullServer(engine);
+    }
+    catch (IOException ex)
+    {
+      close();
+      throw ex;
+    }
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @param index the number of a node.
+   * @return its server.
+   */
+  AbstractServer getServer(int index)
+  {
+    return servers[index];
+  }
+
+  /**
+   * @param index the number of a node.
+   * @return its cluster node, or null before the cluster is linked.
+   */
+  ClusterNode getNode(int index)
+  {
+    return servers[index].getCluster();
+  }
+
+  /**
+   * Returns a key, such as the name of a room or a login ID, that a
+   * given node owns once the cluster is linked.
+   *
+   * @param index the number of the node.
+   * @param prefix the start of the key.
+   * @return the prefix followed by the first number that makes a key the
+   *  node owns.
+   */
+  String keyOwnedBy(int index, String prefix)
+  {
+    HashRing ring = new HashRing();
+    for (int i = 0; i < servers.length; i++)
+      ring.add(nodeID(i));
+
+    for (int i = 0; ; i++)
+    {
+      String key = prefix + i;
+      if (ring.getOwner(key).equals(nodeID(index)))
+        return key;
+    }
+  }
+
+  /**
+   * Makes every server a node of the cluster, links each node to every
+   * other, and waits until all the links are up and every node has all
+   * the others on its ring.
+   *
+   * @exception IOException if the nodes do not link up in time.
+   */
+  void link() throws IOException
+  {
+    for (int i = 0; i < servers.length; i++)
+      servers[i].joinCluster(nodeID(i));
+
+    for (int i = 0; i < servers.length; i++)
+    {
+      for (int j = 0; j < servers.length; j++)
+      {
+        if (i != j)
+          getNode(i).addPeer("localhost", servers[j].getPort());
+      }
+    }
+
+    long deadline = System.currentTimeMillis() + LINK_TIMEOUT;
+
+    while (!isLinked())
+    {
+      if (System.currentTimeMillis() > deadline)
+        throw new IOException("the nodes did not link up in time");
+
+      try
+      {
+        Thread.sleep(10);
+      }
+      catch (InterruptedException ex)
+      {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * Leaves the cluster and closes the servers.
+   */
+  public void close() throws IOException
+  {
+    for (NullServer server : servers)
+    {
+      if (server != null)
+      {
+        server.leaveCluster();
+        server.close();
+      }
+    }
+  }
+
+  /**
+   * @return true if every node is linked to by all the others and has
+   *  them all on its ring.
+   */
+  private boolean isLinked()
+  {
+    for (int i = 0; i < servers.length; i++)
+    {
+      ClusterNode node = getNode(i);
+
+      if (node.getPeerConnectionCount() < servers.length - 1
+        || node.getNodes().size() < servers.length)
+        return false;
+    }
+    return true;
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * @param index the number of a node.
+   * @return its node ID.
+   */
+  static String nodeID(int index)
+  {
+    return "node" + index;
+  }
+}
+// End of LocalCluster Class
@@ -0,0 +1,64 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+import ocsf.server.ServerEngine;
+import ocsf.server.SlowConsumerPolicy;
+
+/**
+* A <code> NullServer </code> is a server that ignores what its clients
+* send, for benchmarks of what the framework does on its own. It listens
+* on a free port of the local host, and drops the oldest messages queued
+* for a client that falls behind rather than spilling them to disk, so
+* that a benchmark measures the queueing and not the disk.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+final class NullServer extends AbstractServer
+{
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a server on a free port and starts listening.
+   *
+   * @param engine the engine servicing the client connections.
+   * @exception IOException if the server cannot listen.
+   */
+  NullServer(ServerEngine engine) throws IOException
+  {
+    super(freePort(), engine);
+    setSlowConsumerPolicy(SlowConsumerPolicy.DROP_OLDEST);
+    listen();
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Ignores a message.
+   */
+  protected void handleMessageFromClient(Object msg, ConnectionToClient client)
+  {
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * @return a port of the local host that no one listens on.
+   * @exception IOException if no port can be found.
+   */
+  static int freePort() throws IOException
+  {
+    try (ServerSocket socket = new ServerSocket(0))
+    {
+      return socket.getLocalPort();
+    }
+  }
+}
+// End of NullServer Class
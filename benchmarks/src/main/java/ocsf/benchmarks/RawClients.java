@@ -0,0 +1,218 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import ocsf.codec.Codec;
+import ocsf.codec.CodecHandshake;
+import ocsf.server.AbstractServer;
+import ocsf.server.ConnectionToClient;
+
+/**
+* <code> RawClients </code> are the clients a benchmark connects to a server
+* to give it connections to work with. Each one negotiates a codec and then
+* only reads, discarding whatever it is sent; a single thread reads for all
+* of them, so that thousands of clients cost thousands of sockets and not
+* thousands of threads.<p>
+*
+* Each client takes a file descriptor on both ends of its connection, so
+* the limit of open files must be about twice the number of clients plus
+* some spare.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+final class RawClients implements Closeable
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * How long the server has to register the clients, in milliseconds.
+   */
+  private static final long CONNECT_TIMEOUT = 60000;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The channels of the clients.
+   */
+  private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+  /**
+   * The selector the clients are read through.
+   */
+  private final Selector selector;
+
+  /**
+   * The thread reading for all the clients.
+   */
+  private final Thread drainer;
+
+  /**
+   * Set when the clients are closed.
+   */
+  private volatile boolean closed;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Connects clients to a server listening on the local host, and waits
+   * until the server has registered them all with their codec.
+   *
+   * @param server the server, already listening.
+   * @param count the number of clients.
+   * @param codec the codec the clients offer.
+   * @exception IOException if a client cannot connect, or the server does
+   *  not register them in time.
+   */
+  RawClients(AbstractServer server, int count, Codec codec)
+    throws IOException
+  {
+    selector = Selector.open();
+    Codec[] offer = {codec};
+
+    try
+    {
+      for (int i = 0; i < count; i++)
+      {
+        SocketChannel channel = SocketChannel.open(
+          new InetSocketAddress("localhost", server.getPort()));
+        channels.add(channel);
+
+        // The handshake is done blocking, before the channel joins the
+        // others in the selector
+        CodecHandshake.writeOffer(Channels.newOutputStream(channel), offer);
+        CodecHandshake.readAnswer(Channels.newInputStream(channel), offer);
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+      }
+
+      awaitRegistration(server, count);
+    }
+    catch (IOException ex)
+    {
+      close();
+      throw ex;
+    }
+
+    drainer = new Thread(this::drain, "RawClients");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Disconnects the clients.
+   */
+  public void close() throws IOException
+  {
+    closed = true;
+    selector.wakeup();
+
+    for (SocketChannel channel : channels)
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException ex) {}
+    }
+
+    selector.close();
+  }
+
+  /**
+   * Waits until the server has every client connected, each with its
+   * codec, so that a broadcast reaches all of them.
+   */
+  private void awaitRegistration(AbstractServer server, int count)
+    throws IOException
+  {
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+
+    while (!isRegistered(server, count))
+    {
+      if (System.currentTimeMillis() > deadline)
+        throw new IOException("the server has "
+          + server.getNumberOfClients() + " of " + count + " clients");
+
+      try
+      {
+        Thread.sleep(10);
+      }
+      catch (InterruptedException ex)
+      {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * @return true if the server has at least a number of clients, all of
+   *  them with a codec.
+   */
+  private static boolean isRegistered(AbstractServer server, int count)
+  {
+    if (server.getNumberOfClients() < count)
+      return false;
+
+    for (ConnectionToClient client : server.getConnectionRegistry())
+    {
+      if (client.getCodec() == null)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads and discards everything the clients are sent, until they are
+   * closed.
+   */
+  private void drain()
+  {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    try
+    {
+      while (!closed)
+      {
+        selector.select();
+
+        for (SelectionKey key : selector.selectedKeys())
+        {
+          SocketChannel channel = (SocketChannel)key.channel();
+
+          try
+          {
+            int read;
+            do
+            {
+              buffer.clear();
+              read = channel.read(buffer);
+            }
+            while (read > 0);
+
+            if (read < 0)
+              key.cancel();
+          }
+          catch (IOException ex)
+          {
+            key.cancel();
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    }
+    catch (IOException | ClosedSelectorException ex) {}
+  }
+}
+// End of RawClients Class
@@ -0,0 +1,93 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.benchmarks;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ocsf.server.HashRing;
+
+/**
+* Prints how evenly a consistent-hash ring spreads keys over its nodes, and
+* how many keys change owner when one more node is added: ideally one in
+* N + 1 of them, all to the new node. These are counts, not times, so this
+* is a program rather than a JMH benchmark:<p>
+*
+* <code>java -cp benchmarks/target/benchmarks.jar ocsf.benchmarks.RingBalance [nodes [keys]]</code><p>
+*
+* There are 4 nodes and 100000 keys unless told otherwise.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.HashRing
+*/
+public class RingBalance
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The number of nodes unless told otherwise.
+   */
+  private static final int DEFAULT_NODES = 4;
+
+  /**
+   * The number of keys unless told otherwise.
+   */
+  private static final int DEFAULT_KEYS = 100000;
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Spreads the keys over the nodes, adds a node, and prints the share of
+   * each node and the keys that moved.
+   *
+   * @param args the number of nodes and the number of keys, both
+   *  optional.
+   */
+  public static void main(String[] args)
+  {
+    int nodes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NODES;
+    int keys = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_KEYS;
+
+    HashRing ring = new HashRing();
+    for (int i = 0; i < nodes; i++)
+      ring.add(LocalCluster.nodeID(i));
+
+    String[] owners = new String[keys];
+    Map<String, Integer> shares = new TreeMap<String, Integer>();
+
+    for (int k = 0; k < keys; k++)
+    {
+      owners[k] = ring.getOwner("room" + k);
+      Integer share = shares.get(owners[k]);
+      shares.put(owners[k], share == null ? 1 : share + 1);
+    }
+
+    String added = LocalCluster.nodeID(nodes);
+    ring.add(added);
+
+    int moved = 0;
+    int elsewhere = 0;
+
+    for (int k = 0; k < keys; k++)
+    {
+      String owner = ring.getOwner("room" + k);
+
+      if (!owner.equals(owners[k]))
+      {
+        moved++;
+        if (!owner.equals(added))
+          elsewhere++;
+      }
+    }
+
+    System.out.println("Keys per node: " + shares);
+    System.out.println(String.format(Locale.ROOT,
+      "Adding %s moved %.1f%% of %d keys (ideally %.1f%%), %d of them to other nodes",
+      added, 100.0 * moved / keys, keys, 100.0 / (nodes + 1), elsewhere));
+  }
+}
+// End of RingBalance Class
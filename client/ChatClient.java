@@ -5,8 +5,15 @@
 package client;
 
 import ocsf.client.*;
+import ocsf.codec.Codecs;
+import ocsf.codec.FileChunk;
+import ocsf.common.LatencyHistogram;
 import common.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
 
 /**
  * This class overrides some of the methods defined in the abstract
@@ -19,6 +26,19 @@ import java.io.*;
  */
 public class ChatClient extends AbstractClient
 {
+  //Class variables *************************************************
+
+  /**
+   * The most chat messages whose echo is waited for; any sent beyond
+   * that are not timed.
+   */
+  final public static int MAX_UNECHOED = 1000;
+
+  /**
+   * The number of pings #ping sends by default.
+   */
+  final public static int DEFAULT_PINGS = 10;
+
   //Instance variables **********************************************
   
   /**
@@ -32,6 +52,39 @@ public class ChatClient extends AbstractClient
    */
   String userId;
 
+  /**
+   * Numbers the files this client sends.
+   */
+  private int uploadCount = 0;
+
+  /**
+   * The files being received, by transfer ID.
+   */
+  private final Map<Integer, Download> downloads = new HashMap<Integer, Download>();
+
+  /**
+   * The token of the session the server opened at login, or null.
+   */
+  private volatile String sessionToken;
+
+  /**
+   * The number of messages received in the session, counted as the server
+   * counts them: file chunks and the acknowledgement of a resume aside.
+   */
+  private volatile long received = 0;
+
+  /**
+   * When the chat messages sent and not yet echoed back by the server
+   * were sent, oldest first, in System.nanoTime terms.
+   */
+  private final ArrayDeque<Long> unechoed = new ArrayDeque<Long>();
+
+  /**
+   * How long chat messages take to come back from the server, on the
+   * current connection.
+   */
+  private final LatencyHistogram echoes = new LatencyHistogram();
+
   
   //Constructors ****************************************************
   
@@ -52,7 +105,7 @@ public class ChatClient extends AbstractClient
 
     //Opens connection and logs in client
     openConnection();
-    sendToServer("#login " + userId);
+    logOn();
   }
 
   
@@ -65,7 +118,221 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
-    clientUI.display(msg.toString());
+    if (msg instanceof FileChunk) {
+      receiveChunk((FileChunk) msg);
+      return;
+    }
+
+    if (msg instanceof String && ((String) msg).startsWith("#resumed ")) {
+      // The server sends what was missed after this, counting from where
+      // the client said it was
+      received = Long.parseLong(((String) msg).substring(9));
+      clientUI.display("Reconnected to the session.");
+      return;
+    }
+
+    received++;
+
+    if (msg instanceof String && ((String) msg).startsWith(userId + "> ")) {
+      echoed();
+    }
+
+    if (msg instanceof String && ((String) msg).startsWith("#session ")) {
+      // A new session, even one given after a failed #resume, starts with
+      // this message, the first the server sent on the connection
+      sessionToken = ((String) msg).substring(9);
+      received = 1;
+    }
+    else if (msg instanceof String && ((String) msg).startsWith("#file ")) {
+      startDownload((String) msg);
+    }
+    else {
+      clientUI.display(String.valueOf(msg));
+    }
+  }
+
+  /**
+   * Logs on once connected: resumes the session of the previous
+   * connection if there is one, so that only the messages missed are
+   * sent, or else logs in afresh.
+   */
+  private void logOn() throws IOException
+  {
+    String token = sessionToken;
+
+    // Round trips are timed afresh on each connection
+    synchronized (unechoed) {
+      unechoed.clear();
+    }
+    echoes.reset();
+
+    if (token != null) {
+      sendToServer("#resume " + token + " " + received + " " + userId);
+    }
+    else {
+      received = 0;
+      sendToServer("#login " + userId);
+    }
+  }
+
+  /**
+   * Times the echo of the oldest chat message sent, which the server
+   * sends back to the whole room, sender included, in order.
+   */
+  private void echoed()
+  {
+    Long sentAt;
+    synchronized (unechoed) {
+      sentAt = unechoed.poll();
+    }
+
+    if (sentAt != null)
+      echoes.record(System.nanoTime() - sentAt);
+  }
+
+  /**
+   * Sends pings to the server, one at a time so that they do not queue
+   * behind each other, then shows the round trips of the pings and of the
+   * chat messages on the current connection.
+   *
+   * @param count The number of pings.
+   */
+  private void ping(int count)
+  {
+    LatencyHistogram pings = getRoundTrips();
+    long expected = pings.getCount() + count;
+
+    try {
+      for (int i = 0; i < count; i++) {
+        ping().get();
+        Thread.sleep(20);
+      }
+
+      // Leave the last ones some time to come back
+      long deadline = System.currentTimeMillis() + 2000;
+      while (pings.getCount() < expected && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+    }
+    catch (Exception e) {
+      clientUI.display("Could not ping the server.");
+      return;
+    }
+
+    clientUI.display("Ping: " + pings);
+    clientUI.display("Echo: " + echoes);
+  }
+
+  /**
+   * Starts receiving a file announced by the server as
+   * "#file id size sender name". Files are saved in the downloads
+   * directory.
+   *
+   * @param announcement The announcement.
+   */
+  private void startDownload(String announcement)
+  {
+    String[] parts = announcement.split(" ", 5);
+
+    try {
+      // Only the file name is kept, so a file cannot land elsewhere
+      String name = Paths.get(parts[4]).getFileName().toString();
+      Path path = Paths.get("downloads").resolve(name);
+      Files.createDirectories(path.getParent());
+
+      Download download = new Download(path, Long.parseLong(parts[2]));
+      clientUI.display("Receiving " + name + " (" + download.size
+        + " bytes) from " + parts[3] + ".");
+
+      if (download.size == 0)
+        finishDownload(download);
+      else
+        downloads.put(Integer.valueOf(parts[1]), download);
+    }
+    catch (IOException | RuntimeException e) {
+      clientUI.display("Could not receive file: " + announcement);
+    }
+  }
+
+  /**
+   * Writes a chunk of a file being received.
+   *
+   * @param chunk The chunk.
+   */
+  private void receiveChunk(FileChunk chunk)
+  {
+    Download download = downloads.get(chunk.getTransferID());
+
+    if (download == null)
+      return;
+
+    try {
+      download.file.write(ByteBuffer.wrap(chunk.getData()), chunk.getOffset());
+      download.received += chunk.getData().length;
+
+      if (download.received >= download.size) {
+        downloads.remove(chunk.getTransferID());
+        finishDownload(download);
+      }
+    }
+    catch (IOException e) {
+      downloads.remove(chunk.getTransferID());
+      clientUI.display("Could not save " + download.path + ".");
+      try { download.file.close(); } catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Closes a file that has been received.
+   *
+   * @param download The file.
+   */
+  private void finishDownload(Download download) throws IOException
+  {
+    download.file.close();
+    clientUI.display("Saved " + download.path + ".");
+  }
+
+  /**
+   * Sends a file to another client, one chunk at a time on its own
+   * thread, so that chat messages go out between the chunks.
+   *
+   * @param target The login ID of the recipient.
+   * @param name The path of the file.
+   */
+  private void sendFile(String target, String name)
+  {
+    final Path path = Paths.get(name);
+    final int id = ++uploadCount;
+
+    try {
+      long size = Files.size(path);
+      sendToServer("#sendfile " + target + " " + id + " " + size + " "
+        + path.getFileName());
+    }
+    catch (IOException e) {
+      clientUI.display("Could not send " + name + ".");
+      return;
+    }
+
+    Thread uploader = new Thread(() -> {
+      try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+        long offset = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(FileChunk.SIZE);
+
+        while (file.read(buffer) > 0) {
+          byte[] data = Arrays.copyOf(buffer.array(), buffer.position());
+          sendToServerAsync(new FileChunk(id, offset, data)).get();
+          offset += data.length;
+          buffer.clear();
+        }
+      }
+      catch (Exception e) {
+        clientUI.display("Could not send " + name + ".");
+      }
+    }, "ChatClient-upload-" + id);
+
+    uploader.setDaemon(true);
+    uploader.start();
   }
 
   /**
@@ -85,7 +352,7 @@ public class ChatClient extends AbstractClient
         break;
 
       case "#logoff": // Disconnects from server
-        try { closeConnection();} 
+        try { leave(); closeConnection();} 
         catch (IOException e) {e.printStackTrace();}
         break;
 
@@ -110,7 +377,7 @@ public class ChatClient extends AbstractClient
       case "#login": // Connects to server with a specified user id
         if (isConnected() == false){
           try { openConnection();
-            sendToServer("#login " + userId);} 
+            logOn();} 
           catch (IOException e) {e.printStackTrace();}
         }
         else{
@@ -118,6 +385,51 @@ public class ChatClient extends AbstractClient
         }
         break;
 
+      case "#compress": // Asks for compression from the next login on
+        if (commandArgs.length > 1 && commandArgs[1].equals("on")) {
+          setCodecs(Codecs.compressed());
+        }
+        else if (commandArgs.length > 1 && commandArgs[1].equals("off")) {
+          setCodecs(Codecs.defaults());
+        }
+        else {
+          clientUI.display("Current codec: " + getCodec());
+        }
+        break;
+
+      case "#sendfile": // Sends a file to one user
+        if (commandArgs.length > 2) {
+          sendFile(commandArgs[1],
+            command.substring(commandArgs[0].length() + commandArgs[1].length() + 2));
+        }
+        else {
+          clientUI.display("Usage: #sendfile <user> <file>");
+        }
+        break;
+
+      case "#w": // Sends a private message to one user
+      case "#join": // Moves to a room on the server
+      case "#leave": // Moves back to the lobby
+      case "#history": // Shows the last messages of the room
+      case "#search": // Finds the latest messages holding some words
+      case "#more": // Shows more of the messages that waited while offline
+        try { sendToServer(command); }
+        catch (IOException e) { clientUI.display("Could not send command to server."); }
+        break;
+
+      case "#ping": // Shows how long messages take to the server and back
+        if (!isConnected()) {
+          clientUI.display("Not connected");
+          break;
+        }
+        try {
+          ping(commandArgs.length > 1 ? Integer.parseInt(commandArgs[1]) : DEFAULT_PINGS);
+        }
+        catch (NumberFormatException e) {
+          clientUI.display("Usage: #ping [count]");
+        }
+        break;
+
       case "#gethost":
       clientUI.display("Current host: " + getHost());
         break;
@@ -145,16 +457,18 @@ public class ChatClient extends AbstractClient
     }
     else
     {
-      try
-      {
-        sendToServer(message);
+      synchronized (unechoed) {
+        if (unechoed.size() < MAX_UNECHOED)
+          unechoed.add(System.nanoTime());
       }
-      catch(IOException e)
-      {
+
+      // The console goes back to reading while the message is written
+      sendToServerAsync(message).exceptionally(e -> {
         clientUI.display
           ("Could not send message to server.  Terminating client.");
         quit();
-      }
+        return null;
+      });
     }
   }
 
@@ -172,7 +486,26 @@ public class ChatClient extends AbstractClient
    * @param exception the exception raised.
    */
   protected void connectionException(Exception exception) {
-    quit();
+    if (sessionToken == null) {
+      quit();
+      return;
+    }
+
+    clientUI.display("Connection with server lost. Type #login to pick up where you left off.");
+  }
+
+  /**
+   * Tells the server the client is leaving for good, so that it does not
+   * keep the session for it, and forgets the session. The message is only
+   * queued: closing the connection, which follows, writes it unless the
+   * server has stopped reading.
+   */
+  private void leave()
+  {
+    if (sessionToken != null && isConnected()) {
+      sendToServerAsync("#logoff");
+    }
+    sessionToken = null;
   }
 
   /**
@@ -188,6 +521,7 @@ public class ChatClient extends AbstractClient
    */
   public void quit()
   {
+    leave();
     try
     {
       closeConnection();
@@ -195,5 +529,26 @@ public class ChatClient extends AbstractClient
     catch(IOException e) {}
     System.exit(0);
   }
+
+  //Inner classes ***************************************************
+
+  /**
+   * A file being received.
+   */
+  private static class Download
+  {
+    final Path path;
+    final long size;
+    final FileChannel file;
+    long received;
+
+    Download(Path path, long size) throws IOException
+    {
+      this.path = path;
+      this.size = size;
+      this.file = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+  }
 }
 //End of ChatClient class
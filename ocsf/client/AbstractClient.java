@@ -6,6 +6,13 @@ package ocsf.client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+import ocsf.codec.*;
+import ocsf.common.LatencyHistogram;
+import ocsf.common.VirtualThreads;
 
 /**
  * The <code> AbstractClient </code> contains all the methods necessary to set
@@ -19,6 +26,25 @@ import java.net.*;
  * Several public service methods are provided to application that use this
  * framework.
  * <p>
+ * Messages from the server are read on a thread created when the connection
+ * is opened. It is a platform thread unless the client asks for a JDK virtual
+ * thread, which lets a single process run many more clients.
+ * <p>
+ * When the connection is opened the client offers its codecs to the server,
+ * which picks the one both sides use to encode messages; see
+ * <code>CodecHandshake</code>.
+ * <p>
+ * Messages are encoded on the thread sending them and queued; a writer thread
+ * created with the connection writes them out in order, so a sender need not
+ * wait for the network. Whatever is queued when the writer gets to it shares
+ * a single write to the socket, and a maximum write delay lets more build up
+ * first. Each send is tracked by a <code>CompletableFuture</code> completed
+ * once its message has been written.
+ * <p>
+ * A client can ping the server to measure round trips over its connection:
+ * pings go through the server like any message, short of being handled, and
+ * come back without reaching <code>handleMessageFromServer</code>.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -30,6 +56,25 @@ import java.net.*;
  */
 public abstract class AbstractClient implements Runnable {
 
+	// CONSTANTS ********************************************************
+
+	/**
+	 * The size of the buffer messages to the server are written into.
+	 */
+	private static final int	OUTPUT_BUFFER_SIZE	= 64 * 1024;
+
+	/**
+	 * The number of queued messages worth writing without waiting out the
+	 * maximum write delay.
+	 */
+	private static final int	GATHER_LIMIT		= 64;
+
+	/**
+	 * How long closing the connection waits for the messages already sent
+	 * to be written, in milliseconds.
+	 */
+	private static final long	CLOSE_TIMEOUT		= 5000;
+
 	// INSTANCE VARIABLES ***********************************************
 
 	/**
@@ -43,23 +88,117 @@ public abstract class AbstractClient implements Runnable {
 	/**
 	 * The stream to handle data going to the server.
 	 */
-	private ObjectOutputStream	output;
+	private OutputStream		output;
 
 	/**
 	 * The stream to handle data from the server.
 	 */
-	private ObjectInputStream	input;
+	private InputStream			input;
+
+	/**
+	 * The codecs offered to the server, in order of preference. Set to the
+	 * binary codec and Java serialization by default.
+	 */
+	private Codec[]				codecs	= Codecs.defaults();
+
+	/**
+	 * The codec chosen by the server, or null when not connected.
+	 */
+	private volatile Codec		codec;
+
+	/**
+	 * Encodes the messages sent to the server.
+	 */
+	private MessageEncoder		encoder;
+
+	/**
+	 * Decodes the messages received from the server.
+	 */
+	private MessageDecoder		decoder;
+
+	/**
+	 * When the encoder resets by itself. Set to
+	 * <code>ResetPolicy.DEFAULT</code> by default.
+	 */
+	private ResetPolicy			resetPolicy	= ResetPolicy.DEFAULT;
+
+	/**
+	 * Serializes the encoding of messages sent to the server, and guards the
+	 * queue of messages waiting to be written.
+	 */
+	private final Object		sendLock	= new Object();
+
+	/**
+	 * The messages encoded but not yet taken by the writer thread.
+	 */
+	private final ArrayDeque<PendingSend>	pendingSends	= new ArrayDeque<PendingSend>();
+
+	/**
+	 * The number of messages the writer thread has taken from the queue and
+	 * is writing.
+	 */
+	private int					inFlight;
+
+	/**
+	 * Indicates if a sender waits for the queue to be written, which then
+	 * is written without waiting out the maximum write delay.
+	 */
+	private boolean				flushRequested;
+
+	/**
+	 * The number of queued messages at which senders wait for the writer
+	 * thread to catch up. Set to 10000 by default.
+	 */
+	private int					maxPendingSends	= 10000;
+
+	/**
+	 * The maximum time in nanoseconds a message may wait in the queue
+	 * before it is written. Set to 0 by default.
+	 */
+	private long				maxWriteDelay	= 0;
+
+	/**
+	 * The time in milliseconds allowed for connecting to the server and
+	 * agreeing on a codec, or 0 for no limit. Set to 0 by default.
+	 */
+	private volatile int		connectTimeout	= 0;
+
+	/**
+	 * The number of write calls made to the socket.
+	 */
+	private volatile long		writeCalls;
+
+	/**
+	 * The number of bytes written to the socket.
+	 */
+	private volatile long		bytesWritten;
+
+	/**
+	 * The round trips of the pings sent over the current connection.
+	 */
+	private final LatencyHistogram	roundTrips	= new LatencyHistogram();
 
 	/**
 	 * The thread created to read data from the server.
 	 */
 	private Thread				clientReader;
 
+	/**
+	 * The thread created to write messages to the server.
+	 */
+	private Thread				clientWriter;
+
+	/**
+	 * Indicates if the reader thread is a virtual thread. Set to false by
+	 * default.
+	 */
+	private boolean				useVirtualThread	= false;
+
 	/**
 	 * Indicates if the thread is ready to stop. Needed so that the loop in the
 	 * run method knows when to stop waiting for incoming messages.
 	 */
-	private boolean				readyToStop	= false;
+	private volatile boolean	readyToStop	= false;
 
 	/**
 	 * The server's host name.
@@ -90,11 +229,12 @@ public abstract class AbstractClient implements Runnable {
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Opens the connection with the server. If the connection is already
-	 * opened, this call has no effect.
+	 * Opens the connection with the server and agrees on a codec with it. If
+	 * the connection is already opened, this call has no effect.
 	 * 
 	 * @exception IOException
-	 *                if an I/O error occurs when opening.
+	 *                if an I/O error occurs when opening, or if the server
+	 *                supports none of the codecs offered.
 	 */
 	final public void openConnection() throws IOException {
 		// Do not do anything if the connection is already open
@@ -103,9 +243,32 @@ public abstract class AbstractClient implements Runnable {
 
 		// Create the sockets and the data streams
 		try {
-			clientSocket = new Socket(host, port);
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
-			input = new ObjectInputStream(clientSocket.getInputStream());
+			clientSocket = new Socket();
+			clientSocket.connect(new InetSocketAddress(host, port), connectTimeout);
+			clientSocket.setSoTimeout(connectTimeout);
+			clientSocket.setTcpNoDelay(true);
+			output = new BufferedOutputStream(new CountingOutputStream(clientSocket.getOutputStream()),
+					OUTPUT_BUFFER_SIZE);
+			input = new BufferedInputStream(clientSocket.getInputStream());
+
+			CodecHandshake.writeOffer(output, codecs);
+			Codec chosen = CodecHandshake.readAnswer(input, codecs);
+
+			synchronized (sendLock) {
+				encoder = chosen.newEncoder();
+				encoder.setResetPolicy(resetPolicy);
+				decoder = chosen.newDecoder();
+				codec = chosen;
+
+				ByteBuffer header = encoder.header();
+				output.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+				output.flush();
+
+				clientWriter = VirtualThreads.factory("AbstractClient-writer-", useVirtualThread)
+						.newThread(new Writer(clientSocket, output));
+			}
+
+			clientSocket.setSoTimeout(0);
 		} catch (IOException ex)
 		// All three of the above must be closed when there is a failure
 		// to create any of them
@@ -118,14 +281,45 @@ public abstract class AbstractClient implements Runnable {
 			throw ex; // Rethrow the exception.
 		}
 
-		clientReader = new Thread(this); // Create the data reader thread
+		roundTrips.reset();
+
+		// Create the data reader thread
+		clientReader = VirtualThreads.factory("AbstractClient-", useVirtualThread).newThread(this);
 		readyToStop = false;
+		clientWriter.start();
 		clientReader.start(); // Start the thread
 	}
 
+	/**
+	 * Opens the connection with the server on another thread, so that the
+	 * caller does not wait for the server to answer. See
+	 * <code>openConnection</code>.
+	 * 
+	 * @return a future completed once the connection is open, or completed
+	 *         exceptionally with the <code>IOException</code> that prevented
+	 *         it.
+	 */
+	final public CompletableFuture<Void> openConnectionAsync() {
+		final CompletableFuture<Void> opened = new CompletableFuture<Void>();
+
+		VirtualThreads.factory("AbstractClient-connect-", useVirtualThread).newThread(new Runnable() {
+			public void run() {
+				try {
+					openConnection();
+					opened.complete(null);
+				} catch (Throwable ex) {
+					opened.completeExceptionally(ex);
+				}
+			}
+		}).start();
+
+		return opened;
+	}
+
 	/**
 	 * Sends an object to the server. This is the only way that methods should
-	 * communicate with the server.
+	 * communicate with the server. Returns once the message has been written
+	 * to the socket, after any message sent before it.
 	 * 
 	 * @param msg
 	 *            The message to be sent.
@@ -133,10 +327,83 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when sending
 	 */
 	final public void sendToServer(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		try {
+			send(msg, true).get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+
+			throw new IOException(ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while sending");
+		}
+	}
+
+	/**
+	 * Sends an object to the server without waiting for it to be written.
+	 * The message is encoded right away and queued behind the messages sent
+	 * before it; the caller only waits if the queue is full. The future is
+	 * completed on the writer thread, so actions depending on it should not
+	 * block.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return a future completed once the message has been written to the
+	 *         socket, or completed exceptionally with the
+	 *         <code>IOException</code> that prevented it.
+	 */
+	final public CompletableFuture<Void> sendToServerAsync(Object msg) {
+		return send(msg, false);
+	}
+
+	/**
+	 * Encodes and queues a message.
+	 * 
+	 * @param msg
+	 *            the message to be sent.
+	 * @param flush
+	 *            true if the caller is going to wait for the message to be
+	 *            written.
+	 * @return the future of the send.
+	 */
+	private CompletableFuture<Void> send(Object msg, boolean flush) {
+		CompletableFuture<Void> sent = new CompletableFuture<Void>();
+
+		synchronized (sendLock) {
+			try {
+				// Wait for the writer thread to catch up
+				while (output != null && pendingSends.size() >= maxPendingSends)
+					sendLock.wait();
+
+				if (clientSocket == null || output == null)
+					throw new SocketException("socket does not exist");
+
+				pendingSends.add(new PendingSend(encoder.encode(msg), sent));
+				flushRequested |= flush;
+
+				if (flush || pendingSends.size() == 1 || pendingSends.size() == GATHER_LIMIT)
+					sendLock.notifyAll();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				sent.completeExceptionally(new InterruptedIOException("interrupted while sending"));
+			} catch (IOException ex) {
+				sent.completeExceptionally(ex);
+			}
+		}
+		return sent;
+	}
 
-		output.writeObject(msg);
+	/**
+	 * Sends a ping to the server, stamped with the time, without waiting for
+	 * it to be written. When it comes back its round trip is recorded in
+	 * <code>getRoundTrips</code>; it includes the time the ping waits behind
+	 * messages sent before it, on either side.
+	 * 
+	 * @return the future of the send, as for <code>sendToServerAsync</code>.
+	 */
+	final public CompletableFuture<Void> ping() {
+		return send(new Ping(System.nanoTime()), true);
 	}
 
 	/**
@@ -145,11 +412,16 @@ public abstract class AbstractClient implements Runnable {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		synchronized (sendLock) {
+			if (encoder != null)
+				encoder.reset();
+		}
 	}
 
 	/**
-	 * Closes the connection to the server.
+	 * Closes the connection to the server. Messages already sent are
+	 * written first, unless the server has not taken them within a few
+	 * seconds; their sends then fail.
 	 * 
 	 * @exception IOException
 	 *                if an I/O error occurs when closing.
@@ -158,6 +430,9 @@ public abstract class AbstractClient implements Runnable {
 		// Prevent the thread from looping any more
 		readyToStop = true;
 
+		// Messages already sent still go out
+		awaitPendingSends();
+
 		try {
 			closeAll();
 		} finally {
@@ -168,6 +443,16 @@ public abstract class AbstractClient implements Runnable {
 
 	// ACCESSING METHODS ------------------------------------------------
 
+	/**
+	 * Returns the round trips of the pings sent over the current connection,
+	 * which starts afresh each time the connection is opened.
+	 * 
+	 * @return the live histogram, in nanoseconds.
+	 */
+	final public LatencyHistogram getRoundTrips() {
+		return roundTrips;
+	}
+
 	/**
 	 * @return true if the client is connnected.
 	 */
@@ -193,6 +478,199 @@ public abstract class AbstractClient implements Runnable {
 		this.port = port;
 	}
 
+	/**
+	 * @return true if messages from the server are read on a virtual thread.
+	 */
+	final public boolean isUsingVirtualThread() {
+		return useVirtualThread;
+	}
+
+	/**
+	 * Sets whether messages from the server are read on a JDK virtual thread
+	 * rather than a platform thread. The change only takes effect at the time
+	 * of the next call to openConnection().
+	 * 
+	 * @param useVirtualThread
+	 *            true to use a virtual thread.
+	 * @exception UnsupportedOperationException
+	 *                if the JDK does not provide virtual threads.
+	 */
+	final public void setUseVirtualThread(boolean useVirtualThread) {
+		if (useVirtualThread && !VirtualThreads.isSupported())
+			throw new UnsupportedOperationException("virtual threads require JDK 21 or later");
+
+		this.useVirtualThread = useVirtualThread;
+	}
+
+	/**
+	 * @return the codec agreed on with the server, or null when not
+	 *         connected.
+	 */
+	final public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codecs offered to the server the next time the connection is
+	 * opened. The server picks the first one it supports. The default is the
+	 * binary codec, then Java serialization.
+	 * 
+	 * @param codecs
+	 *            the codecs, in order of preference.
+	 */
+	final public void setCodecs(Codec... codecs) {
+		if (codecs.length == 0)
+			throw new IllegalArgumentException("at least one codec is needed");
+
+		this.codecs = codecs.clone();
+	}
+
+	/**
+	 * @return when the encoder resets by itself.
+	 */
+	final public ResetPolicy getResetPolicy() {
+		synchronized (sendLock) {
+			return resetPolicy;
+		}
+	}
+
+	/**
+	 * Sets when the encoder resets by itself, which bounds the memory both
+	 * the client and the server hold for the messages sent to the server.
+	 * Applies to the current connection as well. The default is
+	 * <code>ResetPolicy.DEFAULT</code>.
+	 * 
+	 * @param resetPolicy
+	 *            the reset policy.
+	 */
+	final public void setResetPolicy(ResetPolicy resetPolicy) {
+		synchronized (sendLock) {
+			this.resetPolicy = resetPolicy;
+
+			if (encoder != null)
+				encoder.setResetPolicy(resetPolicy);
+		}
+	}
+
+	/**
+	 * @return the number of objects the encoder, and therefore the server's
+	 *         decoder, keeps references to until the next reset.
+	 */
+	final public int getHandleCount() {
+		synchronized (sendLock) {
+			return encoder == null ? 0 : encoder.getHandleCount();
+		}
+	}
+
+	/**
+	 * @return the number of times the encoder has been reset.
+	 */
+	final public long getResetCount() {
+		synchronized (sendLock) {
+			return encoder == null ? 0 : encoder.getResetCount();
+		}
+	}
+
+	/**
+	 * @return the number of messages sent but not yet written to the socket.
+	 */
+	final public int getPendingSendCount() {
+		synchronized (sendLock) {
+			return pendingSends.size() + inFlight;
+		}
+	}
+
+	/**
+	 * @return the number of queued messages at which senders wait.
+	 */
+	final public int getMaxPendingSends() {
+		synchronized (sendLock) {
+			return maxPendingSends;
+		}
+	}
+
+	/**
+	 * Sets the number of messages that may wait to be written before senders
+	 * wait for the writer thread to catch up, which bounds the memory held
+	 * for a slow connection. The default is 10000.
+	 * 
+	 * @param maxPendingSends
+	 *            the number of messages, at least 1.
+	 */
+	final public void setMaxPendingSends(int maxPendingSends) {
+		synchronized (sendLock) {
+			this.maxPendingSends = Math.max(1, maxPendingSends);
+			sendLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds allowed for opening the connection, or
+	 *         0 for no limit.
+	 */
+	final public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the time allowed for connecting to the server and agreeing on a
+	 * codec with it, after which <code>openConnection</code> fails with a
+	 * <code>SocketTimeoutException</code>. The default, 0, waits as long as
+	 * the operating system does.
+	 * 
+	 * @param milliseconds
+	 *            the time in milliseconds, or 0 for no limit.
+	 */
+	final public void setConnectTimeout(int milliseconds) {
+		if (milliseconds < 0)
+			throw new IllegalArgumentException("timeout must not be negative");
+
+		connectTimeout = milliseconds;
+	}
+
+	/**
+	 * @return the maximum time in microseconds a message may wait in the
+	 *         buffer before it is written.
+	 */
+	final public long getMaxWriteDelay() {
+		synchronized (sendLock) {
+			return maxWriteDelay / 1000;
+		}
+	}
+
+	/**
+	 * Sets the maximum time a message may wait in the queue before it is
+	 * written to the socket, so that messages sent in a burst share a write.
+	 * With 0, the default, messages are written as soon as the writer thread
+	 * gets to them.
+	 * 
+	 * @param microseconds
+	 *            the delay in microseconds.
+	 */
+	final public void setMaxWriteDelay(long microseconds) {
+		if (microseconds < 0)
+			throw new IllegalArgumentException("delay must not be negative");
+
+		synchronized (sendLock) {
+			maxWriteDelay = microseconds * 1000;
+			sendLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return the number of write calls made to the socket.
+	 */
+	final public long getWriteCount() {
+		return writeCalls;
+	}
+
+	/**
+	 * @return the number of bytes written to the socket.
+	 */
+	final public long getBytesWritten() {
+		return bytesWritten;
+	}
+
 	/**
 	 * @return the host name.
 	 */
@@ -239,7 +717,13 @@ public abstract class AbstractClient implements Runnable {
 				// Get data from Server and send it to the handler
 				// The thread waits indefinitely at the following
 				// statement until something is received from the server
-				msg = input.readObject();
+				msg = decoder.read(input);
+
+				// Pings are only timed
+				if (msg instanceof Ping) {
+					roundTrips.record(System.nanoTime() - ((Ping) msg).getSentAt());
+					continue;
+				}
 
 				// Concrete subclasses do what they want with the
 				// msg by implementing the following method
@@ -300,6 +784,33 @@ public abstract class AbstractClient implements Runnable {
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+	/**
+	 * Waits until the messages sent so far have been written, or until they
+	 * can no longer be, for at most <code>CLOSE_TIMEOUT</code>: a server
+	 * that stops reading must not keep the connection from closing. Does
+	 * not wait when called by the writer thread itself, such as from an
+	 * action depending on a send.
+	 */
+	private void awaitPendingSends() {
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+
+		synchronized (sendLock) {
+			try {
+				while (output != null && (!pendingSends.isEmpty() || inFlight > 0)
+						&& Thread.currentThread() != clientWriter) {
+					long left = deadline - System.currentTimeMillis();
+
+					if (left <= 0)
+						break;
+
+					sendLock.wait(left);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 	/**
 	 * Closes all aspects of the connection to the server.
 	 * 
@@ -307,14 +818,20 @@ public abstract class AbstractClient implements Runnable {
 	 *                if an I/O error occurs when closing.
 	 */
 	private void closeAll() throws IOException {
+		ArrayDeque<PendingSend> unsent;
+
 		try {
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
 
-			// Close the output stream
-			if (output != null)
-				output.close();
+			// Close the output stream, dropping anything still buffered
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException ex) {
+				}
+			}
 
 			// Close the input stream
 			if (input != null)
@@ -324,9 +841,154 @@ public abstract class AbstractClient implements Runnable {
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
-			output = null;
+			synchronized (sendLock) {
+				output = null;
+				unsent = pendingSends.clone();
+				pendingSends.clear();
+
+				// Stops the writer thread and wakes waiting senders
+				sendLock.notifyAll();
+			}
 			input = null;
 			clientSocket = null;
+			codec = null;
+
+			// The decoder may hold native memory, such as an inflater's
+			if (decoder != null)
+				decoder.close();
+		}
+
+		SocketException closed = new SocketException("connection closed");
+		for (PendingSend send : unsent)
+			send.future.completeExceptionally(closed);
+	}
+
+	// INNER CLASSES ----------------------------------------------------
+
+	/**
+	 * An encoded message waiting to be written, with the future of its send.
+	 */
+	private static class PendingSend {
+		final ByteBuffer				bytes;
+		final CompletableFuture<Void>	future;
+
+		PendingSend(ByteBuffer bytes, CompletableFuture<Void> future) {
+			this.bytes = bytes;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Writes the queued messages of one connection, in order, until the
+	 * connection is closed. Whatever is queued when the writer wakes up is
+	 * written into the buffer and flushed once. If the socket fails it is
+	 * closed, which makes the reader thread report the failure.
+	 */
+	private class Writer implements Runnable {
+		/**
+		 * The socket of the connection this writer serves.
+		 */
+		private final Socket		socket;
+
+		/**
+		 * The buffered stream of the connection this writer serves.
+		 */
+		private final OutputStream	out;
+
+		Writer(Socket socket, OutputStream out) {
+			this.socket = socket;
+			this.out = out;
+		}
+
+		public void run() {
+			ArrayDeque<PendingSend> batch = new ArrayDeque<PendingSend>();
+
+			while (true) {
+				synchronized (sendLock) {
+					inFlight = 0;
+					sendLock.notifyAll();
+
+					try {
+						while (output == out && pendingSends.isEmpty())
+							sendLock.wait();
+
+						lingerForSends();
+					} catch (InterruptedException ex) {
+						return;
+					}
+
+					// Closed; closeAll fails what is still queued
+					if (output != out)
+						return;
+
+					batch.addAll(pendingSends);
+					pendingSends.clear();
+					flushRequested = false;
+					inFlight = batch.size();
+					sendLock.notifyAll();
+				}
+
+				try {
+					for (PendingSend send : batch)
+						out.write(send.bytes.array(), send.bytes.arrayOffset() + send.bytes.position(),
+								send.bytes.remaining());
+					out.flush();
+				} catch (IOException ex) {
+					for (PendingSend send : batch)
+						send.future.completeExceptionally(ex);
+
+					try {
+						socket.close();
+					} catch (Exception exc) {
+					}
+
+					synchronized (sendLock) {
+						inFlight = 0;
+						sendLock.notifyAll();
+					}
+					return;
+				}
+
+				for (PendingSend send : batch)
+					send.future.complete(null);
+				batch.clear();
+			}
+		}
+
+		/**
+		 * Waits, up to the maximum write delay, for more messages to be
+		 * queued before writing, unless a sender waits for them. Must be
+		 * called while holding the send lock.
+		 */
+		private void lingerForSends() throws InterruptedException {
+			if (maxWriteDelay == 0)
+				return;
+
+			long deadline = System.nanoTime() + maxWriteDelay;
+
+			while (output == out && pendingSends.size() < GATHER_LIMIT && !flushRequested) {
+				long left = deadline - System.nanoTime();
+
+				if (left <= 0)
+					break;
+
+				sendLock.wait(left / 1000000, (int) (left % 1000000));
+			}
+		}
+	}
+
+	/**
+	 * Counts the write calls and bytes reaching the socket.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			writeCalls++;
+			bytesWritten += length;
 		}
 	}
 }
@@ -0,0 +1,458 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+* The <code> BinaryCodec </code> class is the default OCSF wire format. Each
+* message is a self-contained frame: a four-byte big-endian length, then a
+* one-byte frame type, then the payload. The length counts the type byte
+* and the payload.<p>
+*
+* Frame types:
+* <ul>
+* <li> <code>TEXT</code>: a string, as UTF-8.
+* <li> <code>CONTROL</code>: a string starting with '#', such as
+*  <code>#login bob</code>, split into its command and its argument text:
+*  a one-byte command length, the command as UTF-8, then the rest of the
+*  string as UTF-8. It decodes back to the very same string; the split
+*  lets a peer route commands without scanning the text.
+* <li> <code>NULL</code>: a null message, with no payload.
+* <li> <code>OBJECT</code>: any other serializable object, as a complete
+*  Java serialization stream of its own. Kept so that applications sending
+*  objects other than strings still work.
+* <li> <code>FILE_CHUNK</code>: a <code>FileChunk</code>: the transfer ID
+*  as four bytes, the offset as eight bytes, then the bytes of the chunk.
+*  A server can stream such frames straight out of a file.
+* <li> <code>PING</code>: a <code>Ping</code>: the time it was sent as
+*  eight bytes.
+* </ul>
+*
+* Frames carry no state from one to the next, so the encoder never needs
+* resetting and a frame encoded once can be sent to any connection.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codecs#BINARY
+*/
+public final class BinaryCodec implements Codec
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The name of the codec.
+   */
+  public static final String NAME = "binary";
+
+  /**
+   * The type of a frame holding UTF-8 text.
+   */
+  public static final byte TEXT = 1;
+
+  /**
+   * The type of a frame holding a command string.
+   */
+  public static final byte CONTROL = 2;
+
+  /**
+   * The type of a frame holding a null message.
+   */
+  public static final byte NULL = 3;
+
+  /**
+   * The type of a frame holding a serialized object.
+   */
+  public static final byte OBJECT = 4;
+
+  /**
+   * The type of a frame holding a file chunk.
+   */
+  public static final byte FILE_CHUNK = 6;
+
+  /**
+   * The type of a frame holding a ping.
+   */
+  public static final byte PING = 7;
+
+  /**
+   * The length of the header of a file chunk frame: frame length, type,
+   * transfer ID and offset.
+   */
+  public static final int FILE_CHUNK_HEADER_LENGTH = 4 + 1 + 4 + 8;
+
+  /**
+   * The largest frame accepted, type byte included. Anything longer is
+   * taken as a corrupted stream rather than allocated.
+   */
+  public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+  // CLASS VARIABLES *************************************************
+
+  /**
+   * The encoder shared by all connections.
+   */
+  private static final MessageEncoder ENCODER = new MessageEncoder()
+  {
+    public ByteBuffer header()
+    {
+      return ByteBuffer.allocate(0);
+    }
+
+    public ByteBuffer encode(Object msg) throws IOException
+    {
+      return encodeFrame(msg);
+    }
+
+    public void reset() {}
+
+    public void setResetPolicy(ResetPolicy policy) {}
+
+    public int getHandleCount()
+    {
+      return 0;
+    }
+
+    public long getResetCount()
+    {
+      return 0;
+    }
+  };
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs the codec. Use <code>Codecs.BINARY</code>.
+   */
+  BinaryCodec() {}
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the name of the codec.
+   */
+  public String getName()
+  {
+    return NAME;
+  }
+
+  /**
+   * @return the encoder, which is stateless and therefore shared.
+   */
+  public MessageEncoder newEncoder()
+  {
+    return ENCODER;
+  }
+
+  /**
+   * @return a new decoder.
+   */
+  public MessageDecoder newDecoder()
+  {
+    return new Decoder();
+  }
+
+  /**
+   * Encodes a message. Binary frames do not depend on the frames sent
+   * before them, so this is plain encoding.
+   *
+   * @param msg the message.
+   * @return the frame.
+   * @exception IOException if the message cannot be encoded.
+   */
+  public ByteBuffer encodeShared(Object msg) throws IOException
+  {
+    return encodeFrame(msg);
+  }
+
+  /**
+   * @return the name of the codec.
+   */
+  public String toString()
+  {
+    return NAME;
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Tells whether a codec writes binary frames, which is what lets file
+   * chunks be streamed out of a file rather than encoded.
+   *
+   * @param codec a codec.
+   * @return true if the codec writes binary frames.
+   */
+  public static boolean usesBinaryFrames(Codec codec)
+  {
+    return codec instanceof BinaryCodec || codec instanceof DeflateCodec;
+  }
+
+  /**
+   * Returns the header of a file chunk frame, to be followed on the wire
+   * by the bytes of the chunk.
+   *
+   * @param transferID the transfer the chunk belongs to.
+   * @param offset where the bytes go in the file.
+   * @param length the number of bytes in the chunk.
+   * @return the header, ready to be read.
+   * @exception IOException if the chunk is too large for a frame.
+   */
+  public static ByteBuffer fileChunkHeader(int transferID, long offset,
+    int length) throws IOException
+  {
+    long frameLength = FILE_CHUNK_HEADER_LENGTH - 4L + length;
+
+    if (frameLength > MAX_FRAME_LENGTH)
+      throw new IOException("chunk too large: " + length + " bytes");
+
+    ByteBuffer header = ByteBuffer.allocate(FILE_CHUNK_HEADER_LENGTH);
+    header.putInt((int)frameLength).put(FILE_CHUNK)
+      .putInt(transferID).putLong(offset);
+    header.flip();
+    return header;
+  }
+
+  /**
+   * Encodes a message into a frame.
+   *
+   * @param msg the message.
+   * @return the frame, ready to be read.
+   * @exception IOException if the message cannot be encoded or is too
+   *  large.
+   */
+  static ByteBuffer encodeFrame(Object msg) throws IOException
+  {
+    if (msg == null)
+      return frame(NULL, null, new byte[0]);
+
+    if (msg instanceof String)
+    {
+      String text = (String)msg;
+
+      if (text.startsWith("#"))
+      {
+        int end = text.indexOf(' ');
+        if (end < 0)
+          end = text.length();
+
+        byte[] command =
+          text.substring(0, end).getBytes(StandardCharsets.UTF_8);
+
+        if (command.length <= 0xFF)
+        {
+          return frame(CONTROL, command,
+            text.substring(end).getBytes(StandardCharsets.UTF_8));
+        }
+      }
+
+      return frame(TEXT, null, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    if (msg instanceof FileChunk)
+    {
+      FileChunk chunk = (FileChunk)msg;
+      ByteBuffer header = fileChunkHeader(chunk.getTransferID(),
+        chunk.getOffset(), chunk.getData().length);
+
+      ByteBuffer frame =
+        ByteBuffer.allocate(header.remaining() + chunk.getData().length);
+      frame.put(header).put(chunk.getData());
+      frame.flip();
+      return frame;
+    }
+
+    if (msg instanceof Ping)
+    {
+      byte[] sentAt = new byte[8];
+      ByteBuffer.wrap(sentAt).putLong(((Ping)msg).getSentAt());
+      return frame(PING, null, sentAt);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(msg);
+    out.close();
+
+    return frame(OBJECT, null, bytes.toByteArray());
+  }
+
+  /**
+   * Assembles a frame.
+   *
+   * @param type the frame type.
+   * @param command the command of a control frame, null otherwise.
+   * @param payload the payload, or the argument text of a control frame.
+   * @return the frame, ready to be read.
+   * @exception IOException if the frame is too large.
+   */
+  private static ByteBuffer frame(byte type, byte[] command, byte[] payload)
+    throws IOException
+  {
+    long length = 1L + payload.length
+      + (command == null ? 0 : 1 + command.length);
+
+    if (length > MAX_FRAME_LENGTH)
+      throw new IOException("message too large: " + length + " bytes");
+
+    ByteBuffer frame = ByteBuffer.allocate(4 + (int)length);
+    frame.putInt((int)length).put(type);
+
+    if (command != null)
+      frame.put((byte)command.length).put(command);
+
+    frame.put(payload);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Rebuilds the message held by a frame.
+   *
+   * @param type the frame type.
+   * @param body the payload of the frame.
+   * @param offset where the payload starts in <code>body</code>.
+   * @param length the length of the payload.
+   * @return the message.
+   * @exception IOException if the frame is malformed.
+   * @exception ClassNotFoundException if an object's class is unknown.
+   */
+  static Object decodeFrame(byte type, byte[] body, int offset,
+    int length) throws IOException, ClassNotFoundException
+  {
+    switch (type)
+    {
+      case TEXT:
+        return new String(body, offset, length, StandardCharsets.UTF_8);
+
+      case CONTROL:
+        if (length < 1 || (body[offset] & 0xFF) > length - 1)
+          throw new StreamCorruptedException("malformed control frame");
+
+        int commandLength = body[offset] & 0xFF;
+        return new String(body, offset + 1, commandLength,
+            StandardCharsets.UTF_8)
+          + new String(body, offset + 1 + commandLength,
+            length - 1 - commandLength, StandardCharsets.UTF_8);
+
+      case NULL:
+        return null;
+
+      case OBJECT:
+        ObjectInputStream in = new ObjectInputStream(
+          new ByteArrayInputStream(body, offset, length));
+        return in.readObject();
+
+      case FILE_CHUNK:
+        if (length < 12)
+          throw new StreamCorruptedException("malformed file chunk frame");
+
+        ByteBuffer chunk = ByteBuffer.wrap(body, offset, length);
+        int transferID = chunk.getInt();
+        long position = chunk.getLong();
+        byte[] data = new byte[length - 12];
+        chunk.get(data);
+        return new FileChunk(transferID, position, data);
+
+      case PING:
+        if (length != 8)
+          throw new StreamCorruptedException("malformed ping frame");
+
+        return new Ping(ByteBuffer.wrap(body, offset, length).getLong());
+
+      default:
+        throw new StreamCorruptedException("unknown frame type " + type);
+    }
+  }
+
+  /**
+   * Checks the length read at the start of a frame.
+   *
+   * @param length the length.
+   * @exception IOException if it cannot be the length of a frame.
+   */
+  static void checkLength(int length) throws IOException
+  {
+    if (length < 1 || length > MAX_FRAME_LENGTH)
+      throw new StreamCorruptedException("invalid frame length " + length);
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * Reads frames from a stream or from channel buffers. Codecs extending
+   * the binary frame types override <code>decodeFrame</code>.
+   */
+  static class Decoder implements MessageDecoder
+  {
+    private DataInputStream input;
+
+    /**
+     * Rebuilds the message held by a frame.
+     */
+    Object decodeFrame(byte type, byte[] body, int offset, int length)
+      throws IOException, ClassNotFoundException
+    {
+      return BinaryCodec.decodeFrame(type, body, offset, length);
+    }
+
+    public Object read(InputStream in)
+      throws IOException, ClassNotFoundException
+    {
+      if (input == null)
+        input = new DataInputStream(in);
+
+      int length = input.readInt();
+      checkLength(length);
+
+      byte type = input.readByte();
+      byte[] body = new byte[length - 1];
+      input.readFully(body);
+
+      return decodeFrame(type, body, 0, body.length);
+    }
+
+    public Object decode(ByteBuffer in)
+      throws IOException, ClassNotFoundException
+    {
+      if (in.remaining() < 4)
+        return INCOMPLETE;
+
+      int length = in.getInt(in.position());
+      checkLength(length);
+
+      if (in.remaining() - 4 < length)
+        return INCOMPLETE;
+
+      in.position(in.position() + 4);
+      byte type = in.get();
+
+      byte[] body;
+      int offset;
+
+      if (in.hasArray())
+      {
+        body = in.array();
+        offset = in.arrayOffset() + in.position();
+      }
+      else
+      {
+        body = new byte[length - 1];
+        offset = 0;
+        in.duplicate().get(body);
+      }
+
+      in.position(in.position() + length - 1);
+      return decodeFrame(type, body, offset, length - 1);
+    }
+
+    public void close()
+    {
+      // Nothing is held beyond the stream
+    }
+  }
+}
+// End of BinaryCodec Class
@@ -0,0 +1,61 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+* A <code> Codec </code> turns the messages exchanged by an OCSF client and
+* server into bytes and back. The client offers the codecs it knows when it
+* connects, and the server picks the first one it also supports; see
+* <code> CodecHandshake</code>.<p>
+*
+* A codec itself is stateless and shared. Anything a wire format has to
+* remember from one message to the next lives in the encoder and decoder
+* created for each connection.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codecs
+* @see ocsf.codec.CodecHandshake
+*/
+public interface Codec
+{
+  /**
+   * Returns the name identifying the codec during the handshake. At most
+   * 255 ASCII characters.
+   *
+   * @return the codec's name.
+   */
+  String getName();
+
+  /**
+   * Creates the encoder of one connection.
+   *
+   * @return a new encoder.
+   * @exception IOException if the encoder cannot be created.
+   */
+  MessageEncoder newEncoder() throws IOException;
+
+  /**
+   * Creates the decoder of one connection.
+   *
+   * @return a new decoder.
+   */
+  MessageDecoder newDecoder();
+
+  /**
+   * Encodes a message into a frame that can be queued on any connection
+   * using this codec, whatever that connection has sent before. This is
+   * what lets a broadcast be encoded only once.
+   *
+   * @param msg the message.
+   * @return the frame, to be treated as immutable.
+   * @exception IOException if the message cannot be encoded.
+   */
+  ByteBuffer encodeShared(Object msg) throws IOException;
+}
+// End of Codec Interface
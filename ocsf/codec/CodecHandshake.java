@@ -0,0 +1,311 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+* The <code> CodecHandshake </code> class implements the exchange through
+* which a client and a server agree on a codec as soon as they connect.<p>
+*
+* The client sends an offer: the four ASCII bytes <code>OCSF</code>, a
+* version byte, the number of codecs offered, then the name of each codec
+* as a length byte followed by ASCII, in order of preference. The server
+* answers with <code>OCSF</code>, the version byte and the name of the
+* first offered codec it supports, or a zero length if it supports none,
+* after which it closes the connection. Each side then uses the chosen
+* codec, starting with its encoder's header.<p>
+*
+* A client that predates the handshake opens with the header of an
+* <code> ObjectOutputStream </code> instead of an offer. The server
+* recognizes it and uses Java serialization without answering, which is
+* exactly what such a client expects.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codec
+*/
+public final class CodecHandshake
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The version of the handshake.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * The bytes starting an offer and an answer.
+   */
+  private static final byte[] MAGIC =
+    {(byte)'O', (byte)'C', (byte)'S', (byte)'F'};
+
+  /**
+   * The bytes starting a Java serialization stream.
+   */
+  private static final byte[] LEGACY_MAGIC =
+    {(byte)0xAC, (byte)0xED, (byte)0x00, (byte)0x05};
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Not to be instantiated.
+   */
+  private CodecHandshake() {}
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Sends a client's offer.
+   *
+   * @param out the stream to the server.
+   * @param codecs the codecs offered, in order of preference.
+   * @exception IOException if the offer cannot be sent.
+   */
+  public static void writeOffer(OutputStream out, Codec[] codecs)
+    throws IOException
+  {
+    if (codecs.length == 0 || codecs.length > 0xFF)
+      throw new IllegalArgumentException("1 to 255 codecs must be offered");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(MAGIC);
+    bytes.write(VERSION);
+    bytes.write(codecs.length);
+
+    for (int i = 0; i < codecs.length; i++)
+      writeName(bytes, codecs[i].getName());
+
+    out.write(bytes.toByteArray());
+    out.flush();
+  }
+
+  /**
+   * Waits for the server's answer to an offer.
+   *
+   * @param in the stream from the server.
+   * @param offered the codecs that were offered.
+   * @return the codec chosen by the server.
+   * @exception IOException if the answer is malformed or the server
+   *  supports none of the codecs.
+   */
+  public static Codec readAnswer(InputStream in, Codec[] offered)
+    throws IOException
+  {
+    DataInputStream data = new DataInputStream(in);
+
+    byte[] magic = new byte[MAGIC.length];
+    data.readFully(magic);
+
+    if (!Arrays.equals(magic, MAGIC))
+      throw new StreamCorruptedException("not an OCSF server");
+
+    data.readUnsignedByte();  // version, only 1 so far
+
+    byte[] name = new byte[data.readUnsignedByte()];
+    data.readFully(name);
+
+    if (name.length == 0)
+      throw new IOException("the server supports none of the codecs offered");
+
+    String chosen = new String(name, StandardCharsets.US_ASCII);
+
+    for (int i = 0; i < offered.length; i++)
+    {
+      if (offered[i].getName().equals(chosen))
+        return offered[i];
+    }
+
+    throw new StreamCorruptedException("the server chose codec " + chosen
+      + ", which was not offered");
+  }
+
+  /**
+   * Reads a client's offer from a buffer, without blocking, and picks the
+   * codec.
+   *
+   * @param in the bytes received so far, ready to be read. On success
+   *  the position is moved past the offer, or left untouched for a
+   *  legacy client; otherwise the buffer is not changed.
+   * @param supported the codecs the server supports.
+   * @return the outcome, or null if the offer is not complete yet.
+   * @exception IOException if the client speaks neither the handshake
+   *  nor Java serialization.
+   */
+  public static Acceptance accept(ByteBuffer in, Codec[] supported)
+    throws IOException
+  {
+    ByteBuffer offer = in.duplicate();
+
+    if (offer.remaining() < MAGIC.length)
+      return null;
+
+    byte[] magic = new byte[MAGIC.length];
+    offer.get(magic);
+
+    if (Arrays.equals(magic, LEGACY_MAGIC))
+    {
+      Codec codec = find(supported, Codecs.JAVA.getName());
+      return new Acceptance(codec, null, true);
+    }
+
+    if (!Arrays.equals(magic, MAGIC))
+      throw new StreamCorruptedException("not an OCSF client");
+
+    if (offer.remaining() < 2)
+      return null;
+
+    offer.get();  // version, only 1 so far
+    int count = offer.get() & 0xFF;
+    Codec chosen = null;
+
+    for (int i = 0; i < count; i++)
+    {
+      if (!offer.hasRemaining())
+        return null;
+
+      int length = offer.get() & 0xFF;
+      if (offer.remaining() < length)
+        return null;
+
+      byte[] name = new byte[length];
+      offer.get(name);
+
+      if (chosen == null)
+        chosen = find(supported, new String(name, StandardCharsets.US_ASCII));
+    }
+
+    in.position(offer.position());
+
+    ByteArrayOutputStream answer = new ByteArrayOutputStream();
+    answer.write(MAGIC);
+    answer.write(VERSION);
+    writeName(answer, chosen == null ? "" : chosen.getName());
+
+    return new Acceptance(chosen, ByteBuffer.wrap(answer.toByteArray()),
+      false);
+  }
+
+  /**
+   * Reads a client's offer from a blocking stream and picks the codec.
+   * The bytes of a legacy client's stream header are pushed back.
+   *
+   * @param in the stream from the client; able to push back 4 bytes.
+   * @param supported the codecs the server supports.
+   * @return the outcome.
+   * @exception IOException if the stream fails, or if the client speaks
+   *  neither the handshake nor Java serialization.
+   */
+  public static Acceptance accept(PushbackInputStream in, Codec[] supported)
+    throws IOException
+  {
+    ByteBuffer received = ByteBuffer.allocate(2 + 256 * 256);
+    received.put(readFully(in, MAGIC.length));
+
+    while (true)
+    {
+      received.flip();
+      Acceptance acceptance = accept(received, supported);
+
+      if (acceptance != null)
+      {
+        if (acceptance.isLegacy())
+          in.unread(received.array(), 0, received.limit());
+        return acceptance;
+      }
+
+      received.position(received.limit());
+      received.limit(received.capacity());
+      received.put(readFully(in, 1));
+    }
+  }
+
+  /**
+   * Writes a codec name as a length byte followed by ASCII.
+   */
+  private static void writeName(ByteArrayOutputStream out, String name)
+  {
+    byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+
+    if (bytes.length > 0xFF)
+      throw new IllegalArgumentException("codec name too long: " + name);
+
+    out.write(bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Reads an exact number of bytes.
+   */
+  private static byte[] readFully(InputStream in, int length)
+    throws IOException
+  {
+    byte[] bytes = new byte[length];
+    new DataInputStream(in).readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Finds a codec by name.
+   */
+  private static Codec find(Codec[] codecs, String name)
+  {
+    for (int i = 0; i < codecs.length; i++)
+    {
+      if (codecs[i].getName().equals(name))
+        return codecs[i];
+    }
+    return null;
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * The outcome of a client's offer, as seen by the server.
+   */
+  public static final class Acceptance
+  {
+    private final Codec codec;
+    private final ByteBuffer answer;
+    private final boolean legacy;
+
+    Acceptance(Codec codec, ByteBuffer answer, boolean legacy)
+    {
+      this.codec = codec;
+      this.answer = answer;
+      this.legacy = legacy;
+    }
+
+    /**
+     * @return the codec chosen, or null if the server supports none of
+     *  the codecs the client offered.
+     */
+    public Codec getCodec()
+    {
+      return codec;
+    }
+
+    /**
+     * @return the answer to send back to the client, to be sent even when
+     *  no codec was chosen, or null for a legacy client.
+     */
+    public ByteBuffer getAnswer()
+    {
+      return answer;
+    }
+
+    /**
+     * @return true if the client predates the handshake.
+     */
+    public boolean isLegacy()
+    {
+      return legacy;
+    }
+  }
+}
+// End of CodecHandshake Class
@@ -0,0 +1,86 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+/**
+* The <code> Codecs </code> class holds the codecs shipped with OCSF.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codec
+*/
+public final class Codecs
+{
+  // CLASS VARIABLES *************************************************
+
+  /**
+   * The length-prefixed binary codec.
+   */
+  public static final Codec BINARY = new BinaryCodec();
+
+  /**
+   * The Java object serialization codec.
+   */
+  public static final Codec JAVA = new JavaSerializationCodec();
+
+  /**
+   * The binary codec with per-message compression, using the default
+   * dictionary.
+   */
+  public static final DeflateCodec DEFLATE = new DeflateCodec(
+    DeflateCodec.NAME, DeflateCodec.DEFAULT_DICTIONARY,
+    DeflateCodec.DEFAULT_THRESHOLD);
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Not to be instantiated.
+   */
+  private Codecs() {}
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Returns the codecs clients offer and servers accept unless told
+   * otherwise, in order of preference: binary first, Java serialization
+   * for compatibility, then compression. Compression is thus accepted by
+   * default but only used by clients that offer it first.
+   *
+   * @return a new array of the default codecs.
+   */
+  public static Codec[] defaults()
+  {
+    return new Codec[] {BINARY, JAVA, DEFLATE};
+  }
+
+  /**
+   * Returns the codecs offered by clients that want their connection
+   * compressed, in order of preference.
+   *
+   * @return a new array of the codecs.
+   */
+  public static Codec[] compressed()
+  {
+    return new Codec[] {DEFLATE, BINARY, JAVA};
+  }
+
+  /**
+   * Finds a shipped codec by name.
+   *
+   * @param name the name of the codec.
+   * @return the codec, or null if there is none of that name.
+   */
+  public static Codec forName(String name)
+  {
+    if (BINARY.getName().equals(name))
+      return BINARY;
+    if (JAVA.getName().equals(name))
+      return JAVA;
+    if (DEFLATE.getName().equals(name))
+      return DEFLATE;
+    return null;
+  }
+}
+// End of Codecs Class
@@ -0,0 +1,398 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+/**
+* The <code> DeflateCodec </code> class is the binary codec with per-message
+* compression. Frames are those of <code> BinaryCodec</code>, plus one more
+* type, <code>COMPRESSED</code>, whose payload is the type of the original
+* frame, its payload length as four big-endian bytes, then its payload
+* compressed by <code> Deflater </code> as raw deflate data.<p>
+*
+* Each message is compressed on its own, against a preset dictionary of
+* words common in chat traffic rather than against the messages before it.
+* Short chat lines thus still compress well, and a frame carries no state
+* from one to the next: a broadcast is compressed once and the same frame
+* sent to every recipient. Messages whose payload is below a threshold, or
+* that do not get any smaller, are sent uncompressed.<p>
+*
+* Both ends must use the same dictionary, so a codec built with another
+* dictionary must have another name. Whether a connection is compressed is
+* agreed like any codec, when the client connects; clients ask for it by
+* offering this codec first.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codecs#DEFLATE
+* @see ocsf.codec.BinaryCodec
+*/
+public final class DeflateCodec implements Codec
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The name of the codec using the default dictionary.
+   */
+  public static final String NAME = "deflate";
+
+  /**
+   * The type of a frame holding a compressed frame.
+   */
+  public static final byte COMPRESSED = 5;
+
+  /**
+   * The payload length below which messages are not compressed, unless
+   * told otherwise.
+   */
+  public static final int DEFAULT_THRESHOLD = 64;
+
+  /**
+   * The default dictionary: the strings OCSF chat servers and clients send
+   * most, with the most frequent last, where deflate finds them cheapest.
+   */
+  public static final byte[] DEFAULT_DICTIONARY = (
+    "#sethost #setport #gethost #getport #logoff #quit #rooms #clients "
+    + "Could not send message to server. Invalid command Error: "
+    + "is not logged on. is already in use. Login ID "
+    + "what where when which there their about would could should "
+    + "think know just like really going good thanks please sorry "
+    + "yes no ok lol haha hey hello hi bye see you later "
+    + "#leave #join has joined the room has left the room lobby "
+    + "has logged off. has disconnected. has logged on. "
+    + "#w whispers> to #login "
+    + "the you and that for with this have not are but was "
+    ).getBytes(StandardCharsets.UTF_8);
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The name of the codec.
+   */
+  private final String name;
+
+  /**
+   * The preset dictionary.
+   */
+  private final byte[] dictionary;
+
+  /**
+   * The payload length below which messages are not compressed.
+   */
+  private final int threshold;
+
+  /**
+   * Deflaters not in use. A deflater holds a good deal of native memory,
+   * so they are reused rather than created per message.
+   */
+  private final Queue<Deflater> deflaters =
+    new ConcurrentLinkedQueue<Deflater>();
+
+  /**
+   * The number of payload bytes compressed.
+   */
+  private final LongAdder bytesIn = new LongAdder();
+
+  /**
+   * The number of bytes they were compressed to.
+   */
+  private final LongAdder bytesOut = new LongAdder();
+
+  /**
+   * The encoder shared by all connections.
+   */
+  private final MessageEncoder encoder = new MessageEncoder()
+  {
+    public ByteBuffer header()
+    {
+      return ByteBuffer.allocate(0);
+    }
+
+    public ByteBuffer encode(Object msg) throws IOException
+    {
+      return encodeShared(msg);
+    }
+
+    public void reset() {}
+
+    public void setResetPolicy(ResetPolicy policy) {}
+
+    public int getHandleCount()
+    {
+      return 0;
+    }
+
+    public long getResetCount()
+    {
+      return 0;
+    }
+  };
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a codec with its own dictionary. The default one is
+   * <code>Codecs.DEFLATE</code>.
+   *
+   * @param name the name of the codec, distinct from that of any codec
+   *  using another dictionary.
+   * @param dictionary the preset dictionary, at most 32 KB; see
+   *  <code>trainDictionary</code>.
+   * @param threshold the payload length below which messages are not
+   *  compressed.
+   */
+  public DeflateCodec(String name, byte[] dictionary, int threshold)
+  {
+    if (dictionary.length > 32 * 1024)
+      throw new IllegalArgumentException("dictionary larger than 32 KB");
+
+    this.name = name;
+    this.dictionary = dictionary.clone();
+    this.threshold = Math.max(0, threshold);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the name of the codec.
+   */
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return the encoder, which is stateless and therefore shared.
+   */
+  public MessageEncoder newEncoder()
+  {
+    return encoder;
+  }
+
+  /**
+   * @return a new decoder.
+   */
+  public MessageDecoder newDecoder()
+  {
+    return new Decoder();
+  }
+
+  /**
+   * Encodes a message, compressing it if that is worth it. Frames do not
+   * depend on the frames sent before them, so this is plain encoding.
+   *
+   * @param msg the message.
+   * @return the frame.
+   * @exception IOException if the message cannot be encoded.
+   */
+  public ByteBuffer encodeShared(Object msg) throws IOException
+  {
+    ByteBuffer plain = BinaryCodec.encodeFrame(msg);
+    int length = plain.remaining() - 5;
+
+    // File chunks are mostly compressed already, and streamed uncompressed
+    if (length < threshold || length == 0 || msg instanceof FileChunk)
+      return plain;
+
+    Deflater deflater = deflaters.poll();
+    if (deflater == null)
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    try
+    {
+      deflater.setDictionary(dictionary);
+      deflater.setInput(plain.array(), 5, length);
+      deflater.finish();
+
+      // Not worth it unless the frame gets smaller
+      byte[] compressed = new byte[length];
+      int size = 0;
+
+      while (!deflater.finished() && size < compressed.length)
+        size += deflater.deflate(compressed, size, compressed.length - size);
+
+      if (!deflater.finished() || size + 5 >= length)
+        return plain;
+
+      bytesIn.add(length);
+      bytesOut.add(size);
+
+      ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 5 + size);
+      frame.putInt(1 + 5 + size).put(COMPRESSED)
+        .put(plain.get(4)).putInt(length).put(compressed, 0, size);
+      frame.flip();
+      return frame;
+    }
+    finally
+    {
+      deflater.reset();
+      deflaters.offer(deflater);
+    }
+  }
+
+  /**
+   * @return the number of payload bytes this codec has compressed.
+   */
+  public long getUncompressedBytes()
+  {
+    return bytesIn.sum();
+  }
+
+  /**
+   * @return the number of bytes this codec has compressed them to.
+   */
+  public long getCompressedBytes()
+  {
+    return bytesOut.sum();
+  }
+
+  /**
+   * @return the name of the codec.
+   */
+  public String toString()
+  {
+    return name;
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Builds a dictionary from samples of the traffic to compress: the words
+   * that would save the most bytes, those saving the most placed last.
+   *
+   * @param samples sample messages.
+   * @param maxSize the size of the dictionary, at most 32 KB.
+   * @return the dictionary.
+   */
+  public static byte[] trainDictionary(Iterable<String> samples, int maxSize)
+  {
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+    for (String sample : samples)
+    {
+      for (String word : sample.split("\\s+"))
+      {
+        if (word.length() > 2)
+          counts.merge(word, 1, Integer::sum);
+      }
+    }
+
+    List<String> words = new ArrayList<String>(counts.keySet());
+    words.sort(new Comparator<String>()
+    {
+      public int compare(String a, String b)
+      {
+        return Long.compare((long)counts.get(b) * b.length(),
+          (long)counts.get(a) * a.length());
+      }
+    });
+
+    // Keep the best words that fit, then put the best at the end
+    LinkedList<byte[]> kept = new LinkedList<byte[]>();
+    int size = 0;
+
+    for (String word : words)
+    {
+      byte[] bytes = (word + ' ').getBytes(StandardCharsets.UTF_8);
+
+      if (size + bytes.length > Math.min(maxSize, 32 * 1024))
+        continue;
+
+      kept.addFirst(bytes);
+      size += bytes.length;
+    }
+
+    ByteBuffer dictionary = ByteBuffer.allocate(size);
+    for (byte[] bytes : kept)
+      dictionary.put(bytes);
+
+    return dictionary.array();
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * Reads binary frames, inflating the compressed ones.
+   */
+  private final class Decoder extends BinaryCodec.Decoder
+  {
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * Whether the inflater was ended. Guarded by the inflater's lock.
+     */
+    private boolean closed;
+
+    Object decodeFrame(byte type, byte[] body, int offset, int length)
+      throws IOException, ClassNotFoundException
+    {
+      if (type != COMPRESSED)
+        return super.decodeFrame(type, body, offset, length);
+
+      if (length < 5)
+        throw new StreamCorruptedException("malformed compressed frame");
+
+      byte innerType = body[offset];
+      int inflatedLength = ByteBuffer.wrap(body, offset + 1, 4).getInt();
+      BinaryCodec.checkLength(inflatedLength + 1);
+
+      byte[] inflated = new byte[inflatedLength];
+
+      synchronized (inflater)
+      {
+        if (closed)
+          throw new EOFException("decoder closed");
+
+        try
+        {
+          inflater.reset();
+          inflater.setDictionary(dictionary);
+          inflater.setInput(body, offset + 5, length - 5);
+
+          int size = 0;
+          while (size < inflatedLength && !inflater.finished())
+          {
+            int n = inflater.inflate(inflated, size, inflatedLength - size);
+
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+              break;
+            size += n;
+          }
+
+          if (size != inflatedLength)
+            throw new StreamCorruptedException("truncated compressed frame");
+        }
+        catch (DataFormatException ex)
+        {
+          throw new StreamCorruptedException("malformed compressed frame: "
+            + ex.getMessage());
+        }
+      }
+
+      return super.decodeFrame(innerType, inflated, 0, inflatedLength);
+    }
+
+    /**
+     * Ends the inflater, freeing its native memory now rather than when
+     * it is collected.
+     */
+    public void close()
+    {
+      synchronized (inflater)
+      {
+        closed = true;
+        inflater.end();
+      }
+    }
+  }
+}
+// End of DeflateCodec Class
@@ -0,0 +1,103 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.Serializable;
+
+/**
+* A <code> FileChunk </code> is one piece of a file sent over an OCSF
+* connection. A file is sent as a sequence of chunks tagged with the same
+* transfer ID, each holding the bytes found at some offset in the file, so
+* that a file of any size goes through without ever being held in memory
+* as a whole, and other messages can be sent between its chunks.<p>
+*
+* The binary codecs give chunks a frame type of their own, which lets a
+* server stream them straight out of a file; see
+* <code> ConnectionToClient.sendFile</code>.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.BinaryCodec#FILE_CHUNK
+*/
+public final class FileChunk implements Serializable
+{
+  // CONSTANTS *******************************************************
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The size of the chunks files are cut into.
+   */
+  public static final int SIZE = 64 * 1024;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The transfer the chunk belongs to.
+   */
+  private final int transferID;
+
+  /**
+   * Where the bytes go in the file.
+   */
+  private final long offset;
+
+  /**
+   * The bytes.
+   */
+  private final byte[] data;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a chunk. The bytes are not copied.
+   *
+   * @param transferID the transfer the chunk belongs to.
+   * @param offset where the bytes go in the file.
+   * @param data the bytes.
+   */
+  public FileChunk(int transferID, long offset, byte[] data)
+  {
+    this.transferID = transferID;
+    this.offset = offset;
+    this.data = data;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the transfer the chunk belongs to.
+   */
+  public int getTransferID()
+  {
+    return transferID;
+  }
+
+  /**
+   * @return where the bytes go in the file.
+   */
+  public long getOffset()
+  {
+    return offset;
+  }
+
+  /**
+   * @return the bytes, not copied.
+   */
+  public byte[] getData()
+  {
+    return data;
+  }
+
+  /**
+   * @return a description of the chunk.
+   */
+  public String toString()
+  {
+    return "chunk of transfer " + transferID + " at " + offset + ", "
+      + data.length + " bytes";
+  }
+}
+// End of FileChunk Class
@@ -0,0 +1,235 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+* The <code> JavaSerializationCodec </code> class is the original OCSF wire
+* format: one <code> ObjectOutputStream </code> per direction and
+* connection, opened with the usual stream header. Any serializable object
+* can be sent, at the price of bulky frames and a handle table that grows
+* until the stream is reset. Encoders reset according to their
+* <code> ResetPolicy</code>, <code> ResetPolicy.DEFAULT </code> unless
+* told otherwise.<p>
+*
+* Clients that predate codec negotiation open their object stream straight
+* away; the server recognizes the stream header and uses this codec for
+* them.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codecs#JAVA
+*/
+public final class JavaSerializationCodec implements Codec
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The name of the codec.
+   */
+  public static final String NAME = "java";
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs the codec. Use <code>Codecs.JAVA</code>.
+   */
+  JavaSerializationCodec() {}
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the name of the codec.
+   */
+  public String getName()
+  {
+    return NAME;
+  }
+
+  /**
+   * Creates an encoder with its own object output stream.
+   *
+   * @return a new encoder.
+   * @exception IOException if the stream cannot be created.
+   */
+  public MessageEncoder newEncoder() throws IOException
+  {
+    return new Encoder();
+  }
+
+  /**
+   * Creates a decoder with its own object input stream.
+   *
+   * @return a new decoder.
+   */
+  public MessageDecoder newDecoder()
+  {
+    return new Decoder();
+  }
+
+  /**
+   * Serializes a message into a frame that starts with a stream reset and
+   * carries no stream header, so it reads correctly wherever it falls in
+   * any stream: the receiver clears its handle table on reading it. The
+   * encoder of a connection the frame is queued on must be reset before it
+   * encodes again, so that both handle tables stay aligned.
+   *
+   * @param msg the message.
+   * @return the frame.
+   * @exception IOException if the message cannot be serialized.
+   */
+  public ByteBuffer encodeShared(Object msg) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(ObjectStreamConstants.TC_RESET);
+
+    ObjectOutputStream out = new ObjectOutputStream(bytes)
+    {
+      // The frame is spliced into streams that are already open
+      protected void writeStreamHeader() {}
+    };
+    out.writeObject(msg);
+    out.flush();
+
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  /**
+   * @return the name of the codec.
+   */
+  public String toString()
+  {
+    return NAME;
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * Serializes messages into a buffer, one frame at a time.
+   */
+  private static final class Encoder implements MessageEncoder
+  {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final ObjectOutputStream output;
+    private ResetPolicy policy = ResetPolicy.DEFAULT;
+
+    // What has been sent since the last reset
+    private int messages;
+    private long sentBytes;
+    private int handles;
+
+    private long resets;
+
+    Encoder() throws IOException
+    {
+      // The stream header is left in the buffer for header()
+      output = new ObjectOutputStream(bytes)
+      {
+        {
+          enableReplaceObject(true);
+        }
+
+        // Called once for each object that is not a back reference,
+        // which is an object the handle table takes in
+        protected Object replaceObject(Object obj)
+        {
+          handles++;
+          return obj;
+        }
+      };
+    }
+
+    public ByteBuffer header()
+    {
+      return take();
+    }
+
+    public ByteBuffer encode(Object msg) throws IOException
+    {
+      output.writeObject(msg);
+      output.flush();
+      ByteBuffer frame = take();
+
+      messages++;
+      sentBytes += frame.remaining();
+
+      if (policy.isResetDue(messages, sentBytes, handles))
+        reset();
+
+      return frame;
+    }
+
+    public void reset() throws IOException
+    {
+      // The reset marker goes out in front of the next message
+      output.reset();
+
+      messages = 0;
+      sentBytes = 0;
+      handles = 0;
+      resets++;
+    }
+
+    public void setResetPolicy(ResetPolicy policy)
+    {
+      this.policy = policy;
+    }
+
+    public int getHandleCount()
+    {
+      return handles;
+    }
+
+    public long getResetCount()
+    {
+      return resets;
+    }
+
+    private ByteBuffer take()
+    {
+      ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+      bytes.reset();
+      return frame;
+    }
+  }
+
+  /**
+   * Deserializes messages either from a stream, with an object input
+   * stream reading it directly, or from channel buffers, with an
+   * <code>NioObjectReader</code>.
+   */
+  private static final class Decoder implements MessageDecoder
+  {
+    private ObjectInputStream input;
+    private NioObjectReader reader;
+
+    public Object read(InputStream in)
+      throws IOException, ClassNotFoundException
+    {
+      // Creating the stream reads the peer's stream header
+      if (input == null)
+        input = new ObjectInputStream(in);
+
+      return input.readObject();
+    }
+
+    public Object decode(ByteBuffer in)
+      throws IOException, ClassNotFoundException
+    {
+      if (reader == null)
+        reader = new NioObjectReader();
+
+      return reader.next(in);
+    }
+
+    public void close()
+    {
+      // Nothing is held beyond the stream
+    }
+  }
+}
+// End of JavaSerializationCodec Class
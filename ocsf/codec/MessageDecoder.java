@@ -0,0 +1,56 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+* A <code> MessageDecoder </code> decodes the messages received over one
+* connection. A decoder is used either with a blocking stream, through
+* <code> read</code>, or with the buffers of a non-blocking channel,
+* through <code> decode</code>, but never both.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codec
+*/
+public interface MessageDecoder
+{
+  /**
+   * Returned by <code> decode </code> when the buffer does not yet hold a
+   * complete message.
+   */
+  Object INCOMPLETE = new Object();
+
+  /**
+   * Reads the next message, waiting for it as long as needed.
+   *
+   * @param in the stream to read from; always the same one.
+   * @return the message.
+   * @exception IOException if the stream fails or is corrupted.
+   * @exception ClassNotFoundException if the message's class is unknown.
+   */
+  Object read(InputStream in) throws IOException, ClassNotFoundException;
+
+  /**
+   * Decodes the next message from a buffer. On success the buffer's
+   * position is moved past the message; otherwise it is left untouched.
+   *
+   * @param in the bytes received so far, ready to be read.
+   * @return the message, or <code>INCOMPLETE</code>.
+   * @exception IOException if the stream is corrupted.
+   * @exception ClassNotFoundException if the message's class is unknown.
+   */
+  Object decode(ByteBuffer in) throws IOException, ClassNotFoundException;
+
+  /**
+   * Releases what the decoder holds once its connection is closed. The
+   * stream it reads is left to the connection to close. A message still
+   * being decoded may fail; none is decoded afterwards.
+   */
+  void close();
+}
+// End of MessageDecoder Interface
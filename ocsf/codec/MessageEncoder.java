@@ -0,0 +1,71 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+* A <code> MessageEncoder </code> encodes the messages sent over one
+* connection. It is not thread safe: the connection serializes calls.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.Codec
+*/
+public interface MessageEncoder
+{
+  /**
+   * Returns the bytes that must be sent before the first message, and
+   * forgets them. Called once, right after the handshake.
+   *
+   * @return the header, possibly empty.
+   */
+  ByteBuffer header();
+
+  /**
+   * Encodes one message.
+   *
+   * @param msg the message.
+   * @return the frame holding the message.
+   * @exception IOException if the message cannot be encoded.
+   */
+  ByteBuffer encode(Object msg) throws IOException;
+
+  /**
+   * Forgets whatever the encoder remembers about earlier messages, so that
+   * the next frame can be decoded without them. Has no effect on formats
+   * that remember nothing.
+   *
+   * @exception IOException if the reset cannot be encoded.
+   */
+  void reset() throws IOException;
+
+  /**
+   * Sets when the encoder resets by itself. Has no effect on formats that
+   * remember nothing.
+   *
+   * @param policy the reset policy.
+   */
+  void setResetPolicy(ResetPolicy policy);
+
+  /**
+   * Returns the number of objects the encoder remembers, which the peer's
+   * decoder remembers too: the size of the handle table for Java
+   * serialization. Always 0 for formats that remember nothing.
+   *
+   * @return the number of objects remembered.
+   */
+  int getHandleCount();
+
+  /**
+   * Returns the number of times the encoder has been reset, whether by
+   * its policy or explicitly.
+   *
+   * @return the reset count.
+   */
+  long getResetCount();
+}
+// End of MessageEncoder Interface
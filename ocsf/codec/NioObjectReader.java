@@ -0,0 +1,205 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+* The <code> NioObjectReader </code> class rebuilds the objects written by a
+* peer's <code> ObjectOutputStream </code> from the bytes delivered by a
+* non-blocking channel. Because a read may stop anywhere inside a message,
+* the reader only hands bytes to its <code> ObjectInputStream </code> once
+* it knows that a whole message has been buffered.<p>
+*
+* Message boundaries are found by scanning the serialization type code that
+* starts each message. Strings, nulls and back references, which make up
+* all of the chat traffic, are always delimited exactly. Any other object is
+* decoded from whatever has been buffered and must therefore arrive in a
+* single read.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.JavaSerializationCodec
+*/
+final class NioObjectReader implements ObjectStreamConstants
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * Frame length returned by the scanner when more bytes are needed.
+   */
+  private static final int NEED_MORE = -1;
+
+  /**
+   * Frame length returned by the scanner when the message is not one of
+   * the types it can delimit.
+   */
+  private static final int UNKNOWN = -2;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The stream the object input stream reads from. It is pointed at the
+   * buffer holding the current message while that message is decoded.
+   */
+  private final BufferInputStream source = new BufferInputStream();
+
+  /**
+   * The object input stream, created once the stream header has arrived.
+   * It keeps the handle table shared by all messages of the connection.
+   */
+  private ObjectInputStream input;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Decodes the next message from the buffer. On success the buffer's
+   * position is moved past the message; otherwise it is left untouched.
+   *
+   * @param buffer the bytes received so far, ready to be read.
+   * @return the message, or <code>MessageDecoder.INCOMPLETE</code> if
+   *  more bytes are needed.
+   * @exception IOException if the stream is corrupted.
+   * @exception ClassNotFoundException if the message's class is unknown.
+   */
+  Object next(ByteBuffer buffer) throws IOException, ClassNotFoundException
+  {
+    if (input == null)
+    {
+      if (buffer.remaining() < 4)
+        return MessageDecoder.INCOMPLETE;
+
+      if (buffer.getShort() != STREAM_MAGIC
+        || buffer.getShort() != STREAM_VERSION)
+      {
+        throw new StreamCorruptedException("invalid stream header");
+      }
+
+      input = new ObjectInputStream(source)
+      {
+        // The header has already been checked above
+        protected void readStreamHeader() {}
+      };
+    }
+
+    int length = frameLength(buffer);
+
+    if (length == NEED_MORE)
+      return MessageDecoder.INCOMPLETE;
+
+    int limit = buffer.limit();
+
+    if (length != UNKNOWN)
+      buffer.limit(buffer.position() + length);
+
+    source.buffer = buffer;
+    try
+    {
+      return input.readObject();
+    }
+    catch (EOFException ex)
+    {
+      // Only an undelimited object can run out of bytes, and by then
+      // the input stream has consumed part of it.
+      throw new StreamCorruptedException(
+        "object split across reads: " + ex);
+    }
+    finally
+    {
+      source.buffer = null;
+      buffer.limit(limit);
+    }
+  }
+
+  /**
+   * Works out the length of the message at the buffer's position,
+   * including any stream resets that precede it.
+   *
+   * @param buffer the buffered bytes.
+   * @return the length in bytes, <code>NEED_MORE</code> or
+   *  <code>UNKNOWN</code>.
+   */
+  private static int frameLength(ByteBuffer buffer)
+  {
+    int start = buffer.position();
+    int available = buffer.remaining();
+    int header = 0;
+
+    while (header < available && buffer.get(start + header) == TC_RESET)
+      header++;
+
+    if (header == available)
+      return NEED_MORE;
+
+    long length;
+
+    switch (buffer.get(start + header))
+    {
+      case TC_NULL:
+        length = header + 1;
+        break;
+
+      case TC_REFERENCE:
+        length = header + 5;
+        break;
+
+      case TC_STRING:
+        if (available < header + 3)
+          return NEED_MORE;
+        length = header + 3
+          + (buffer.getShort(start + header + 1) & 0xFFFF);
+        break;
+
+      case TC_LONGSTRING:
+        if (available < header + 9)
+          return NEED_MORE;
+        length = header + 9 + buffer.getLong(start + header + 1);
+        break;
+
+      default:
+        return UNKNOWN;
+    }
+
+    if (length > Integer.MAX_VALUE)
+      return UNKNOWN;
+
+    return length > available ? NEED_MORE : (int)length;
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * An input stream reading the remaining bytes of a byte buffer.
+   * Running out of bytes is reported as the end of the stream.
+   */
+  private static final class BufferInputStream extends InputStream
+  {
+    ByteBuffer buffer;
+
+    public int read()
+    {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    public int read(byte[] b, int off, int len)
+    {
+      if (len == 0)
+        return 0;
+      if (!buffer.hasRemaining())
+        return -1;
+
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    public int available()
+    {
+      return buffer == null ? 0 : buffer.remaining();
+    }
+  }
+}
+// End of NioObjectReader Class
@@ -0,0 +1,68 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+import java.io.Serializable;
+
+/**
+* A <code> Ping </code> measures the round trip between a client and a
+* server. The client sends it stamped with the time it was sent; the
+* server handles it like any other message up to the point where it would
+* be handed to the application, and sends it straight back instead. The
+* time only means something to the client that took it.<p>
+*
+* The binary codecs give pings a frame type of their own.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.BinaryCodec#PING
+* @see ocsf.client.AbstractClient#ping
+*/
+public final class Ping implements Serializable
+{
+  // CONSTANTS *******************************************************
+
+  private static final long serialVersionUID = 1L;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * When the ping was sent, in <code>System.nanoTime</code> terms of the
+   * sender.
+   */
+  private final long sentAt;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a ping.
+   *
+   * @param sentAt when it is sent, in <code>System.nanoTime</code> terms.
+   */
+  public Ping(long sentAt)
+  {
+    this.sentAt = sentAt;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return when the ping was sent, in <code>System.nanoTime</code> terms
+   *  of the sender.
+   */
+  public long getSentAt()
+  {
+    return sentAt;
+  }
+
+  /**
+   * @return a description of the ping.
+   */
+  public String toString()
+  {
+    return "ping sent at " + sentAt;
+  }
+}
+// End of Ping Class
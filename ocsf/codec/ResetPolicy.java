@@ -0,0 +1,196 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.codec;
+
+/**
+* A <code> ResetPolicy </code> decides when an encoder that remembers the
+* messages it has sent forgets them. A Java serialization stream keeps a
+* reference to every object it has written, and its peer's stream keeps a
+* copy of each, until the stream is reset; a connection that lives for
+* weeks therefore leaks on both ends unless it is reset from time to
+* time.<p>
+*
+* The reset is decided by the sending side after each message and takes
+* effect in front of the next one, so the receiving side forgets the same
+* objects at the same point. Encoders that remember nothing ignore the
+* policy.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.codec.MessageEncoder#setResetPolicy
+*/
+public final class ResetPolicy
+{
+  // CLASS VARIABLES *************************************************
+
+  /**
+   * The policy used unless told otherwise: adaptive, with at most 1024
+   * objects or 1 MB of messages remembered.
+   */
+  public static final ResetPolicy DEFAULT = adaptive(1024, 1024 * 1024);
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The number of messages after which to reset, or 0.
+   */
+  private final int maxMessages;
+
+  /**
+   * The number of bytes sent after which to reset, or 0.
+   */
+  private final long maxBytes;
+
+  /**
+   * The number of remembered objects after which to reset, or 0.
+   */
+  private final int maxHandles;
+
+  /**
+   * A description of the policy.
+   */
+  private final String description;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a policy. Use the factory methods.
+   */
+  private ResetPolicy(int maxMessages, long maxBytes, int maxHandles,
+    String description)
+  {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.maxHandles = maxHandles;
+    this.description = description;
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Returns the policy of never resetting by itself, which was the
+   * behaviour of OCSF before reset policies. The stream is then only
+   * reset by <code>forceResetAfterSend</code>.
+   *
+   * @return the policy.
+   */
+  public static ResetPolicy never()
+  {
+    return new ResetPolicy(0, 0, 0, "never");
+  }
+
+  /**
+   * Returns the policy of resetting after every so many messages.
+   *
+   * @param messages the number of messages, at least 1.
+   * @return the policy.
+   */
+  public static ResetPolicy everyMessages(int messages)
+  {
+    if (messages < 1)
+      throw new IllegalArgumentException("messages must be positive");
+
+    return new ResetPolicy(messages, 0, 0,
+      "every " + messages + " messages");
+  }
+
+  /**
+   * Returns the policy of resetting once so many bytes have been sent.
+   *
+   * @param bytes the number of bytes, at least 1.
+   * @return the policy.
+   */
+  public static ResetPolicy everyBytes(long bytes)
+  {
+    if (bytes < 1)
+      throw new IllegalArgumentException("bytes must be positive");
+
+    return new ResetPolicy(0, bytes, 0, "every " + bytes + " bytes");
+  }
+
+  /**
+   * Returns the policy of resetting only when the memory held for the
+   * remembered messages reaches a bound: when the handle table holds a
+   * number of objects, or when the messages sent since the last reset
+   * add up to a number of bytes, whichever comes first. Traffic that keeps
+   * sending the same objects fills the table slowly and is reset rarely,
+   * so it keeps the benefit of back references; traffic made of new
+   * objects is reset as often as needed to keep memory flat.
+   *
+   * @param maxHandles the number of objects, at least 1.
+   * @param maxBytes the number of bytes, at least 1.
+   * @return the policy.
+   */
+  public static ResetPolicy adaptive(int maxHandles, long maxBytes)
+  {
+    if (maxHandles < 1 || maxBytes < 1)
+      throw new IllegalArgumentException("bounds must be positive");
+
+    return new ResetPolicy(0, maxBytes, maxHandles,
+      "adaptive (" + maxHandles + " objects, " + maxBytes + " bytes)");
+  }
+
+  /**
+   * Parses a policy from the form used on command lines:
+   * <code>never</code>, <code>messages N</code>, <code>bytes N</code> or
+   * <code>adaptive OBJECTS BYTES</code>.
+   *
+   * @param words the words of the policy.
+   * @return the policy.
+   * @exception IllegalArgumentException if the words are not a policy.
+   */
+  public static ResetPolicy parse(String[] words)
+  {
+    try
+    {
+      switch (words[0].toLowerCase())
+      {
+        case "never":
+          return never();
+        case "messages":
+          return everyMessages(Integer.parseInt(words[1]));
+        case "bytes":
+          return everyBytes(Long.parseLong(words[1]));
+        case "adaptive":
+          return adaptive(Integer.parseInt(words[1]),
+            Long.parseLong(words[2]));
+      }
+    }
+    catch (RuntimeException ex)
+    {
+      // Reported below
+    }
+
+    throw new IllegalArgumentException("not a reset policy: "
+      + String.join(" ", words));
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Tells whether an encoder should reset, given what it has sent since
+   * it was last reset.
+   *
+   * @param messages the number of messages sent.
+   * @param bytes the number of bytes sent.
+   * @param handles the number of objects remembered.
+   * @return true if the encoder should reset now.
+   */
+  public boolean isResetDue(int messages, long bytes, int handles)
+  {
+    return (maxMessages > 0 && messages >= maxMessages)
+      || (maxBytes > 0 && bytes >= maxBytes)
+      || (maxHandles > 0 && handles >= maxHandles);
+  }
+
+  /**
+   * @return a description of the policy.
+   */
+  public String toString()
+  {
+    return description;
+  }
+}
+// End of ResetPolicy Class
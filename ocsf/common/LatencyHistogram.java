@@ -0,0 +1,264 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.common;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+* A <code> LatencyHistogram </code> records durations, in nanoseconds, and
+* reports their percentiles. Its buckets are log-linear: durations under 32
+* ns have a bucket each, and every doubling above that is split into 16
+* buckets of equal width, so a percentile is never reported more than 1/16
+* above the duration it stands for, from nanoseconds to days. The buckets
+* take a fixed 8 KB whatever is recorded.<p>
+*
+* Recording takes no lock and allocates nothing, so a histogram can be
+* shared by all the threads of a server. Reading it while durations are
+* recorded gives figures that may miss the latest of them. A copy is a
+* histogram of its own; subtracting an earlier copy from a later one gives
+* the durations recorded in between.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+public final class LatencyHistogram
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The number of buckets each doubling is split into.
+   */
+  private static final int SUB_BUCKETS = 16;
+
+  /**
+   * The number of buckets: one per duration under twice
+   * <code>SUB_BUCKETS</code>, then <code>SUB_BUCKETS</code> per doubling
+   * up to the largest long.
+   */
+  private static final int BUCKETS = SUB_BUCKETS * 60;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The number of durations in each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The sum of the durations.
+   */
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * The longest duration.
+   */
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs an empty histogram.
+   */
+  public LatencyHistogram() {}
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Records a duration. Negative durations, which a clock going back
+   * could produce, are recorded as 0.
+   *
+   * @param nanos the duration in nanoseconds.
+   */
+  public void record(long nanos)
+  {
+    if (nanos < 0)
+      nanos = 0;
+
+    counts.incrementAndGet(bucketOf(nanos));
+    sum.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  /**
+   * @return the number of durations recorded.
+   */
+  public long getCount()
+  {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      count += counts.get(i);
+    return count;
+  }
+
+  /**
+   * @return the mean of the durations in nanoseconds, or 0 if there are
+   *  none.
+   */
+  public double getMean()
+  {
+    long count = getCount();
+    return count == 0 ? 0 : (double)sum.sum() / count;
+  }
+
+  /**
+   * @return the longest duration in nanoseconds, or 0 if there are none.
+   */
+  public long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * Returns the duration that a given share of the durations recorded do
+   * not exceed, as the upper bound of its bucket.
+   *
+   * @param percent the share, such as 99.9.
+   * @return the duration in nanoseconds, or 0 if there are none.
+   */
+  public long getPercentile(double percent)
+  {
+    long count = getCount();
+
+    if (count == 0)
+      return 0;
+
+    long rank = (long)Math.ceil(Math.min(100, Math.max(0, percent)) / 100 * count);
+    rank = Math.max(1, rank);
+
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return Math.min(highestIn(i), getMax());
+    }
+    return getMax();
+  }
+
+  /**
+   * Forgets the durations recorded.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+      counts.set(i, 0);
+
+    sum.reset();
+    max.reset();
+  }
+
+  /**
+   * @return a copy of the histogram.
+   */
+  public LatencyHistogram copy()
+  {
+    LatencyHistogram copy = new LatencyHistogram();
+
+    for (int i = 0; i < BUCKETS; i++)
+      copy.counts.set(i, counts.get(i));
+
+    copy.sum.add(sum.sum());
+    copy.max.accumulate(max.get());
+    return copy;
+  }
+
+  /**
+   * Returns the durations recorded since an earlier copy of this
+   * histogram was made. Their maximum is the upper bound of the highest
+   * bucket they fall in.
+   *
+   * @param earlier the earlier copy, or null.
+   * @return a histogram of the durations recorded since.
+   */
+  public LatencyHistogram since(LatencyHistogram earlier)
+  {
+    if (earlier == null)
+      return copy();
+
+    LatencyHistogram difference = new LatencyHistogram();
+    int highest = -1;
+
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      long count = Math.max(0, counts.get(i) - earlier.counts.get(i));
+      difference.counts.set(i, count);
+
+      if (count > 0)
+        highest = i;
+    }
+
+    difference.sum.add(Math.max(0, sum.sum() - earlier.sum.sum()));
+    if (highest >= 0)
+      difference.max.accumulate(Math.min(highestIn(highest), max.get()));
+    return difference;
+  }
+
+  /**
+   * Describes the durations recorded: their number, median, 99th and
+   * 99.9th percentiles and maximum.
+   *
+   * @return the description.
+   */
+  public String toString()
+  {
+    long count = getCount();
+
+    if (count == 0)
+      return "no samples";
+
+    return count + " samples, p50 " + format(getPercentile(50))
+      + ", p99 " + format(getPercentile(99))
+      + ", p99.9 " + format(getPercentile(99.9))
+      + ", max " + format(getMax());
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Formats a duration with a unit suited to its size.
+   *
+   * @param nanos the duration in nanoseconds.
+   * @return the duration, such as "1.25 ms".
+   */
+  public static String format(long nanos)
+  {
+    if (nanos < 1000)
+      return nanos + " ns";
+    if (nanos < 1000000)
+      return String.format(Locale.ROOT, "%.1f us", nanos / 1e3);
+    if (nanos < 1000000000)
+      return String.format(Locale.ROOT, "%.2f ms", nanos / 1e6);
+    return String.format(Locale.ROOT, "%.2f s", nanos / 1e9);
+  }
+
+  /**
+   * @return the bucket of a duration that is not negative.
+   */
+  private static int bucketOf(long nanos)
+  {
+    if (nanos < 2 * SUB_BUCKETS)
+      return (int)nanos;
+
+    // Each doubling above is split into SUB_BUCKETS equal buckets
+    int shift = 63 - Long.numberOfLeadingZeros(nanos) - 4;
+    return shift * SUB_BUCKETS + (int)(nanos >>> shift);
+  }
+
+  /**
+   * @return the longest duration a bucket holds.
+   */
+  private static long highestIn(int bucket)
+  {
+    if (bucket < 2 * SUB_BUCKETS)
+      return bucket;
+
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket - shift * SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+}
+// End of LatencyHistogram Class
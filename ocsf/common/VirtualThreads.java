@@ -0,0 +1,106 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* The <code> VirtualThreads </code> class creates the threads that read from
+* OCSF connections. Virtual threads are used when the running JDK provides
+* them (JDK 21 and later); they are looked up reflectively so that the
+* framework still compiles and runs on older JDKs, where only platform
+* threads are available.<p>
+*
+* A virtual thread blocked in a socket read costs a few kilobytes of heap
+* instead of a platform thread and its stack, which lets the
+* thread-per-connection programming model scale to many more clients.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*/
+public final class VirtualThreads
+{
+  // CLASS VARIABLES *************************************************
+
+  /**
+   * A factory of unstarted virtual threads, or null if the JDK has none.
+   */
+  private static final ThreadFactory VIRTUAL_FACTORY = lookupFactory();
+
+  /**
+   * Numbers the threads created by the factories of this class.
+   */
+  private static final AtomicLong threadCount = new AtomicLong();
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Not to be instantiated.
+   */
+  private VirtualThreads() {}
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * @return true if the running JDK can create virtual threads.
+   */
+  public static boolean isSupported()
+  {
+    return VIRTUAL_FACTORY != null;
+  }
+
+  /**
+   * Returns a factory of unstarted threads named after the given prefix.
+   *
+   * @param prefix the start of the name of each thread.
+   * @param virtual true for virtual threads, false for platform threads.
+   * @return the thread factory.
+   * @exception UnsupportedOperationException if virtual threads are
+   *  asked for but the JDK does not provide them.
+   */
+  public static ThreadFactory factory(final String prefix, boolean virtual)
+  {
+    if (virtual && !isSupported())
+    {
+      throw new UnsupportedOperationException(
+        "virtual threads require JDK 21 or later");
+    }
+
+    final ThreadFactory base = virtual ? VIRTUAL_FACTORY : null;
+
+    return new ThreadFactory()
+    {
+      public Thread newThread(Runnable task)
+      {
+        Thread thread = base == null ? new Thread(task) : base.newThread(task);
+        thread.setName(prefix + threadCount.incrementAndGet());
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Looks up <code>Thread.ofVirtual().factory()</code>.
+   *
+   * @return the factory, or null if the JDK has no virtual threads or
+   *  only provides them as a preview feature that is not enabled.
+   */
+  private static ThreadFactory lookupFactory()
+  {
+    try
+    {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Object builder = ofVirtual.invoke(null);
+      Method factory = ofVirtual.getReturnType().getMethod("factory");
+      return (ThreadFactory)factory.invoke(builder);
+    }
+    catch (Throwable t)
+    {
+      return null;
+    }
+  }
+}
+// End of VirtualThreads Class
@@ -0,0 +1,662 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.history;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+* A <code> HistoryLog </code> keeps the messages of a chat server on disk.
+* Messages are appended to segment files of a fixed size, each mapped into
+* memory, so an append only copies the message into the page cache: it
+* takes no system call and does not wait for the disk. A background thread
+* forces what was appended to disk at a regular interval, a group commit
+* covering every message appended since the last one, and deletes the
+* oldest segments once they are older, or the log larger, than the
+* retention allows.<p>
+*
+* The log remembers where each message is, which messages went to each
+* room and which hold each word, so the last messages of a room, or those
+* matching a search, are read without scanning the log. These indexes are
+* kept in memory: when a log is opened its segments are read once to
+* rebuild them, and a message that was being written when the server
+* stopped is dropped.<p>
+*
+* Segment files are named after the sequence number of their first
+* message. A log directory can only be open in one log at a time.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.history.HistoryRecord
+*/
+public class HistoryLog
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The suffix of segment files.
+   */
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * The largest room or sender name a record can hold, in bytes.
+   */
+  private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The directory of the segment files.
+   */
+  private final Path directory;
+
+  /**
+   * The lock keeping other logs out of the directory.
+   */
+  private final FileLock lock;
+
+  /**
+   * The segments, oldest first. The last one is appended to.
+   */
+  private final ArrayList<LogSegment> segments = new ArrayList<LogSegment>();
+
+  /**
+   * The sequence numbers of the messages of each room, oldest first.
+   */
+  private final HashMap<String, SequenceList> rooms =
+    new HashMap<String, SequenceList>();
+
+  /**
+   * The words and senders of the messages.
+   */
+  private final SearchIndex index = new SearchIndex();
+
+  /**
+   * The size of new segment files.
+   */
+  private int segmentSize;
+
+  /**
+   * The time in milliseconds between group commits. Set to 100 by
+   * default.
+   */
+  private volatile long commitInterval = 100;
+
+  /**
+   * The age in milliseconds past which segments are deleted, or 0 to keep
+   * them whatever their age. Set to 0 by default.
+   */
+  private long maxAge = 0;
+
+  /**
+   * The size in bytes past which the oldest segments are deleted, or 0 to
+   * keep them whatever the size. Set to 0 by default.
+   */
+  private long maxSize = 0;
+
+  /**
+   * The number of group commits that wrote anything.
+   */
+  private long commitCount = 0;
+
+  /**
+   * The thread committing and applying the retention.
+   */
+  private final Thread committer;
+
+  /**
+   * Indicates if the log is closed.
+   */
+  private volatile boolean closed = false;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Opens the log kept in a directory, creating it if needed, and starts
+   * committing. Segments are 64 MB.
+   *
+   * @param directory the directory of the segment files.
+   * @exception IOException if the directory cannot be used or is in use
+   *  by another log.
+   */
+  public HistoryLog(File directory) throws IOException
+  {
+    this(directory, 64 * 1024 * 1024);
+  }
+
+  /**
+   * Opens the log kept in a directory, creating it if needed, and starts
+   * committing.
+   *
+   * @param directory the directory of the segment files.
+   * @param segmentSize the size of new segment files, at least 64 KB.
+   * @exception IOException if the directory cannot be used or is in use
+   *  by another log.
+   */
+  public HistoryLog(File directory, int segmentSize) throws IOException
+  {
+    this.directory = directory.toPath();
+    this.segmentSize = Math.max(64 * 1024, segmentSize);
+    Files.createDirectories(this.directory);
+
+    FileChannel lockChannel = FileChannel.open(this.directory.resolve("lock"),
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try
+    {
+      lock = lockChannel.tryLock();
+    }
+    catch (OverlappingFileLockException ex)
+    {
+      lockChannel.close();
+      throw new IOException("history log " + directory + " already open");
+    }
+
+    if (lock == null)
+    {
+      lockChannel.close();
+      throw new IOException("history log " + directory + " already open");
+    }
+
+    try
+    {
+      openSegments();
+    }
+    catch (IOException ex)
+    {
+      close();
+      throw ex;
+    }
+
+    committer = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        commitLoop();
+      }
+    }, "HistoryLog-committer");
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Appends a message. It reaches the disk with the next group commit.
+   *
+   * @param room the room the message was sent to.
+   * @param sender who sent the message.
+   * @param text the message.
+   * @return the sequence number of the message.
+   * @exception IOException if the log is closed or a new segment cannot
+   *  be created.
+   */
+  public synchronized long append(String room, String sender, String text)
+    throws IOException
+  {
+    if (closed)
+      throw new IOException("history log closed");
+
+    if (room.length() * 3 > MAX_NAME_LENGTH || sender.length() * 3 > MAX_NAME_LENGTH)
+      throw new IllegalArgumentException("room or sender name too long");
+
+    LogSegment segment = segments.get(segments.size() - 1);
+    long sequence = segment.getNextSequence();
+    long time = System.currentTimeMillis();
+
+    HistoryRecord message = new HistoryRecord(sequence, time, room, sender, text);
+    java.nio.ByteBuffer record = LogSegment.encode(message);
+
+    if (!segment.append(record, time))
+    {
+      if (record.remaining() + 4 > segmentSize)
+        throw new IOException("message too large for the history log");
+
+      segment = newSegment(sequence);
+      segment.append(record, time);
+    }
+
+    addToIndexes(message);
+    return sequence;
+  }
+
+  /**
+   * Returns the last messages sent to a room, oldest first.
+   *
+   * @param room the room.
+   * @param count the number of messages wanted.
+   * @return up to that many messages.
+   */
+  public synchronized List<HistoryRecord> getLast(String room, int count)
+  {
+    SequenceList list = rooms.get(room);
+    ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+    if (list == null)
+      return records;
+
+    for (int i = Math.max(0, list.size() - count); i < list.size(); i++)
+    {
+      HistoryRecord record = read(list.get(i));
+      if (record != null)
+        records.add(record);
+    }
+    return records;
+  }
+
+  /**
+   * Returns the last messages sent to a room from a given message on,
+   * oldest first.
+   *
+   * @param room the room.
+   * @param sequence the sequence number of the first message that may be
+   *  returned.
+   * @param count the most messages wanted.
+   * @return up to that many messages.
+   */
+  public synchronized List<HistoryRecord> getSince(String room, long sequence,
+    int count)
+  {
+    SequenceList list = rooms.get(room);
+    ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+    if (list == null)
+      return records;
+
+    int first = list.floor(sequence - 1, list.size() - 1) + 1;
+    for (int i = Math.max(first, list.size() - count); i < list.size(); i++)
+    {
+      HistoryRecord record = read(list.get(i));
+      if (record != null)
+        records.add(record);
+    }
+    return records;
+  }
+
+  /**
+   * Counts the messages sent to a room from a given message on.
+   *
+   * @param room the room.
+   * @param sequence the sequence number of the first message counted.
+   * @return the number of messages.
+   */
+  public synchronized int countSince(String room, long sequence)
+  {
+    SequenceList list = rooms.get(room);
+
+    if (list == null)
+      return 0;
+
+    return list.size() - (list.floor(sequence - 1, list.size() - 1) + 1);
+  }
+
+  /**
+   * Finds the newest messages holding all of some words. Words are the
+   * runs of letters and digits of the text, matched whatever their case.
+   * The search is answered from an index kept in memory; only the
+   * messages found are read from the log.
+   *
+   * @param text the words.
+   * @param sender the login ID of the sender of the messages, or null for
+   *  anyone.
+   * @param limit the most messages wanted.
+   * @return the messages found, newest first.
+   */
+  public List<HistoryRecord> search(String text, String sender, int limit)
+  {
+    // Only the index is locked while searching, so appends go on
+    long[] found = index.search(text, sender, limit);
+
+    ArrayList<HistoryRecord> records = new ArrayList<HistoryRecord>();
+    synchronized (this)
+    {
+      for (long sequence : found)
+      {
+        HistoryRecord record = read(sequence);
+        if (record != null)
+          records.add(record);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Reads a message.
+   *
+   * @param sequence the sequence number of the message.
+   * @return the message, or null if there is no such message, or no
+   *  longer.
+   */
+  public synchronized HistoryRecord read(long sequence)
+  {
+    LogSegment segment = findSegment(sequence);
+
+    if (segment == null || sequence >= segment.getNextSequence())
+      return null;
+
+    return segment.read(sequence);
+  }
+
+  /**
+   * @return the sequence number of the oldest message kept.
+   */
+  public synchronized long getFirstSequence()
+  {
+    return segments.get(0).getFirstSequence();
+  }
+
+  /**
+   * @return the sequence number the next message appended will have.
+   */
+  public synchronized long getNextSequence()
+  {
+    return segments.get(segments.size() - 1).getNextSequence();
+  }
+
+  /**
+   * @return the number of segment files.
+   */
+  public synchronized int getSegmentCount()
+  {
+    return segments.size();
+  }
+
+  /**
+   * @return the size of the segment files together, in bytes.
+   */
+  public synchronized long getSize()
+  {
+    long size = 0;
+    for (LogSegment segment : segments)
+      size += segment.getSize();
+    return size;
+  }
+
+  /**
+   * @return the number of different words in the search index.
+   */
+  public int getWordCount()
+  {
+    return index.getWordCount();
+  }
+
+  /**
+   * @return the number of group commits that wrote anything to disk.
+   */
+  public synchronized long getCommitCount()
+  {
+    return commitCount;
+  }
+
+  /**
+   * Sets the size of the segment files created from now on.
+   *
+   * @param bytes the size in bytes, at least 64 KB.
+   */
+  public synchronized void setSegmentSize(int bytes)
+  {
+    segmentSize = Math.max(64 * 1024, bytes);
+  }
+
+  /**
+   * Sets the time between group commits, which bounds the messages lost if
+   * the machine stops. The default is 100 milliseconds.
+   *
+   * @param milliseconds the time in milliseconds, at least 1.
+   */
+  public void setCommitInterval(long milliseconds)
+  {
+    commitInterval = Math.max(1, milliseconds);
+  }
+
+  /**
+   * Sets how much of the log is kept. Segments are deleted whole, oldest
+   * first, once their last message is older than the maximum age or the
+   * log is larger than its maximum size; the segment being appended to is
+   * always kept.
+   *
+   * @param maxAgeMillis the maximum age in milliseconds, or 0 for none.
+   * @param maxBytes the maximum size in bytes, or 0 for none.
+   */
+  public synchronized void setRetention(long maxAgeMillis, long maxBytes)
+  {
+    maxAge = Math.max(0, maxAgeMillis);
+    maxSize = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Forces the messages appended so far to disk, without waiting for the
+   * next group commit. Appends go on while the disk is written.
+   */
+  public void commit()
+  {
+    ArrayList<LogSegment> dirty = new ArrayList<LogSegment>();
+
+    synchronized (this)
+    {
+      for (LogSegment segment : segments)
+        if (segment.takeDirty())
+          dirty.add(segment);
+
+      if (!dirty.isEmpty())
+        commitCount++;
+    }
+
+    for (LogSegment segment : dirty)
+      segment.force();
+  }
+
+  /**
+   * Commits and closes the log. Has no effect if it is already closed.
+   * The messages appended are written to disk before it returns.
+   */
+  public synchronized void close()
+  {
+    if (closed)
+      return;
+
+    closed = true;
+    notifyAll();
+
+    for (LogSegment segment : segments)
+      segment.close();
+    segments.clear();
+    rooms.clear();
+    index.clear();
+
+    try
+    {
+      lock.channel().close();
+    }
+    catch (IOException ex) {}
+  }
+
+// METHODS TO BE USED FROM WITHIN THE LOG ONLY ----------------------
+
+  /**
+   * Opens the segments found in the directory, or a first one.
+   */
+  private void openSegments() throws IOException
+  {
+    TreeMap<Long, Path> found = new TreeMap<Long, Path>();
+
+    DirectoryStream<Path> files =
+      Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX);
+    try
+    {
+      for (Path file : files)
+      {
+        String name = file.getFileName().toString();
+        try
+        {
+          found.put(Long.valueOf(name.substring(0,
+            name.length() - SEGMENT_SUFFIX.length())), file);
+        }
+        catch (NumberFormatException ex)
+        {
+          // Not a segment
+        }
+      }
+    }
+    finally
+    {
+      files.close();
+    }
+
+    for (Map.Entry<Long, Path> entry : found.entrySet())
+    {
+      // A gap in the numbering means the segments after it are not ours
+      if (!segments.isEmpty() && entry.getKey().longValue()
+        != segments.get(segments.size() - 1).getNextSequence())
+        break;
+
+      // Only the last segment is appended to, so only it needs its full size
+      LogSegment segment = new LogSegment(entry.getValue(), entry.getKey(),
+        entry.getKey().equals(found.lastKey()) ? segmentSize : 0);
+      segments.add(segment);
+
+      for (long s = segment.getFirstSequence(); s < segment.getNextSequence(); s++)
+        addToIndexes(segment.read(s));
+    }
+
+    if (segments.isEmpty())
+      newSegment(0);
+  }
+
+  /**
+   * Adds a message to the index of its room and to the search index.
+   */
+  private void addToIndexes(HistoryRecord record)
+  {
+    SequenceList list = rooms.get(record.getRoom());
+    if (list == null)
+    {
+      list = new SequenceList();
+      rooms.put(record.getRoom(), list);
+    }
+    list.add(record.getSequence());
+
+    index.add(record);
+  }
+
+  /**
+   * Starts a new segment.
+   *
+   * @param firstSequence the sequence number of its first message.
+   * @return the segment.
+   */
+  private LogSegment newSegment(long firstSequence) throws IOException
+  {
+    LogSegment segment = new LogSegment(directory.resolve(
+      String.format("%020d", firstSequence) + SEGMENT_SUFFIX),
+      firstSequence, segmentSize);
+
+    segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * Finds the segment holding a sequence number.
+   *
+   * @return the segment, or null if the number is older than the log.
+   */
+  private LogSegment findSegment(long sequence)
+  {
+    int low = 0;
+    int high = segments.size() - 1;
+
+    while (low <= high)
+    {
+      int middle = (low + high) >>> 1;
+
+      if (segments.get(middle).getFirstSequence() <= sequence)
+        low = middle + 1;
+      else
+        high = middle - 1;
+    }
+    return high < 0 ? null : segments.get(high);
+  }
+
+  /**
+   * Deletes the oldest segments the retention no longer allows.
+   */
+  private void applyRetention()
+  {
+    long now = System.currentTimeMillis();
+    long size = getSize();
+    int deleted = 0;
+
+    while (segments.size() - deleted > 1)
+    {
+      LogSegment oldest = segments.get(deleted);
+
+      boolean tooOld = maxAge > 0 && now - oldest.getLastTime() > maxAge;
+      boolean tooLarge = maxSize > 0 && size > maxSize;
+
+      if (!tooOld && !tooLarge)
+        break;
+
+      oldest.delete();
+      size -= oldest.getSize();
+      deleted++;
+    }
+
+    if (deleted == 0)
+      return;
+
+    segments.subList(0, deleted).clear();
+
+    long first = segments.get(0).getFirstSequence();
+    Iterator<SequenceList> lists = rooms.values().iterator();
+    while (lists.hasNext())
+    {
+      SequenceList list = lists.next();
+      list.removeBefore(first);
+
+      if (list.size() == 0)
+        lists.remove();
+    }
+
+    index.removeBefore(first);
+  }
+
+  /**
+   * Commits and applies the retention at every interval until the log is
+   * closed. Run by the committer thread.
+   */
+  private void commitLoop()
+  {
+    while (true)
+    {
+      synchronized (this)
+      {
+        try
+        {
+          wait(commitInterval);
+        }
+        catch (InterruptedException ex)
+        {
+          return;
+        }
+
+        if (closed)
+          return;
+      }
+
+      // The disk is written without the lock, so appends do not wait for it
+      commit();
+
+      synchronized (this)
+      {
+        if (closed)
+          return;
+
+        applyRetention();
+      }
+    }
+  }
+}
+// End of HistoryLog Class
@@ -0,0 +1,122 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.history;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+* A <code> HistoryRecord </code> is one message kept in a history log: what
+* was said, by whom, in which room and when, numbered by its place in the
+* log.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.history.HistoryLog
+*/
+public final class HistoryRecord
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The sequence number of the record in its log.
+   */
+  private final long sequence;
+
+  /**
+   * When the message was sent, in milliseconds since the epoch.
+   */
+  private final long time;
+
+  /**
+   * The room the message was sent to.
+   */
+  private final String room;
+
+  /**
+   * Who sent the message.
+   */
+  private final String sender;
+
+  /**
+   * The message.
+   */
+  private final String text;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a record.
+   *
+   * @param sequence the sequence number of the record in its log.
+   * @param time when the message was sent, in milliseconds since the
+   *  epoch.
+   * @param room the room the message was sent to.
+   * @param sender who sent the message.
+   * @param text the message.
+   */
+  public HistoryRecord(long sequence, long time, String room, String sender,
+    String text)
+  {
+    this.sequence = sequence;
+    this.time = time;
+    this.room = room;
+    this.sender = sender;
+    this.text = text;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the sequence number of the record in its log.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * @return when the message was sent, in milliseconds since the epoch.
+   */
+  public long getTime()
+  {
+    return time;
+  }
+
+  /**
+   * @return the room the message was sent to.
+   */
+  public String getRoom()
+  {
+    return room;
+  }
+
+  /**
+   * @return who sent the message.
+   */
+  public String getSender()
+  {
+    return sender;
+  }
+
+  /**
+   * @return the message.
+   */
+  public String getText()
+  {
+    return text;
+  }
+
+  /**
+   * @return the record as shown to users: the time, the sender and the
+   *  message.
+   */
+  public String toString()
+  {
+    return "[" + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(time))
+      + "] " + sender + "> " + text;
+  }
+}
+// End of HistoryRecord Class
@@ -0,0 +1,365 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.history;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+* A <code> LogSegment </code> is one file of a history log, mapped into
+* memory as a whole. Records are appended one after the other, each as its
+* length, a checksum of its body and the body: sequence number, time, room,
+* sender and text. The rest of the file is zeros, so a zero length marks
+* the end of the records.<p>
+*
+* The segment remembers where each of its records starts, so any record
+* is read without scanning. Segments are only used while holding the lock
+* of their log.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.history.HistoryLog
+*/
+final class LogSegment
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The length of the part of a record before its body: length and
+   * checksum.
+   */
+  static final int RECORD_HEADER_LENGTH = 8;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The file.
+   */
+  private final Path path;
+
+  /**
+   * The channel the file was mapped through.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The mapping of the whole file.
+   */
+  private final MappedByteBuffer map;
+
+  /**
+   * The sequence number of the first record of the segment.
+   */
+  private final long firstSequence;
+
+  /**
+   * Where each record starts, in order.
+   */
+  private int[] offsets = new int[1024];
+
+  /**
+   * The number of records.
+   */
+  private int count = 0;
+
+  /**
+   * Where the next record will be appended.
+   */
+  private int writePosition = 0;
+
+  /**
+   * When the last record was sent, or 0 if there is none.
+   */
+  private long lastTime = 0;
+
+  /**
+   * Indicates if records have been appended since the segment was last
+   * forced to disk.
+   */
+  private boolean dirty = false;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Opens a segment, creating it if needed, and finds its records. A
+   * record that is cut short or does not match its checksum ends the
+   * segment, as does one out of sequence: it was being written when the
+   * server stopped.
+   *
+   * @param path the file.
+   * @param firstSequence the sequence number of the first record.
+   * @param size the size of a new file.
+   * @exception IOException if the file cannot be opened or mapped.
+   */
+  LogSegment(Path path, long firstSequence, int size) throws IOException
+  {
+    this.path = path;
+    this.firstSequence = firstSequence;
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+      StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    try
+    {
+      long length = Math.max(channel.size(), size);
+      this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        Math.min(length, Integer.MAX_VALUE));
+    }
+    catch (IOException ex)
+    {
+      channel.close();
+      throw ex;
+    }
+
+    while (recover()) {}
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the sequence number of the first record of the segment.
+   */
+  long getFirstSequence()
+  {
+    return firstSequence;
+  }
+
+  /**
+   * @return the sequence number the next record appended will have.
+   */
+  long getNextSequence()
+  {
+    return firstSequence + count;
+  }
+
+  /**
+   * @return the number of records.
+   */
+  int getCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return when the last record was sent, or 0 if there is none.
+   */
+  long getLastTime()
+  {
+    return lastTime;
+  }
+
+  /**
+   * @return the size of the file.
+   */
+  long getSize()
+  {
+    return map.capacity();
+  }
+
+  /**
+   * Appends a record, copying it into the mapped file. It reaches the disk
+   * when the segment is next forced.
+   *
+   * @param record the encoded record, as made by <code>encode</code>.
+   * @param time when the message was sent.
+   * @return false if the record does not fit in what is left of the file.
+   */
+  boolean append(ByteBuffer record, long time)
+  {
+    // Room is left for the zero length ending the records
+    if (writePosition + record.remaining() + 4 > map.capacity())
+      return false;
+
+    if (count == offsets.length)
+      offsets = Arrays.copyOf(offsets, 2 * count);
+
+    ByteBuffer target = map.duplicate();
+    target.position(writePosition);
+    target.put(record.duplicate());
+
+    offsets[count++] = writePosition;
+    writePosition += record.remaining();
+    lastTime = time;
+    dirty = true;
+    return true;
+  }
+
+  /**
+   * Reads a record.
+   *
+   * @param sequence the sequence number of the record, within the
+   *  segment.
+   * @return the record.
+   */
+  HistoryRecord read(long sequence)
+  {
+    int offset = offsets[(int)(sequence - firstSequence)];
+    int length = map.getInt(offset);
+    return decode(slice(offset + RECORD_HEADER_LENGTH, length));
+  }
+
+  /**
+   * Marks the records appended so far as being written to disk.
+   *
+   * @return true if records have been appended since the last call, and
+   *  so the segment must be forced.
+   */
+  boolean takeDirty()
+  {
+    boolean wasDirty = dirty;
+    dirty = false;
+    return wasDirty;
+  }
+
+  /**
+   * Writes the mapped file to disk. Appends may go on meanwhile; those
+   * may or may not be written.
+   */
+  void force()
+  {
+    map.force();
+  }
+
+  /**
+   * Closes the segment, first forcing it to disk.
+   */
+  void close()
+  {
+    if (takeDirty())
+      force();
+
+    try
+    {
+      channel.close();
+    }
+    catch (IOException ex) {}
+  }
+
+  /**
+   * Closes the segment and deletes its file.
+   */
+  void delete()
+  {
+    try
+    {
+      channel.close();
+      Files.deleteIfExists(path);
+    }
+    catch (IOException ex) {}
+  }
+
+  /**
+   * Checks the record at the write position and takes it in if it is
+   * sound.
+   *
+   * @return true if a record was found.
+   */
+  private boolean recover()
+  {
+    if (writePosition + RECORD_HEADER_LENGTH > map.capacity())
+      return false;
+
+    int length = map.getInt(writePosition);
+    if (length < 16 || writePosition + RECORD_HEADER_LENGTH + length
+      > map.capacity() - 4)
+      return false;
+
+    CRC32 crc = new CRC32();
+    crc.update(slice(writePosition + RECORD_HEADER_LENGTH, length));
+    if ((int)crc.getValue() != map.getInt(writePosition + 4))
+      return false;
+
+    HistoryRecord record =
+      decode(slice(writePosition + RECORD_HEADER_LENGTH, length));
+    if (record.getSequence() != getNextSequence())
+      return false;
+
+    if (count == offsets.length)
+      offsets = Arrays.copyOf(offsets, 2 * count);
+
+    offsets[count++] = writePosition;
+    writePosition += RECORD_HEADER_LENGTH + length;
+    lastTime = record.getTime();
+    return true;
+  }
+
+  /**
+   * Returns part of the mapped file.
+   *
+   * @param offset where the part starts.
+   * @param length the length of the part.
+   * @return a buffer sharing the part, ready to be read.
+   */
+  private ByteBuffer slice(int offset, int length)
+  {
+    ByteBuffer part = map.duplicate();
+    part.limit(offset + length).position(offset);
+    return part.slice();
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Encodes a record as it is stored.
+   *
+   * @param record the record.
+   * @return the bytes, ready to be read.
+   */
+  static ByteBuffer encode(HistoryRecord record)
+  {
+    byte[] room = record.getRoom().getBytes(StandardCharsets.UTF_8);
+    byte[] sender = record.getSender().getBytes(StandardCharsets.UTF_8);
+    byte[] text = record.getText().getBytes(StandardCharsets.UTF_8);
+
+    int length = 8 + 8 + 2 + room.length + 2 + sender.length + text.length;
+    ByteBuffer bytes = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+
+    bytes.putInt(length).putInt(0)
+      .putLong(record.getSequence()).putLong(record.getTime())
+      .putShort((short)room.length).put(room)
+      .putShort((short)sender.length).put(sender)
+      .put(text);
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes.array(), RECORD_HEADER_LENGTH, length);
+    bytes.putInt(4, (int)crc.getValue());
+
+    bytes.flip();
+    return bytes;
+  }
+
+  /**
+   * Decodes the body of a stored record.
+   *
+   * @param body the body.
+   * @return the record.
+   */
+  static HistoryRecord decode(ByteBuffer body)
+  {
+    long sequence = body.getLong();
+    long time = body.getLong();
+    String room = readString(body, body.getShort() & 0xFFFF);
+    String sender = readString(body, body.getShort() & 0xFFFF);
+    String text = readString(body, body.remaining());
+
+    return new HistoryRecord(sequence, time, room, sender, text);
+  }
+
+  /**
+   * Reads UTF-8 text.
+   */
+  private static String readString(ByteBuffer body, int length)
+  {
+    byte[] bytes = new byte[length];
+    body.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
+// End of LogSegment Class
@@ -0,0 +1,249 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.history;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+* A <code> Mailboxes </code> keeps, for each user who is offline, what to
+* give them when they come back: where they left the conversation, and the
+* messages sent to them alone meanwhile.<p>
+*
+* Each user has one small file, created when they leave and removed when
+* they collect it, so a user has a mailbox exactly while they are offline.
+* The file is appended to in the record format of the history log. Where
+* they left is recorded as the room they were in and the sequence number
+* the history log had reached, so messages broadcast to the room are not
+* copied into every mailbox: they are read back from the history log. Each
+* mailbox is capped in size; messages that do not fit are refused.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.history.HistoryLog
+*/
+public class Mailboxes
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The suffix of mailbox files.
+   */
+  private static final String MAILBOX_SUFFIX = ".box";
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The directory of the mailbox files.
+   */
+  private final Path directory;
+
+  /**
+   * The largest size of a mailbox file, in bytes.
+   */
+  private final int maxMailboxSize;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Opens the mailboxes kept in a directory, creating it if needed.
+   *
+   * @param directory the directory of the mailbox files.
+   * @param maxMailboxSize the largest size of a mailbox, in bytes.
+   * @exception IOException if the directory cannot be created.
+   */
+  public Mailboxes(File directory, int maxMailboxSize) throws IOException
+  {
+    this.directory = directory.toPath();
+    this.maxMailboxSize = maxMailboxSize;
+    Files.createDirectories(this.directory);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Records that a user left, creating their mailbox if they have none.
+   *
+   * @param user the login ID of the user.
+   * @param room the room they were in, or null if none.
+   * @param sequence the sequence number the history log will give its next
+   *  message, or -1 if there is no history log.
+   * @exception IOException if the mailbox cannot be written.
+   */
+  public synchronized void depart(String user, String room, long sequence)
+    throws IOException
+  {
+    // A departure is a record without a sender
+    append(user, new HistoryRecord(sequence, System.currentTimeMillis(),
+      room == null ? "" : room, "", ""), true);
+  }
+
+  /**
+   * Puts a message in the mailbox of a user, if they have one.
+   *
+   * @param user the login ID of the user.
+   * @param sender the login ID of the sender.
+   * @param text the message.
+   * @return false if the user has no mailbox, being online or unknown.
+   * @exception IOException if the mailbox is full or cannot be written.
+   */
+  public synchronized boolean post(String user, String sender, String text)
+    throws IOException
+  {
+    if (!Files.exists(file(user)))
+      return false;
+
+    append(user, new HistoryRecord(0, System.currentTimeMillis(), "",
+      sender, text), false);
+    return true;
+  }
+
+  /**
+   * Removes the mailbox of a user and returns what it held.
+   *
+   * @param user the login ID of the user.
+   * @return the contents of the mailbox, or null if the user had none.
+   * @exception IOException if the mailbox cannot be read.
+   */
+  public synchronized Contents collect(String user) throws IOException
+  {
+    Path path = file(user);
+    byte[] bytes;
+
+    try
+    {
+      bytes = Files.readAllBytes(path);
+    }
+    catch (NoSuchFileException ex)
+    {
+      return null;
+    }
+
+    Contents contents = new Contents();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    while (buffer.remaining() >= LogSegment.RECORD_HEADER_LENGTH)
+    {
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+
+      // A record cut short by a crash ends the mailbox
+      if (length < 0 || length > buffer.remaining())
+        break;
+
+      CRC32 crc = new CRC32();
+      crc.update(bytes, buffer.position(), length);
+      if ((int)crc.getValue() != checksum)
+        break;
+
+      ByteBuffer body = buffer.slice();
+      body.limit(length);
+      buffer.position(buffer.position() + length);
+
+      HistoryRecord record = LogSegment.decode(body);
+      if (record.getSender().isEmpty())
+      {
+        if (contents.since < 0 || record.getSequence() < contents.since)
+        {
+          // The earliest departure not yet collected is where to resume
+          contents.room = record.getRoom().isEmpty() ? null : record.getRoom();
+          contents.since = record.getSequence();
+        }
+      }
+      else
+        contents.messages.add(record);
+    }
+
+    Files.deleteIfExists(path);
+    return contents;
+  }
+
+  /**
+   * Appends a record to the mailbox of a user.
+   *
+   * @param create true to create the mailbox if the user has none.
+   */
+  private void append(String user, HistoryRecord record, boolean create)
+    throws IOException
+  {
+    ByteBuffer bytes = LogSegment.encode(record);
+
+    FileChannel channel = create
+      ? FileChannel.open(file(user), StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND)
+      : FileChannel.open(file(user), StandardOpenOption.APPEND);
+
+    try
+    {
+      if (!create && channel.size() + bytes.remaining() > maxMailboxSize)
+        throw new IOException("mailbox of " + user + " is full");
+
+      while (bytes.hasRemaining())
+        channel.write(bytes);
+    }
+    finally
+    {
+      channel.close();
+    }
+  }
+
+  /**
+   * @return the mailbox file of a user, named after the hexadecimal
+   *  digits of the user's login ID, so any login ID makes a valid name.
+   */
+  private Path file(String user)
+  {
+    StringBuilder name = new StringBuilder();
+    for (byte b : user.getBytes(StandardCharsets.UTF_8))
+      name.append(Character.forDigit((b >> 4) & 0xF, 16))
+        .append(Character.forDigit(b & 0xF, 16));
+
+    return directory.resolve(name + MAILBOX_SUFFIX);
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * What a user's mailbox held.
+   */
+  public static final class Contents
+  {
+    private String room;
+    private long since = -1;
+    private final ArrayList<HistoryRecord> messages =
+      new ArrayList<HistoryRecord>();
+
+    /**
+     * @return the room the user was in when they left, or null if none.
+     */
+    public String getRoom()
+    {
+      return room;
+    }
+
+    /**
+     * @return the sequence number of the first message of the history
+     *  log sent after the user left, or -1 if unknown.
+     */
+    public long getSince()
+    {
+      return since;
+    }
+
+    /**
+     * @return the messages sent to the user alone, oldest first.
+     */
+    public List<HistoryRecord> getMessages()
+    {
+      return messages;
+    }
+  }
+}
+// End of Mailboxes Class
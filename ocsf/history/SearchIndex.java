@@ -0,0 +1,232 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.history;
+
+import java.util.*;
+
+/**
+* A <code> SearchIndex </code> is an inverted index of the messages of a
+* history log: for each word, and for each sender, the sequence numbers of
+* the messages holding it. A search intersects the lists of its words,
+* walking them from the newest message back, so the most recent matches
+* are found first and the search stops once it has enough of them.<p>
+*
+* Words are the runs of letters and digits of a message, in lower case.
+* The index is kept in memory as the log is appended to, and rebuilt from
+* the log when it is opened.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.history.HistoryLog#search
+*/
+final class SearchIndex
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The longest word indexed. Longer runs are cut to this length.
+   */
+  static final int MAX_WORD_LENGTH = 32;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The messages holding each word.
+   */
+  private final HashMap<String, SequenceList> words =
+    new HashMap<String, SequenceList>();
+
+  /**
+   * The messages of each sender.
+   */
+  private final HashMap<String, SequenceList> senders =
+    new HashMap<String, SequenceList>();
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Indexes a message, newer than all those indexed so far.
+   *
+   * @param record the message.
+   */
+  synchronized void add(HistoryRecord record)
+  {
+    long sequence = record.getSequence();
+
+    for (String word : words(record.getText()))
+      list(words, word).add(sequence);
+
+    list(senders, record.getSender()).add(sequence);
+  }
+
+  /**
+   * Finds the newest messages holding all of some words.
+   *
+   * @param text the words, as typed by the user.
+   * @param sender the sender of the messages, or null for anyone.
+   * @param limit the most messages wanted.
+   * @return the sequence numbers of the messages, newest first.
+   */
+  synchronized long[] search(String text, String sender, int limit)
+  {
+    ArrayList<SequenceList> lists = new ArrayList<SequenceList>();
+
+    for (String word : words(text))
+    {
+      SequenceList list = words.get(word);
+      if (list == null)
+        return new long[0];
+      lists.add(list);
+    }
+
+    if (sender != null)
+    {
+      SequenceList list = senders.get(sender);
+      if (list == null)
+        return new long[0];
+      lists.add(list);
+    }
+
+    if (lists.isEmpty() || limit <= 0)
+      return new long[0];
+
+    // The rarest word drives the walk; the others are looked up in it
+    Collections.sort(lists, new Comparator<SequenceList>()
+    {
+      public int compare(SequenceList a, SequenceList b)
+      {
+        return a.size() - b.size();
+      }
+    });
+
+    int[] last = new int[lists.size()];
+    for (int i = 0; i < last.length; i++)
+      last[i] = lists.get(i).size() - 1;
+
+    long[] found = new long[Math.min(limit, lists.get(0).size())];
+    int count = 0;
+
+    while (count < found.length && last[0] >= 0)
+    {
+      long candidate = lists.get(0).get(last[0]);
+      boolean everywhere = true;
+
+      for (int i = 1; i < last.length; i++)
+      {
+        last[i] = lists.get(i).floor(candidate, last[i]);
+
+        if (last[i] < 0)
+          return Arrays.copyOf(found, count);
+
+        long other = lists.get(i).get(last[i]);
+        if (other != candidate)
+        {
+          // Skip the driver back to what the other list has next
+          last[0] = lists.get(0).floor(other, last[0]);
+          everywhere = false;
+          break;
+        }
+      }
+
+      if (everywhere)
+      {
+        found[count++] = candidate;
+        last[0]--;
+      }
+    }
+    return Arrays.copyOf(found, count);
+  }
+
+  /**
+   * Forgets the messages older than a given one.
+   *
+   * @param sequence the sequence number of the oldest message kept.
+   */
+  synchronized void removeBefore(long sequence)
+  {
+    removeBefore(words, sequence);
+    removeBefore(senders, sequence);
+  }
+
+  /**
+   * @return the number of different words indexed.
+   */
+  synchronized int getWordCount()
+  {
+    return words.size();
+  }
+
+  /**
+   * Forgets every message.
+   */
+  synchronized void clear()
+  {
+    words.clear();
+    senders.clear();
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Splits text into the words indexed.
+   *
+   * @param text the text.
+   * @return its different words, in lower case.
+   */
+  static Set<String> words(String text)
+  {
+    LinkedHashSet<String> found = new LinkedHashSet<String>();
+    int length = text.length();
+    int i = 0;
+
+    while (i < length)
+    {
+      while (i < length && !Character.isLetterOrDigit(text.charAt(i)))
+        i++;
+
+      int start = i;
+      while (i < length && Character.isLetterOrDigit(text.charAt(i)))
+        i++;
+
+      if (i > start)
+        found.add(text.substring(start, Math.min(i, start + MAX_WORD_LENGTH))
+          .toLowerCase(Locale.ROOT));
+    }
+    return found;
+  }
+
+  /**
+   * Finds the list of a key, adding an empty one if there is none.
+   */
+  private static SequenceList list(HashMap<String, SequenceList> lists,
+    String key)
+  {
+    SequenceList list = lists.get(key);
+    if (list == null)
+    {
+      list = new SequenceList();
+      lists.put(key, list);
+    }
+    return list;
+  }
+
+  /**
+   * Removes old sequence numbers from lists, and the lists left empty.
+   */
+  private static void removeBefore(HashMap<String, SequenceList> lists,
+    long sequence)
+  {
+    Iterator<SequenceList> it = lists.values().iterator();
+    while (it.hasNext())
+    {
+      SequenceList list = it.next();
+      list.removeBefore(sequence);
+
+      if (list.size() == 0)
+        it.remove();
+    }
+  }
+}
+// End of SearchIndex Class
@@ -0,0 +1,139 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.history;
+
+/**
+* A <code> SequenceList </code> is a growing list of sequence numbers of a
+* history log, in increasing order: the messages of a room, or those
+* holding a word. Numbers are kept as four bytes each, relative to the first
+* one added, since a list may hold one entry for most messages of the log.
+* The oldest numbers are removed as the log deletes its oldest messages.<p>
+*
+* A list is only used while holding the lock of its owner.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.history.HistoryLog
+*/
+final class SequenceList
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The sequence number the entries are relative to.
+   */
+  private long base = -1;
+
+  /**
+   * The entries, from <code>start</code> up to <code>end</code>.
+   */
+  private int[] entries = new int[4];
+
+  /**
+   * Where the first entry is.
+   */
+  private int start = 0;
+
+  /**
+   * Where the next entry goes.
+   */
+  private int end = 0;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Adds a sequence number, larger than the last one added. A number
+   * equal to the last one is ignored.
+   *
+   * @param sequence the sequence number.
+   */
+  void add(long sequence)
+  {
+    if (base < 0)
+      base = sequence;
+
+    if (sequence - base > Integer.MAX_VALUE)
+      throw new IllegalStateException("sequence list out of range");
+
+    if (end > start && entries[end - 1] == (int)(sequence - base))
+      return;
+
+    if (end == entries.length)
+    {
+      // Make room by dropping what was removed, or by growing
+      int size = end - start;
+      int[] grown = size * 2 > entries.length
+        ? new int[entries.length * 2] : entries;
+      System.arraycopy(entries, start, grown, 0, size);
+      entries = grown;
+      start = 0;
+      end = size;
+    }
+    entries[end++] = (int)(sequence - base);
+  }
+
+  /**
+   * @return the number of sequence numbers.
+   */
+  int size()
+  {
+    return end - start;
+  }
+
+  /**
+   * @param index the place of the number in the list, oldest first.
+   * @return the sequence number.
+   */
+  long get(int index)
+  {
+    return base + entries[start + index];
+  }
+
+  /**
+   * Finds the largest number no larger than a given one, looking no
+   * further than a given place.
+   *
+   * @param sequence the given number.
+   * @param last the last place to look at.
+   * @return the place of the number found, or -1 if there is none.
+   */
+  int floor(long sequence, int last)
+  {
+    int low = 0;
+    int high = last;
+
+    while (low <= high)
+    {
+      int middle = (low + high) >>> 1;
+
+      if (get(middle) <= sequence)
+        low = middle + 1;
+      else
+        high = middle - 1;
+    }
+    return high;
+  }
+
+  /**
+   * Removes the numbers smaller than a given one.
+   *
+   * @param sequence the given number.
+   */
+  void removeBefore(long sequence)
+  {
+    start += floor(sequence - 1, size() - 1) + 1;
+
+    // A list mostly removed gives its memory back
+    if (size() < entries.length / 4 && entries.length > 4)
+    {
+      int[] shrunk = new int[Math.max(4, size() * 2)];
+      System.arraycopy(entries, start, shrunk, 0, size());
+      end = size();
+      start = 0;
+      entries = shrunk;
+    }
+  }
+}
+// End of SequenceList Class
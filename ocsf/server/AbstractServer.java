@@ -5,14 +5,34 @@
 package ocsf.server;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.*;
 
+import ocsf.codec.Codec;
+import ocsf.codec.Codecs;
+import ocsf.codec.Ping;
+import ocsf.codec.ResetPolicy;
+import ocsf.common.VirtualThreads;
+
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
 * it creates a new <code> ConnectionToClient </code> instance which
-* runs as a thread. When a client is thus connected to the
+* reads from the client on a thread of its own. When a client is thus connected to the
 * server, the two programs can then exchange <code> Object </code>
 * instances.<p>
 *
@@ -23,6 +43,18 @@ import java.io.*;
 * Several public service methods are provided to applications that use
 * this framework, and several hook methods are also available<p>
 *
+* The way connections are serviced is chosen at construction time through
+* a <code> ServerEngine</code>. By default each client gets its own platform
+* thread; the <code> VIRTUAL_THREAD </code> engine uses JDK virtual threads
+* instead, and the <code> NIO_SELECTOR </code> engine multiplexes all clients
+* over a few selector threads, with the same hooks and service methods.<p>
+*
+* By default messages from all clients are handled one at a time. In
+* concurrent dispatch mode, messages from different clients are handled in
+* parallel while those of any one client keep their order; the concrete
+* subclass must then make <code> handleMessageFromClient </code> safe to call
+* from several threads.<p>
+*
 * Project Name: OCSF (Object Client-Server Framework)<p>
 *
 * @author Dr Robert Lagani&egrave;re
@@ -31,6 +63,7 @@ import java.io.*;
 * @author Paul Holden
 * @version February 2001 (2.12)
 * @see ocsf.server.ConnectionToClient
+* @see ocsf.server.ServerEngine
 */
 public abstract class AbstractServer implements Runnable
 {
@@ -68,10 +101,83 @@ public abstract class AbstractServer implements Runnable
   private int backlog = 10;
 
   /**
-   * The thread group associated with client threads. Each member of the
-   * thread group is a <code> ConnectionToClient </code>.
+   * Indicates if messages from different clients are handled in parallel
+   * instead of one at a time. Set to false by default.
+   */
+  private volatile boolean concurrentDispatch = false;
+
+  /**
+   * The threads handling the messages of channel connections in concurrent
+   * dispatch mode, created when first needed.
+   */
+  private ExecutorService dispatchExecutor;
+
+  /**
+   * The maximum number of messages that may wait to be written to any
+   * one client. Set to 1000 by default.
+   */
+  private int outboundQueueCapacity = 1000;
+
+  /**
+   * What happens to a message sent to a client whose outbound queue is
+   * full. Set to <code>REJECT</code> by default.
+   */
+  private volatile SlowConsumerPolicy slowConsumerPolicy =
+    SlowConsumerPolicy.REJECT;
+
+  /**
+   * The size in bytes of the spill file of a client under the
+   * <code>SPILL_TO_DISK</code> policy. Set to 64 MB by default.
+   */
+  private int spillFileCapacity = 64 * 1024 * 1024;
+
+  /**
+   * The codecs the server accepts, in order of preference. Set to the
+   * binary codec and Java serialization by default.
+   */
+  private volatile Codec[] codecs = Codecs.defaults();
+
+  /**
+   * When the encoders of the connections reset by themselves. Set to
+   * <code>ResetPolicy.DEFAULT</code> by default.
+   */
+  private volatile ResetPolicy resetPolicy = ResetPolicy.DEFAULT;
+
+  /**
+   * How long, in nanoseconds, a connection may hold queued output back
+   * waiting for more to write in the same call. Set to 0 by default.
+   */
+  private volatile long maxWriteDelay = 0;
+
+  /**
+   * What the server has done so far.
+   */
+  private final ServerMetrics metrics = new ServerMetrics(this);
+
+  /**
+   * Runs the writer tasks of threaded connections, created when first
+   * needed.
+   */
+  private Executor writerExecutor;
+
+  /**
+   * The connections with the clients currently connected. A connection is
+   * added when it is accepted and removed when it is closed or its reader
+   * thread ends.
+   */
+  private final ConnectionRegistry clientConnections =
+    new ConnectionRegistry(metrics);
+
+  /**
+   * The rooms the connections are members of.
    */
-  private ThreadGroup clientThreadGroup;
+  private final RoomIndex rooms = new RoomIndex(clientConnections);
+
+  /**
+   * Creates the reader threads of the threaded engines, or null for the
+   * <code>NIO_SELECTOR</code> engine.
+   */
+  private final ThreadFactory clientThreadFactory;
 
   /**
    * Indicates if the listening thread is ready to stop.  Set to
@@ -79,29 +185,109 @@ public abstract class AbstractServer implements Runnable
    */
   private boolean readyToStop = false;
 
+  /**
+   * The engine servicing the client connections.
+   */
+  private final ServerEngine engine;
+
+  /**
+   * The number of selector threads used by the <code>NIO_SELECTOR</code>
+   * engine. Set to the number of available processors by default.
+   */
+  private int selectorThreads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The selector threads of the <code>NIO_SELECTOR</code> engine, or null
+   * when they are not running.
+   */
+  private SelectorWorker[] selectorWorkers;
+
+  /**
+   * Index of the selector thread the next accepted channel goes to.
+   */
+  private int nextWorker = 0;
+
+  /**
+   * The cluster node of the server, or null if it is not in a cluster.
+   */
+  private volatile ClusterNode cluster;
+
+  /**
+   * The open sessions, by token.
+   */
+  private final ConcurrentHashMap<String, Session> sessions =
+    new ConcurrentHashMap<String, Session>();
+
+  /**
+   * The number of messages a session keeps for its client. Set to 1000 by
+   * default.
+   */
+  private volatile int replayCapacity = 1000;
+
+  /**
+   * How long, in milliseconds, a session waits for a client that lost its
+   * connection. Set to 30 seconds by default.
+   */
+  private volatile int sessionTimeout = 30000;
+
+  /**
+   * The number of sessions resumed.
+   */
+  private final LongAdder resumedSessions = new LongAdder();
+
+  /**
+   * Ends the sessions whose clients did not come back in time and writes
+   * the statistics file, created when first needed.
+   */
+  private ScheduledExecutorService timer;
+
+  /**
+   * The periodic writing of the statistics file, or null.
+   */
+  private ScheduledFuture<?> statisticsTask;
+
 
 // CONSTRUCTOR ******************************************************
 
   /**
-   * Constructs a new server.
+   * Constructs a new server giving each client its own thread.
    *
    * @param port the port number on which to listen.
    */
   public AbstractServer(int port)
+  {
+    this(port, ServerEngine.THREAD_PER_CONNECTION);
+  }
+
+  /**
+   * Constructs a new server running on the given engine.
+   *
+   * @param port the port number on which to listen.
+   * @param engine the engine servicing the client connections.
+   * @exception UnsupportedOperationException if the engine is
+   *  <code>VIRTUAL_THREAD</code> and the JDK has no virtual threads.
+   */
+  public AbstractServer(int port, ServerEngine engine)
   {
     this.port = port;
+    this.engine = engine;
 
-    this.clientThreadGroup =
-      new ThreadGroup("ConnectionToClient threads")
-      {
-        // All uncaught exceptions in connection threads will
-        // be sent to the clientException callback method.
-        public void uncaughtException(
-          Thread thread, Throwable exception)
-        {
-          clientException((ConnectionToClient)thread, exception);
-        }
-      };
+    switch (engine)
+    {
+      case THREAD_PER_CONNECTION:
+        clientThreadFactory =
+          VirtualThreads.factory("ConnectionToClient-", false);
+        break;
+
+      case VIRTUAL_THREAD:
+        clientThreadFactory =
+          VirtualThreads.factory("ConnectionToClient-", true);
+        break;
+
+      default:
+        clientThreadFactory = null;
+        break;
+    }
   }
 
 
@@ -121,9 +307,22 @@ public abstract class AbstractServer implements Runnable
     {
       if (serverSocket == null)
       {
-        serverSocket = new ServerSocket(getPort(), backlog);
+        if (engine == ServerEngine.NIO_SELECTOR)
+        {
+          // Accepted sockets then come with a channel
+          ServerSocketChannel acceptor = ServerSocketChannel.open();
+          acceptor.socket().bind(new InetSocketAddress(getPort()), backlog);
+          serverSocket = acceptor.socket();
+        }
+        else
+        {
+          serverSocket = new ServerSocket(getPort(), backlog);
+        }
       }
 
+      if (engine == ServerEngine.NIO_SELECTOR)
+        startSelectorWorkers();
+
       serverSocket.setSoTimeout(timeout);
       readyToStop = false;
       connectionListener = new Thread(this);
@@ -163,16 +362,25 @@ public abstract class AbstractServer implements Runnable
     finally
     {
       // Close the client sockets of the already connected clients
-      Thread[] clientThreadList = getClientConnections();
-      for (int i=0; i<clientThreadList.length; i++)
+      for (ConnectionToClient client : clientConnections)
       {
          try
          {
-           ((ConnectionToClient)clientThreadList[i]).close();
+           client.close();
          }
          // Ignore all exceptions when closing clients.
          catch(Exception ex) {}
       }
+
+      // The links from other cluster nodes are not in the registry
+      ClusterNode node = cluster;
+      if (node != null)
+        node.closePeerConnections();
+
+      stopSelectorWorkers();
+      stopDispatchExecutor();
+      stopWriterExecutor();
+      stopTimer();
       serverSocket = null;
       serverClosed();
     }
@@ -186,26 +394,289 @@ public abstract class AbstractServer implements Runnable
    * function of sending to all clients, perhaps after some kind
    * of filtering is done. Any exception thrown while
    * sending the message to a particular client is ignored.
+   * The message is only queued for each client, so the method
+   * returns without waiting for slow clients. It is encoded once per
+   * codec in use and the same bytes are queued for every client of that
+   * codec; clients that cannot be sent the encoded message, or are
+   * still negotiating their codec, do not receive it.
    *
    * @param msg   Object The message to be sent
    */
   public void sendToAllClients(Object msg)
   {
-    Thread[] clientThreadList = getClientConnections();
+    sendToClients(clientConnections, msg);
+
+    ClusterNode node = cluster;
+    if (node != null)
+      node.publish(msg);
+  }
+
+  /**
+   * Sends a message to every member of a room, and to no one else. Like
+   * <code>sendToAllClients</code>, it only queues the message, encodes it
+   * once per codec in use, and ignores any exception thrown while sending
+   * to a particular client. The cost depends on the size of the room, not
+   * on the number of clients connected.
+   *
+   * @param room the name of the room.
+   * @param msg the message to be sent.
+   * @see ocsf.server.RoomIndex
+   */
+  public void sendToRoom(String room, Object msg)
+  {
+    sendToClients(rooms.getMembers(room), msg);
+
+    ClusterNode node = cluster;
+    if (node != null)
+      node.publishToRoom(room, msg);
+  }
+
+  /**
+   * Sends a message to the client using a login ID, whether it is
+   * connected to this server or, in a cluster, to another node.
+   *
+   * @param loginID the login ID of the client.
+   * @param msg the message to be sent.
+   * @return false if no client is known to use the login ID. True does
+   *  not mean a client of another node will get the message, as it may
+   *  leave meanwhile.
+   * @see ocsf.server.ClusterNode
+   */
+  public boolean sendToUser(Object loginID, Object msg)
+  {
+    ConnectionToClient client = clientConnections.getByLoginID(loginID);
 
-    for (int i=0; i<clientThreadList.length; i++)
+    if (client != null)
     {
       try
       {
-        ((ConnectionToClient)clientThreadList[i]).sendToClient(msg);
+        client.sendToClient(msg);
       }
-      catch (Exception ex) {}
+      catch (IOException ex) {}
+      return true;
+    }
+
+    ClusterNode node = cluster;
+    return node != null && loginID != null
+      && node.sendToUser(loginID.toString(), msg);
+  }
+
+  /**
+   * Makes the server a node of a cluster, so that what it sends to all
+   * clients, to a room or to a user also reaches the clients of the other
+   * nodes. The other nodes are added as peers of the returned node; they
+   * must add this one in turn. If the server is already in a cluster,
+   * that node is returned.
+   *
+   * @param nodeID the ID of this node, unique in the cluster.
+   * @return the cluster node.
+   * @see ocsf.server.ClusterNode
+   */
+  final synchronized public ClusterNode joinCluster(String nodeID)
+  {
+    if (cluster == null)
+    {
+      ClusterNode node = new ClusterNode(this, nodeID);
+      cluster = node;
+      rooms.cluster = node;
+      clientConnections.cluster = node;
+
+      // The rooms and users present before are announced like later ones
+      for (String room : rooms.getRoomNames())
+        node.roomChanged(room);
+      for (ConnectionToClient client : clientConnections)
+      {
+        Object loginID = client.getInfo(ConnectionRegistry.LOGIN_ID);
+        if (loginID != null)
+          node.userChanged(loginID.toString());
+      }
+    }
+    return cluster;
+  }
+
+  /**
+   * Opens a session for a client, so that if it loses its connection it
+   * can come back on a new one and be sent only the messages it missed.
+   * Until then, or until the session timeout is over, the lost connection
+   * stays in its rooms and keeps its login ID, and the messages sent to it
+   * are kept for the client; <code>clientException</code> and
+   * <code>clientDisconnected</code> are only called if the client does not
+   * come back in time. The token of the session is to be sent to the
+   * client. If the client already has a session, that one is returned.
+   *
+   * @param client the connection of the client.
+   * @return the session.
+   * @see ocsf.server.Session
+   */
+  final public Session openSession(ConnectionToClient client)
+  {
+    Session session = client.openSession(replayCapacity);
+    sessions.put(session.getToken(), session);
+    return session;
+  }
+
+  /**
+   * Resumes the session of a client that lost its connection. The new
+   * connection takes the place of the old one: it gets the information
+   * saved about it, its login ID included, and its rooms. The client is
+   * then sent an acknowledgement, which is not counted among the
+   * messages of the session, followed by the messages it missed. The old
+   * connection is closed, if it was not already, without calling any hook.
+   *
+   * @param client the new connection of the client.
+   * @param token the token of the session.
+   * @param received the number of messages the client received in the
+   *  session.
+   * @param acknowledgement the message telling the client its session was
+   *  resumed, after which it counts from <code>received</code> again.
+   * @return the old connection, or null if there is no such session or it
+   *  cannot be resumed, as the client missed more messages than it kept.
+   *  The old connection is then closed, so the client can start afresh.
+   * @exception IOException if the missed messages cannot be sent.
+   */
+  final public ConnectionToClient resumeSession(ConnectionToClient client,
+    String token, long received, Object acknowledgement) throws IOException
+  {
+    Session session = token == null ? null : sessions.get(token);
+    ConnectionToClient previous =
+      session == null ? null : session.getConnection();
+
+    if (previous == null || previous == client)
+      return null;
+
+    Set<String> joined = rooms.getRooms(previous);
+
+    if (!client.resume(session, received, acknowledgement))
+    {
+      if (session.waitsFor(previous))
+        expireSession(session, previous);
+      else
+        previous.close();
+      return null;
+    }
+
+    // Messages still sent to the old connection go to the new one once it
+    // is closed, so until then the client may get some twice, but misses
+    // none
+    client.takeInfo(previous);
+    for (String room : joined)
+      rooms.join(room, client);
+
+    previous.supersede();
+    removeConnection(previous);
+    resumedSessions.increment();
+    return previous;
+  }
+
+  /**
+   * Ends the session of a client that is leaving for good. If its
+   * connection was already lost, the hooks that were put off are called
+   * now.
+   *
+   * @param client the connection of the client.
+   */
+  final public void closeSession(ConnectionToClient client)
+  {
+    Session session = client.getSession();
+
+    if (session == null)
+      return;
+
+    if (session.waitsFor(client))
+      expireSession(session, client);
+    else if (session.close(client))
+    {
+      sessions.remove(session.getToken(), session);
+      client.endSession();
+    }
+  }
+
+  /**
+   * Starts writing the statistics of the server to a file every so often,
+   * until the server is closed or <code>stopStatisticsFile</code> is
+   * called. Each time the file is replaced with a snapshot formatted by
+   * <code>formatStatistics</code>, whose rates cover the time since the
+   * one before. The first snapshot is written before the method returns;
+   * should a later one fail to be written, the file is left as it was
+   * until the next. Replaces any statistics file started before.
+   *
+   * @param file the statistics file.
+   * @param seconds the time between snapshots.
+   * @exception IOException if the first snapshot cannot be written.
+   */
+  final synchronized public void startStatisticsFile(final File file,
+    int seconds) throws IOException
+  {
+    stopStatisticsFile();
+
+    final ServerMetrics.Snapshot first = metrics.snapshot();
+    writeStatistics(file, first, null);
+
+    statisticsTask = getTimer().scheduleAtFixedRate(new Runnable()
+    {
+      private ServerMetrics.Snapshot previous = first;
+
+      public void run()
+      {
+        ServerMetrics.Snapshot now = metrics.snapshot();
+        try
+        {
+          writeStatistics(file, now, previous);
+          previous = now;
+        }
+        catch (IOException ex) {}
+      }
+    }, seconds, Math.max(1, seconds), TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops writing the statistics file, if it is written. The file is left
+   * as it was last written.
+   */
+  final synchronized public void stopStatisticsFile()
+  {
+    if (statisticsTask != null)
+      statisticsTask.cancel(false);
+
+    statisticsTask = null;
+  }
+
+  /**
+   * Leaves the cluster, if the server is in one.
+   */
+  final synchronized public void leaveCluster()
+  {
+    if (cluster != null)
+    {
+      rooms.cluster = null;
+      clientConnections.cluster = null;
+      cluster.close();
+      cluster = null;
     }
   }
 
 
 // ACCESSING METHODS ------------------------------------------------
 
+  /**
+   * @return the cluster node of the server, or null if it is not in a
+   *  cluster.
+   */
+  final public ClusterNode getCluster()
+  {
+    return cluster;
+  }
+
+  /**
+   * Returns the index of the rooms the clients are members of.
+   *
+   * @return the room index.
+   */
+  final public RoomIndex getRooms()
+  {
+    return rooms;
+  }
+
   /**
    * Returns true if the server is ready to accept new clients.
    *
@@ -225,17 +696,42 @@ public abstract class AbstractServer implements Runnable
    * in this migth disconnect. New clients can also connect,
    * these later will not appear in the array.
    *
-   * @return an array of <code>Thread</code> containing
+   * @return an array containing the
    * <code>ConnectionToClient</code> instances.
    */
-  synchronized final public Thread[] getClientConnections()
+  final public ConnectionToClient[] getClientConnections()
   {
-    Thread[] clientThreadList = new
-      Thread[clientThreadGroup.activeCount()];
+    List<ConnectionToClient> clientList =
+      new ArrayList<ConnectionToClient>(clientConnections.size());
+
+    for (ConnectionToClient client : clientConnections)
+      clientList.add(client);
+
+    return clientList.toArray(new ConnectionToClient[0]);
+  }
 
-    clientThreadGroup.enumerate(clientThreadList);
+  /**
+   * Returns the registry of the existing client connections, which can
+   * be iterated without copying and searched by login ID. Like the array
+   * of <code>getClientConnections</code>, it is only a snapshot as far as
+   * clients connecting and disconnecting meanwhile are concerned.
+   *
+   * @return the connection registry.
+   */
+  final public ConnectionRegistry getConnectionRegistry()
+  {
+    return clientConnections;
+  }
 
-    return clientThreadList;
+  /**
+   * Finds the connection of a logged in client.
+   *
+   * @param loginID the login ID saved by the client's connection.
+   * @return the connection, or null if no client has that login ID.
+   */
+  final public ConnectionToClient getClientConnection(Object loginID)
+  {
+    return clientConnections.getByLoginID(loginID);
   }
 
   /**
@@ -245,87 +741,396 @@ public abstract class AbstractServer implements Runnable
    */
   final public int getNumberOfClients()
   {
-    return clientThreadGroup.activeCount();
+    return clientConnections.size();
   }
 
   /**
-   * Returns the port number.
+   * Returns true if messages from different clients are handled in
+   * parallel.
    *
-   * @return the port number.
+   * @return true in concurrent dispatch mode.
    */
-  final public int getPort()
+  final public boolean isConcurrentDispatch()
   {
-    return port;
+    return concurrentDispatch;
   }
 
   /**
-   * Sets the port number for the next connection.
-   * The server must be closed and restarted for the port
-   * change to be in effect.
+   * Sets whether messages from different clients are handled in parallel.
+   * When they are, <code>handleMessageFromClient</code> is no longer
+   * called with the server's lock held: it runs on the reader thread of
+   * the client's connection, or on a pool of dispatch threads with the
+   * <code>NIO_SELECTOR</code> engine. Messages from one client are always
+   * handled in the order they were sent. Should be set before the server
+   * starts listening.
    *
-   * @param port the port number.
+   * @param concurrentDispatch true to handle clients in parallel.
    */
-  final public void setPort(int port)
+  final public void setConcurrentDispatch(boolean concurrentDispatch)
   {
-    this.port = port;
+    this.concurrentDispatch = concurrentDispatch;
   }
 
   /**
-   * Sets the timeout time when accepting connections.
-   * The default is half a second. This means that stopping the
-   * server may take up to timeout duration to actually stop.
-   * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * Returns the maximum number of messages that may wait to be written to
+   * any one client.
    *
-   * @param timeout the timeout time in ms.
+   * @return the outbound queue capacity.
    */
-  final public void setTimeout(int timeout)
+  final public int getOutboundQueueCapacity()
   {
-    this.timeout = timeout;
+    return outboundQueueCapacity;
   }
 
   /**
-   * Sets the maximum number of waiting connections accepted by the
-   * operating system. The default is 20.
-   * The server must be closed and restarted for the backlog
-   * change to be in effect.
+   * Sets the maximum number of messages that may wait to be written to
+   * any one client. This is the high-water mark at which the slow
+   * consumer policy applies. The default is 1000.
    *
-   * @param backlog the maximum number of connections.
+   * @param outboundQueueCapacity the outbound queue capacity.
    */
-  final public void setBacklog(int backlog)
+  final public void setOutboundQueueCapacity(int outboundQueueCapacity)
   {
-    this.backlog = backlog;
+    this.outboundQueueCapacity = Math.max(1, outboundQueueCapacity);
   }
 
-// RUN METHOD -------------------------------------------------------
+  /**
+   * Returns what happens to a message sent to a client whose outbound
+   * queue is full.
+   *
+   * @return the slow consumer policy.
+   */
+  final public SlowConsumerPolicy getSlowConsumerPolicy()
+  {
+    return slowConsumerPolicy;
+  }
 
   /**
-   * Runs the listening thread that allows clients to connect.
-   * Not to be called.
+   * Sets what happens to a message sent to a client whose outbound queue
+   * is full. The default is <code>REJECT</code>.
+   *
+   * @param slowConsumerPolicy the slow consumer policy.
    */
-  final public void run()
+  final public void setSlowConsumerPolicy(
+    SlowConsumerPolicy slowConsumerPolicy)
   {
-    // call the hook method to notify that the server is starting
-    serverStarted();
+    this.slowConsumerPolicy = slowConsumerPolicy;
+  }
 
-    try
-    {
-      // Repeatedly waits for a new client connection, accepts it, and
-      // starts a new thread to handle data exchange.
-      while(!readyToStop)
-      {
-        try
-        {
-          // Wait here for new connection attempts, or a timeout
-          Socket clientSocket = serverSocket.accept();
+  /**
+   * Returns the codecs the server accepts, in order of preference.
+   *
+   * @return a copy of the codecs.
+   */
+  final public Codec[] getCodecs()
+  {
+    return codecs.clone();
+  }
 
-          // When a client is accepted, create a thread to handle
+  /**
+   * Sets the codecs the server accepts. A connecting client gets the first
+   * codec it offers that is in this list. Clients that predate codec
+   * negotiation are only accepted if Java serialization is in the list.
+   * Only clients connecting afterwards are affected. The default is the
+   * binary codec and Java serialization.
+   *
+   * @param codecs the codecs, in order of preference.
+   */
+  final public void setCodecs(Codec... codecs)
+  {
+    if (codecs.length == 0)
+      throw new IllegalArgumentException("at least one codec is needed");
+
+    this.codecs = codecs.clone();
+  }
+
+  /**
+   * Returns how long a connection may hold queued output back waiting
+   * for more to write in the same call.
+   *
+   * @return the maximum write delay in microseconds.
+   */
+  final public long getMaxWriteDelay()
+  {
+    return maxWriteDelay / 1000;
+  }
+
+  /**
+   * Sets how long a connection may hold queued output back waiting for
+   * more to write in the same call. Whatever is queued when a connection
+   * writes is always gathered into a single write; a delay lets bursts
+   * of messages build up into fewer, larger writes, at the cost of that
+   * much latency. Output is written without waiting once a full batch is
+   * queued. The <code>NIO_SELECTOR</code> engine rounds delays up to
+   * whole milliseconds. The default is 0, for no delay.
+   *
+   * @param microseconds the maximum write delay.
+   */
+  final public void setMaxWriteDelay(long microseconds)
+  {
+    maxWriteDelay = Math.max(0, microseconds) * 1000;
+  }
+
+  /**
+   * Returns the number of messages a session keeps for its client.
+   *
+   * @return the replay capacity.
+   */
+  final public int getReplayCapacity()
+  {
+    return replayCapacity;
+  }
+
+  /**
+   * Sets the number of messages a session keeps for its client, which is
+   * the most messages a client can miss and still resume its session.
+   * Only sessions opened afterwards are affected. The default is 1000.
+   *
+   * @param replayCapacity the replay capacity.
+   */
+  final public void setReplayCapacity(int replayCapacity)
+  {
+    this.replayCapacity = Math.max(1, replayCapacity);
+  }
+
+  /**
+   * Returns how long a session waits for a client that lost its
+   * connection.
+   *
+   * @return the session timeout in milliseconds.
+   */
+  final public int getSessionTimeout()
+  {
+    return sessionTimeout;
+  }
+
+  /**
+   * Sets how long a session waits for a client that lost its connection.
+   * A timeout of 0 ends sessions with their connection. The default is 30
+   * seconds.
+   *
+   * @param sessionTimeout the session timeout in milliseconds.
+   */
+  final public void setSessionTimeout(int sessionTimeout)
+  {
+    this.sessionTimeout = Math.max(0, sessionTimeout);
+  }
+
+  /**
+   * @return the number of open sessions, including those waiting for
+   *  their client.
+   */
+  final public int getSessionCount()
+  {
+    return sessions.size();
+  }
+
+  /**
+   * @return the number of sessions resumed since the server was created.
+   */
+  final public long getResumedSessionCount()
+  {
+    return resumedSessions.sum();
+  }
+
+  /**
+   * Returns the number of write calls made to client sockets and
+   * channels since the server was created. Together with
+   * <code>getBytesWritten</code> it shows how well output is coalesced.
+   *
+   * @return the number of write calls.
+   */
+  final public long getWriteCount()
+  {
+    return metrics.getWriteCount();
+  }
+
+  /**
+   * Returns the number of bytes written to clients since the server was
+   * created.
+   *
+   * @return the number of bytes written.
+   */
+  final public long getBytesWritten()
+  {
+    return metrics.getBytesWritten();
+  }
+
+  /**
+   * Returns the counters of what the server has done since it was
+   * created, from which snapshots of its statistics are taken.
+   *
+   * @return the server's metrics.
+   */
+  final public ServerMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Returns when the encoders of the connections reset by themselves.
+   *
+   * @return the reset policy.
+   */
+  final public ResetPolicy getResetPolicy()
+  {
+    return resetPolicy;
+  }
+
+  /**
+   * Sets when the encoders of the connections reset by themselves, which
+   * bounds the memory both the server and its clients hold for the
+   * messages sent to the clients. Applies to the clients already connected
+   * as well. The default is <code>ResetPolicy.DEFAULT</code>.
+   *
+   * @param resetPolicy the reset policy.
+   */
+  final public void setResetPolicy(ResetPolicy resetPolicy)
+  {
+    this.resetPolicy = resetPolicy;
+
+    for (ConnectionToClient client : clientConnections)
+      client.setResetPolicy(resetPolicy);
+  }
+
+  /**
+   * Returns the size in bytes of the spill file of a client under the
+   * <code>SPILL_TO_DISK</code> policy.
+   *
+   * @return the spill file capacity.
+   */
+  final public int getSpillFileCapacity()
+  {
+    return spillFileCapacity;
+  }
+
+  /**
+   * Sets the size in bytes of the spill file of a client under the
+   * <code>SPILL_TO_DISK</code> policy. A client whose spill file is full
+   * is disconnected. Only spill files created afterwards are affected.
+   * The default is 64 MB.
+   *
+   * @param spillFileCapacity the spill file capacity.
+   */
+  final public void setSpillFileCapacity(int spillFileCapacity)
+  {
+    this.spillFileCapacity = Math.max(1024, spillFileCapacity);
+  }
+
+  /**
+   * Returns the engine servicing the client connections.
+   *
+   * @return the server's engine.
+   */
+  final public ServerEngine getEngine()
+  {
+    return engine;
+  }
+
+  /**
+   * Returns the port number.
+   *
+   * @return the port number.
+   */
+  final public int getPort()
+  {
+    return port;
+  }
+
+  /**
+   * Sets the port number for the next connection.
+   * The server must be closed and restarted for the port
+   * change to be in effect.
+   *
+   * @param port the port number.
+   */
+  final public void setPort(int port)
+  {
+    this.port = port;
+  }
+
+  /**
+   * Sets the timeout time when accepting connections.
+   * The default is half a second. This means that stopping the
+   * server may take up to timeout duration to actually stop.
+   * The server must be stopped and restarted for the timeout
+   * change to be effective.
+   *
+   * @param timeout the timeout time in ms.
+   */
+  final public void setTimeout(int timeout)
+  {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Sets the maximum number of waiting connections accepted by the
+   * operating system. The default is 20.
+   * The server must be closed and restarted for the backlog
+   * change to be in effect.
+   *
+   * @param backlog the maximum number of connections.
+   */
+  final public void setBacklog(int backlog)
+  {
+    this.backlog = backlog;
+  }
+
+  /**
+   * Sets the number of selector threads used by the
+   * <code>NIO_SELECTOR</code> engine. The default is the number of
+   * available processors. The server must be closed and restarted for
+   * the change to be in effect.
+   *
+   * @param selectorThreads the number of selector threads.
+   */
+  final public void setSelectorThreads(int selectorThreads)
+  {
+    this.selectorThreads = Math.max(1, selectorThreads);
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Runs the listening thread that allows clients to connect.
+   * Not to be called.
+   */
+  final public void run()
+  {
+    // call the hook method to notify that the server is starting
+    serverStarted();
+
+    try
+    {
+      // Repeatedly waits for a new client connection, accepts it, and
+      // starts a new thread to handle data exchange.
+      while(!readyToStop)
+      {
+        try
+        {
+          // Wait here for new connection attempts, or a timeout
+          Socket clientSocket = serverSocket.accept();
+
+          // Output is coalesced by the connection, so the kernel need not
+          // hold small segments back as well
+          clientSocket.setTcpNoDelay(true);
+
+          // When a client is accepted, create a thread to handle
           // the data exchange, then add it to thread group
 
           synchronized(this)
           {
-            ConnectionToClient c = new ConnectionToClient(
-              this.clientThreadGroup, clientSocket, this);
+            if (engine == ServerEngine.NIO_SELECTOR)
+            {
+              acceptChannel(clientSocket.getChannel());
+            }
+            else
+            {
+              ConnectionToClient c = new ConnectionToClient(
+                clientSocket, this, clientThreadFactory);
+              clientConnections.add(c);
+              c.start();
+            }
           }
         }
         catch (InterruptedIOException exception)
@@ -362,7 +1167,8 @@ public abstract class AbstractServer implements Runnable
 
   /**
    * Hook method called each time a new client connection is
-   * accepted. The default implementation does nothing.
+   * accepted, once the client and the server have agreed on a codec.
+   * The default implementation does nothing.
    * @param client the connection connected to the client.
    */
   protected void clientConnected(ConnectionToClient client) {}
@@ -371,6 +1177,8 @@ public abstract class AbstractServer implements Runnable
    * Hook method called each time a client disconnects.
    * The default implementation does nothing. The method
    * may be overridden by subclasses but should remains synchronized.
+   * In concurrent dispatch mode message handling does not hold the
+   * server's lock, so this hook does not wait for it.
    *
    * @param client the connection with the client.
    */
@@ -378,10 +1186,28 @@ public abstract class AbstractServer implements Runnable
     ConnectionToClient client) {}
 
   /**
-   * Hook method called each time an exception is thrown in a
-   * ConnectionToClient thread.
+   * Hook method called when a client with a session loses its connection,
+   * which then waits for the client to come back, until the session
+   * timeout is over. <code>clientException</code> or
+   * <code>clientDisconnected</code> are only called if it does not.
+   * The default implementation does nothing. The method
+   * may be overridden by subclasses but should remains synchronized.
+   *
+   * @param client the lost connection with the client.
+   * @see ocsf.server.AbstractServer#openSession
+   */
+  synchronized protected void clientWaiting(
+    ConnectionToClient client) {}
+
+  /**
+   * Hook method called each time an exception is thrown in the
+   * thread reading from a ConnectionToClient.
    * The method may be overridden by subclasses but should remains
-   * synchronized.
+   * synchronized. In concurrent dispatch mode message handling does not
+   * hold the server's lock, so this hook does not wait for it.
+   * It is also called, without a prior call to
+   * <code>clientConnected</code>, for a client that fails the codec
+   * handshake.
    *
    * @param client the client that raised the exception.
    * @param Throwable the exception thrown.
@@ -421,12 +1247,31 @@ public abstract class AbstractServer implements Runnable
    */
   protected void serverClosed() {}
 
+  /**
+   * Formats a snapshot of the statistics of the server, for the
+   * statistics file. The default implementation formats the snapshot
+   * alone; subclasses may override it to add statistics of their own.
+   * It is called on the server's timer thread.
+   *
+   * @param now the snapshot of the statistics.
+   * @param previous an earlier snapshot, over which rates are computed,
+   *  or null to compute them since the server was created.
+   * @return the text.
+   * @see ocsf.server.ServerMetrics.Snapshot#format
+   */
+  protected String formatStatistics(ServerMetrics.Snapshot now,
+    ServerMetrics.Snapshot previous)
+  {
+    return now.format(previous);
+  }
+
   /**
    * Handles a command sent from one client to the server.
    * This MUST be implemented by subclasses, who should respond to
    * messages.
    * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * implcitly synchronized, unless the server is in concurrent dispatch
+   * mode.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -443,17 +1288,454 @@ public abstract class AbstractServer implements Runnable
    * Called by the run method of <code>ConnectionToClient</code>
    * instances that are watching for messages coming from the server
    * This method is synchronized to ensure that whatever effects it has
-   * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * do not conflict with work being done by other threads, unless the
+   * server is in concurrent dispatch mode. The method simply calls the
+   * <code>handleMessageFromClient</code> slot method. A ping is sent
+   * straight back instead.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
    *  sent the message.
+   * @param receivedAt when the message was read, in
+   *  <code>System.nanoTime</code> terms.
    */
-  final synchronized void receiveMessageFromClient(
-    Object msg, ConnectionToClient client)
+  final void receiveMessageFromClient(
+    Object msg, ConnectionToClient client, long receivedAt)
   {
-    this.handleMessageFromClient(msg, client);
+    // Batches from other cluster nodes are the framework's business
+    if (msg instanceof RelayBatch)
+    {
+      ClusterNode node = cluster;
+      if (node != null)
+        node.receive((RelayBatch)msg, client);
+      return;
+    }
+
+    if (concurrentDispatch)
+    {
+      dispatch(msg, client, receivedAt);
+    }
+    else
+    {
+      synchronized(this)
+      {
+        dispatch(msg, client, receivedAt);
+      }
+    }
+  }
+
+  /**
+   * Hands a message to <code>handleMessageFromClient</code>, or sends a
+   * ping back, and times it.
+   *
+   * @param msg the message sent.
+   * @param client the connection of the client.
+   * @param receivedAt when the message was read.
+   */
+  private void dispatch(Object msg, ConnectionToClient client,
+    long receivedAt)
+  {
+    long start = System.nanoTime();
+
+    if (msg instanceof Ping)
+    {
+      try
+      {
+        client.sendToClient(msg);
+      }
+      catch (IOException ex) {}
+    }
+    else
+    {
+      this.handleMessageFromClient(msg, client);
+    }
+
+    metrics.dispatched(start - receivedAt, System.nanoTime() - start);
+  }
+
+  /**
+   * Returns the threads handling the messages of channel connections in
+   * concurrent dispatch mode, creating them if needed. There is one per
+   * available processor.
+   *
+   * @return the dispatch executor.
+   */
+  final synchronized ExecutorService getDispatchExecutor()
+  {
+    if (dispatchExecutor == null)
+    {
+      dispatchExecutor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        VirtualThreads.factory("Dispatcher-", false));
+    }
+    return dispatchExecutor;
+  }
+
+  /**
+   * @return the maximum write delay in nanoseconds.
+   */
+  final long getMaxWriteDelayNanos()
+  {
+    return maxWriteDelay;
+  }
+
+  /**
+   * Counts a write call made to a client.
+   *
+   * @param bytes the number of bytes written.
+   */
+  final void recordWrite(long bytes)
+  {
+    metrics.written(bytes);
+  }
+
+  /**
+   * Forgets a connection. Called when the reader thread of a threaded
+   * connection ends and when a channel connection is closed.
+   *
+   * @param client the closed connection.
+   */
+  final void removeConnection(ConnectionToClient client)
+  {
+    // A client with a session keeps its place while the session waits
+    if (park(client))
+      return;
+
+    Session session = client.getSession();
+    if (session != null && session.close(client))
+      sessions.remove(session.getToken(), session);
+
+    clientConnections.remove(client);
+    rooms.leaveAll(client);
+
+    ClusterNode node = cluster;
+    if (node != null)
+      node.peerDisconnected(client);
+  }
+
+  /**
+   * Handles the failure of a connection: calls
+   * <code>clientException</code>, unless the client has a session that
+   * waits for it to come back.
+   *
+   * @param client the connection.
+   * @param exception the exception that ended it.
+   */
+  final void connectionLost(ConnectionToClient client, Throwable exception)
+  {
+    Session session = client.getSession();
+
+    if (park(client))
+      session.setCause(exception);
+    else
+      clientException(client, exception);
+  }
+
+  /**
+   * Makes the session of a lost connection, if it has one, wait for its
+   * client, and schedules the end of the wait.
+   *
+   * @param client the lost connection.
+   * @return true if the session waits for the client.
+   */
+  private boolean park(final ConnectionToClient client)
+  {
+    final Session session = client.getSession();
+
+    if (session == null || client.isCloseRequested() || sessionTimeout == 0)
+      return false;
+
+    if (session.startWaiting(client))
+    {
+      clientWaiting(client);
+      getTimer().schedule(new Runnable()
+      {
+        public void run()
+        {
+          expireSession(session, client);
+        }
+      }, sessionTimeout, TimeUnit.MILLISECONDS);
+    }
+    return session.waitsFor(client);
+  }
+
+  /**
+   * Ends a session whose client did not come back, forgetting its
+   * connection and calling the hooks put off until then.
+   *
+   * @param session the session.
+   * @param client its lost connection.
+   */
+  private void expireSession(Session session, ConnectionToClient client)
+  {
+    if (!session.close(client))
+      return;
+
+    sessions.remove(session.getToken(), session);
+    client.endSession();
+    removeConnection(client);
+
+    Throwable cause = session.getCause();
+    if (cause != null)
+      clientException(client, cause);
+    else
+      clientDisconnected(client);
+  }
+
+  /**
+   * Sends a message from another cluster node to the clients of this
+   * one, without relaying it again.
+   *
+   * @param room the room it is for, or null for every client.
+   * @param msg the message.
+   */
+  final void deliverLocally(String room, Object msg)
+  {
+    sendToClients(room == null ? clientConnections : rooms.getMembers(room),
+      msg);
+  }
+
+  /**
+   * Queues a message for a group of clients, encoding it once per codec
+   * in use. Clients still negotiating their codec are skipped.
+   *
+   * @param clients the clients.
+   * @param msg the message.
+   */
+  private void sendToClients(Iterable<ConnectionToClient> clients,
+    Object msg)
+  {
+    Map<Codec, ByteBuffer> frames = new HashMap<Codec, ByteBuffer>(4);
+    int count = 0;
+
+    for (ConnectionToClient client : clients)
+    {
+      Codec codec = client.getCodec();
+
+      if (codec == null)
+        continue;
+
+      try
+      {
+        ByteBuffer frame = frames.get(codec);
+
+        if (frame == null)
+        {
+          frame = codec.encodeShared(msg);
+          frames.put(codec, frame);
+        }
+
+        client.sendFrame(msg, frame);
+        count++;
+      }
+      catch (Exception ex) {}
+    }
+
+    metrics.broadcast(count);
+  }
+
+  /**
+   * Wraps an accepted channel in a connection and hands it to the next
+   * selector thread, which will read its codec offer.
+   *
+   * @param channel the channel of the accepted client.
+   * @exception IOException if the channel cannot be made non-blocking.
+   */
+  private void acceptChannel(SocketChannel channel) throws IOException
+  {
+    if (selectorWorkers == null)
+    {
+      // The server was closed while this client was being accepted
+      channel.close();
+      return;
+    }
+
+    channel.configureBlocking(false);
+
+    SelectorWorker worker =
+      selectorWorkers[Math.floorMod(nextWorker++, selectorWorkers.length)];
+    ConnectionToClient c = new ConnectionToClient(channel, this, worker);
+
+    clientConnections.add(c);
+    worker.register(c);
+  }
+
+  /**
+   * Starts the selector threads of the <code>NIO_SELECTOR</code> engine
+   * unless they are already running. They keep servicing connected
+   * clients after the server stops listening, until it is closed.
+   *
+   * @exception IOException if a selector cannot be opened.
+   */
+  private synchronized void startSelectorWorkers() throws IOException
+  {
+    if (selectorWorkers != null)
+      return;
+
+    SelectorWorker[] workers = new SelectorWorker[selectorThreads];
+    try
+    {
+      for (int i=0; i<workers.length; i++)
+        workers[i] = new SelectorWorker(this, "SelectorWorker-" + i);
+    }
+    catch (IOException ex)
+    {
+      for (int i=0; i<workers.length && workers[i] != null; i++)
+        workers[i].stop();
+      throw ex;
+    }
+
+    for (int i=0; i<workers.length; i++)
+      workers[i].start();
+
+    selectorWorkers = workers;
+  }
+
+  /**
+   * Returns the executor running the writer tasks of threaded connections,
+   * creating it if needed. A writer only holds a thread while its client
+   * has messages queued; the <code>VIRTUAL_THREAD</code> engine gives each
+   * writer a virtual thread, the other engines reuse idle platform
+   * threads.
+   *
+   * @return the writer executor.
+   */
+  final synchronized Executor getWriterExecutor()
+  {
+    if (writerExecutor == null)
+    {
+      if (engine == ServerEngine.VIRTUAL_THREAD)
+      {
+        final ThreadFactory writers = VirtualThreads.factory("Writer-", true);
+        writerExecutor = new Executor()
+        {
+          public void execute(Runnable task)
+          {
+            writers.newThread(task).start();
+          }
+        };
+      }
+      else
+      {
+        writerExecutor = Executors.newCachedThreadPool(
+          VirtualThreads.factory("Writer-", false));
+      }
+    }
+    return writerExecutor;
+  }
+
+  /**
+   * Lets the writer threads end once they are idle.
+   */
+  private synchronized void stopWriterExecutor()
+  {
+    if (writerExecutor instanceof ExecutorService)
+      ((ExecutorService)writerExecutor).shutdown();
+
+    writerExecutor = null;
+  }
+
+  /**
+   * Returns the thread ending the sessions whose clients did not come
+   * back and writing the statistics file, starting it if needed.
+   *
+   * @return the timer.
+   */
+  private synchronized ScheduledExecutorService getTimer()
+  {
+    if (timer == null)
+    {
+      final ThreadFactory threads =
+        VirtualThreads.factory("ServerTimer-", false);
+      timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory()
+      {
+        public Thread newThread(Runnable task)
+        {
+          Thread thread = threads.newThread(task);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return timer;
+  }
+
+  /**
+   * Stops the timer, and with it the statistics file. The sessions still
+   * waiting ended when their connections were closed.
+   */
+  private synchronized void stopTimer()
+  {
+    if (timer != null)
+      timer.shutdownNow();
+
+    timer = null;
+    statisticsTask = null;
+  }
+
+  /**
+   * Replaces the content of the statistics file with the statistics of
+   * the server. The text is written to a temporary file first, so readers
+   * of the file never see half of it.
+   *
+   * @param file the statistics file.
+   * @param now the snapshot of the statistics.
+   * @param previous the snapshot written before, or null.
+   * @exception IOException if the file cannot be written.
+   */
+  private void writeStatistics(File file, ServerMetrics.Snapshot now,
+    ServerMetrics.Snapshot previous) throws IOException
+  {
+    File temporary = new File(file.getPath() + ".tmp");
+    Writer out = new OutputStreamWriter(new FileOutputStream(temporary),
+      "UTF-8");
+    try
+    {
+      out.write(formatStatistics(now, previous));
+    }
+    finally
+    {
+      out.close();
+    }
+
+    try
+    {
+      Files.move(temporary.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException ex)
+    {
+      Files.move(temporary.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Stops the dispatch threads once the messages already queued have been
+   * handled.
+   */
+  private synchronized void stopDispatchExecutor()
+  {
+    if (dispatchExecutor == null)
+      return;
+
+    dispatchExecutor.shutdown();
+    dispatchExecutor = null;
+  }
+
+  /**
+   * Stops the selector threads of the <code>NIO_SELECTOR</code> engine.
+   */
+  private synchronized void stopSelectorWorkers()
+  {
+    if (selectorWorkers == null)
+      return;
+
+    for (int i=0; i<selectorWorkers.length; i++)
+      selectorWorkers[i].stop();
+
+    selectorWorkers = null;
   }
 }
 // End of AbstractServer Class
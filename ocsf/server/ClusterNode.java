@@ -0,0 +1,1041 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import ocsf.client.AbstractClient;
+import ocsf.common.VirtualThreads;
+
+/**
+* A <code> ClusterNode </code> makes a server one node of a cluster, so that
+* what it sends to all its clients, to a room or to one client also reaches
+* the clients of the other nodes. Each node connects to the port of each of
+* its peers, as a client would, and sends its messages over that link; its
+* peers do the same towards it.<p>
+*
+* Rooms and login IDs are spread over the nodes by a consistent-hash ring,
+* and each belongs to one node. The owner of a room knows which nodes have
+* members in it, so a message for the room goes from the node it is sent
+* on to the owner, and from the owner to those nodes only, rather than to
+* every node. The owner of a login ID knows which node the client using it
+* is connected to, so a message for that client reaches it whatever node
+* it is sent on. A client never needs to know which node owns what: its
+* own node passes its messages on. Every node tells the others it is up
+* once a second, and the ring holds the nodes heard of lately, linked
+* directly or not, so all nodes agree on it. When nodes join or leave,
+* only about one in N rooms and login IDs change owner, and each node
+* tells the new owners about the ones it has.<p>
+*
+* The messages waiting for a link are sent together, as one batch, as soon
+* as the previous batch has been written, so a busy link carries few large
+* writes and an idle one adds no delay. Broadcasts to every client, and
+* messages for a node not linked directly, are relayed by each node to its
+* other peers, so they still arrive when some nodes are not linked
+* directly, or a link is down. Each message is known by its origin and its
+* sequence number there, so a node that receives it again by another route
+* drops the copy. A link that fails is reopened every second; messages sent
+* meanwhile wait for it, up to a limit.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.AbstractServer#joinCluster
+* @see ocsf.server.HashRing
+*/
+public final class ClusterNode
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The most messages sent in one batch.
+   */
+  static final int MAX_BATCH = 1024;
+
+  /**
+   * The most messages waiting for a link. The oldest are dropped beyond.
+   */
+  static final int MAX_QUEUED = 100000;
+
+  /**
+   * The time between attempts to open a link, in milliseconds.
+   */
+  static final int RECONNECT_DELAY = 1000;
+
+  /**
+   * The number of sequence numbers below the highest received from an
+   * origin that are still told apart from copies, a multiple of 64. A
+   * message waiting for a busy link can be overtaken by all those sent
+   * after it that reach the node by another route, so the window spans a
+   * full queue and a batch.
+   */
+  static final int WINDOW = 128 * 1024;
+
+  /**
+   * The time without news of a node after which it is taken for down, in
+   * milliseconds.
+   */
+  static final int NODE_TIMEOUT = 3 * RECONNECT_DELAY;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The server of this node.
+   */
+  private final AbstractServer server;
+
+  /**
+   * The ID of this node.
+   */
+  private final String nodeID;
+
+  /**
+   * When this node started.
+   */
+  private final long incarnation = System.currentTimeMillis();
+
+  /**
+   * The sequence number of the next message made on this node.
+   */
+  private final AtomicLong nextSequence = new AtomicLong();
+
+  /**
+   * The links to the peers.
+   */
+  private final List<PeerLink> links = new CopyOnWriteArrayList<PeerLink>();
+
+  /**
+   * The connections of the peers linked to this node.
+   */
+  private final Set<ConnectionToClient> peerConnections =
+    ConcurrentHashMap.newKeySet();
+
+  /**
+   * The messages received from each origin, by origin and incarnation.
+   */
+  private final ConcurrentHashMap<String, DuplicateWindow> received =
+    new ConcurrentHashMap<String, DuplicateWindow>();
+
+  /**
+   * The nodes that can be reached: this one, and those heard of lately.
+   */
+  private final HashRing ring = new HashRing();
+
+  /**
+   * When each other node on the ring was last heard of.
+   */
+  private final ConcurrentHashMap<String, Long> lastHeard =
+    new ConcurrentHashMap<String, Long>();
+
+  /**
+   * For each room this node owns, the other nodes with members in it.
+   */
+  private final ConcurrentHashMap<String, Set<String>> subscribers =
+    new ConcurrentHashMap<String, Set<String>>();
+
+  /**
+   * For each login ID this node owns, the node the client using it is
+   * connected to.
+   */
+  private final ConcurrentHashMap<String, String> presence =
+    new ConcurrentHashMap<String, String>();
+
+  /**
+   * For each room with members on this node, the node told about it.
+   * Guarded by the lock of the node, as is <code>registeredAt</code>.
+   */
+  private final HashMap<String, String> subscribedAt =
+    new HashMap<String, String>();
+
+  /**
+   * For each login ID used on this node, the node told about it.
+   */
+  private final HashMap<String, String> registeredAt =
+    new HashMap<String, String>();
+
+  /**
+   * The thread opening the links and telling the other nodes this one is
+   * up.
+   */
+  private final ScheduledExecutorService connector;
+
+  /**
+   * The numbers of messages sent on this node, delivered from other nodes,
+   * dropped as copies and dropped for lack of room, and of batches sent.
+   */
+  private final LongAdder published = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder overflowed = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+
+  /**
+   * The numbers of messages passed on to the owner of their room or login
+   * ID, and of messages for clients found nowhere.
+   */
+  private final LongAdder proxied = new LongAdder();
+  private final LongAdder undeliverable = new LongAdder();
+
+  /**
+   * Indicates if the node has left the cluster.
+   */
+  private volatile boolean closed = false;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a node without peers. Only servers create nodes.
+   *
+   * @param server the server of the node.
+   * @param nodeID the ID of the node, unique in the cluster.
+   */
+  ClusterNode(AbstractServer server, String nodeID)
+  {
+    this.server = server;
+    this.nodeID = nodeID;
+    ring.add(nodeID);
+
+    final ThreadFactory threads =
+      VirtualThreads.factory("ClusterNode-connector-", false);
+    connector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable task)
+      {
+        Thread thread = threads.newThread(task);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    connector.scheduleWithFixedDelay(new Runnable()
+    {
+      public void run()
+      {
+        announce();
+      }
+    }, RECONNECT_DELAY, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the ID of this node.
+   */
+  public String getNodeID()
+  {
+    return nodeID;
+  }
+
+  /**
+   * Links this node to a peer. The link is opened in the background, and
+   * reopened whenever it fails, until the node leaves the cluster.
+   *
+   * @param host the host of the peer.
+   * @param port the port the peer's server listens on.
+   */
+  public void addPeer(String host, int port)
+  {
+    PeerLink link = new PeerLink(host, port);
+    links.add(link);
+    link.scheduleConnect(0);
+  }
+
+  /**
+   * Describes the links to the peers.
+   *
+   * @return for each link, the address of the peer, its node ID once
+   *  known, whether the link is up, and how many messages wait for it.
+   */
+  public List<String> getPeers()
+  {
+    List<String> peers = new ArrayList<String>();
+
+    for (PeerLink link : links)
+    {
+      peers.add(link.getHost() + ":" + link.getPort()
+        + (link.peerID == null ? "" : " (" + link.peerID + ")")
+        + (link.isConnected() ? " up, " : " down, ")
+        + link.getQueueLength() + " queued");
+    }
+    return peers;
+  }
+
+  /**
+   * Returns the node owning a room or a login ID among the nodes this one
+   * can reach.
+   *
+   * @param key the room or login ID.
+   * @return the ID of the owner.
+   */
+  public String getOwner(String key)
+  {
+    return ring.getOwner(key);
+  }
+
+  /**
+   * @return the IDs of the nodes this one can reach, itself included.
+   */
+  public Set<String> getNodes()
+  {
+    return ring.getNodes();
+  }
+
+  /**
+   * @return the number of rooms this node owns that have members on other
+   *  nodes.
+   */
+  public int getOwnedRoomCount()
+  {
+    return subscribers.size();
+  }
+
+  /**
+   * @return the number of login IDs this node owns that are in use.
+   */
+  public int getOwnedUserCount()
+  {
+    return presence.size();
+  }
+
+  /**
+   * @return the number of peers linked to this node.
+   */
+  public int getPeerConnectionCount()
+  {
+    return peerConnections.size();
+  }
+
+  /**
+   * @return the number of messages sent to other nodes from this one.
+   */
+  public long getPublishedCount()
+  {
+    return published.sum();
+  }
+
+  /**
+   * @return the number of messages from other nodes delivered here.
+   */
+  public long getDeliveredCount()
+  {
+    return delivered.sum();
+  }
+
+  /**
+   * @return the number of copies of messages received and dropped.
+   */
+  public long getDuplicateCount()
+  {
+    return duplicates.sum();
+  }
+
+  /**
+   * @return the number of messages dropped because a link was down for
+   *  too long.
+   */
+  public long getOverflowCount()
+  {
+    return overflowed.sum();
+  }
+
+  /**
+   * @return the number of batches sent to the peers.
+   */
+  public long getBatchCount()
+  {
+    return batches.sum();
+  }
+
+  /**
+   * @return the number of messages passed on to the owner of their room
+   *  or login ID.
+   */
+  public long getProxiedCount()
+  {
+    return proxied.sum();
+  }
+
+  /**
+   * @return the number of messages for clients connected to no node.
+   */
+  public long getUndeliverableCount()
+  {
+    return undeliverable.sum();
+  }
+
+  /**
+   * Leaves the cluster, closing the links to the peers.
+   */
+  public void close()
+  {
+    closed = true;
+    connector.shutdownNow();
+
+    for (PeerLink link : links)
+    {
+      try
+      {
+        link.closeConnection();
+      }
+      catch (IOException ex) {}
+    }
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Sends a broadcast made on this node to the clients of every other
+   * node.
+   *
+   * @param msg the message.
+   */
+  void publish(Object msg)
+  {
+    if (closed)
+      return;
+
+    published.increment();
+    send(message(RelayBatch.Message.BROADCAST, null, null, msg), null);
+  }
+
+  /**
+   * Sends a message for a room, already delivered to its members on this
+   * node, to its members on the other nodes, through the room's owner.
+   *
+   * @param room the room.
+   * @param msg the message.
+   */
+  void publishToRoom(String room, Object msg)
+  {
+    if (closed)
+      return;
+
+    published.increment();
+    String owner = ring.getOwner(room);
+
+    if (owner.equals(nodeID))
+      fanOut(room, msg, null);
+    else
+    {
+      proxied.increment();
+      send(message(RelayBatch.Message.ROOM, room, owner, msg), null);
+    }
+  }
+
+  /**
+   * Sends a message to a client connected to another node, through the
+   * owner of its login ID.
+   *
+   * @param loginID the login ID of the client.
+   * @param msg the message.
+   * @return false if this node owns the login ID and knows it is not in
+   *  use; true if the message was sent on, which does not mean the client
+   *  will get it.
+   */
+  boolean sendToUser(String loginID, Object msg)
+  {
+    if (closed)
+      return false;
+
+    String owner = ring.getOwner(loginID);
+
+    if (owner.equals(nodeID))
+    {
+      String host = presence.get(loginID);
+      if (host == null || host.equals(nodeID))
+        return false;
+
+      send(message(RelayBatch.Message.USER, loginID, host, msg), null);
+    }
+    else
+    {
+      proxied.increment();
+      send(message(RelayBatch.Message.USER, loginID, owner, msg), null);
+    }
+
+    published.increment();
+    return true;
+  }
+
+  /**
+   * Tells the owner of a room whether this node has members in it, if
+   * that changed since it was last told. Called when the room gets its
+   * first member here or loses its last.
+   *
+   * @param room the room.
+   */
+  synchronized void roomChanged(String room)
+  {
+    boolean used = !server.getRooms().getMembers(room).isEmpty();
+    String owner = subscribedAt.get(room);
+
+    if (used == (owner != null))
+      return;
+
+    if (used)
+    {
+      owner = ring.getOwner(room);
+      subscribedAt.put(room, owner);
+    }
+    else
+      subscribedAt.remove(room);
+
+    if (!owner.equals(nodeID))
+      send(message(used ? RelayBatch.Message.SUBSCRIBE
+        : RelayBatch.Message.UNSUBSCRIBE, room, owner, null), null);
+  }
+
+  /**
+   * Tells the owner of a login ID whether a client of this node uses it,
+   * if that changed since it was last told. Called when a connection
+   * takes or loses the login ID; as the state is read again under the
+   * node's lock, calls made in the wrong order by racing connections end
+   * with the owner told the truth.
+   *
+   * @param loginID the login ID.
+   */
+  synchronized void userChanged(String loginID)
+  {
+    boolean used = server.getClientConnection(loginID) != null;
+    String owner = registeredAt.get(loginID);
+
+    if (used == (owner != null))
+      return;
+
+    if (used)
+    {
+      owner = ring.getOwner(loginID);
+      registeredAt.put(loginID, owner);
+    }
+    else
+      registeredAt.remove(loginID);
+
+    if (!owner.equals(nodeID))
+      send(message(RelayBatch.Message.PRESENCE, loginID, owner,
+        used ? nodeID : null), null);
+    else if (used)
+      presence.put(loginID, nodeID);
+    else
+      presence.remove(loginID, nodeID);
+  }
+
+  /**
+   * Handles a batch received from a peer: acts on the messages not seen
+   * before that are for this node, and passes on those for others.
+   *
+   * @param batch the batch.
+   * @param connection the connection of the peer.
+   */
+  void receive(RelayBatch batch, ConnectionToClient connection)
+  {
+    if (!peerConnections.contains(connection))
+    {
+      // A peer is not a client: it gets no broadcasts and is not counted
+      server.removeConnection(connection);
+      peerConnections.add(connection);
+
+      try
+      {
+        connection.sendToClient(new RelayBatch(nodeID, new RelayBatch.Message[0]));
+      }
+      catch (IOException ex) {}
+    }
+
+    for (RelayBatch.Message message : batch.messages)
+    {
+      if (message.origin.equals(nodeID) || !firstSeen(message))
+      {
+        duplicates.increment();
+        continue;
+      }
+
+      heard(message.origin);
+
+      if (message.target != null && !message.target.equals(nodeID))
+      {
+        send(message, batch.sender);
+        continue;
+      }
+
+      handle(message);
+
+      // Broadcasts go on to every node
+      if (message.target == null)
+        send(message, batch.sender);
+    }
+  }
+
+  /**
+   * Forgets the connection of a peer once it is closed.
+   *
+   * @param connection the connection.
+   */
+  void peerDisconnected(ConnectionToClient connection)
+  {
+    peerConnections.remove(connection);
+  }
+
+  /**
+   * Closes the connections of the peers linked to this node, when its
+   * server closes. They link again once it listens again.
+   */
+  void closePeerConnections()
+  {
+    for (ConnectionToClient connection : peerConnections)
+    {
+      try
+      {
+        connection.close();
+      }
+      catch (Exception ex) {}
+    }
+    peerConnections.clear();
+  }
+
+  /**
+   * Acts on a message for this node.
+   */
+  private void handle(RelayBatch.Message message)
+  {
+    switch (message.kind)
+    {
+      case RelayBatch.Message.BROADCAST:
+      case RelayBatch.Message.FANOUT:
+        delivered.increment();
+        server.deliverLocally(message.key, message.payload);
+        break;
+
+      case RelayBatch.Message.ROOM:
+        delivered.increment();
+        server.deliverLocally(message.key, message.payload);
+        fanOut(message.key, message.payload, message.origin);
+        break;
+
+      case RelayBatch.Message.SUBSCRIBE:
+        Set<String> nodes = subscribers.get(message.key);
+        if (nodes == null)
+        {
+          Set<String> created = ConcurrentHashMap.newKeySet();
+          nodes = subscribers.putIfAbsent(message.key, created);
+          if (nodes == null)
+            nodes = created;
+        }
+        nodes.add(message.origin);
+        break;
+
+      case RelayBatch.Message.UNSUBSCRIBE:
+        Set<String> members = subscribers.get(message.key);
+        if (members != null)
+        {
+          members.remove(message.origin);
+          if (members.isEmpty())
+            subscribers.remove(message.key, members);
+        }
+        break;
+
+      case RelayBatch.Message.USER:
+        deliverToUser(message);
+        break;
+
+      case RelayBatch.Message.PRESENCE:
+        if (message.payload != null)
+          presence.put(message.key, (String)message.payload);
+        else
+          presence.remove(message.key, message.origin);
+        break;
+
+      case RelayBatch.Message.ALIVE:
+        break;
+    }
+  }
+
+  /**
+   * Delivers a message for a client connected here, or passes it on to the
+   * node the client is connected to if this node owns its login ID.
+   */
+  private void deliverToUser(RelayBatch.Message message)
+  {
+    ConnectionToClient client = server.getClientConnection(message.key);
+
+    if (client != null)
+    {
+      try
+      {
+        delivered.increment();
+        client.sendToClient(message.payload);
+      }
+      catch (IOException ex) {}
+      return;
+    }
+
+    String host = presence.get(message.key);
+
+    if (host == null || host.equals(nodeID) || host.equals(message.origin))
+      undeliverable.increment();
+    else
+      send(message(RelayBatch.Message.USER, message.key, host,
+        message.payload), null);
+  }
+
+  /**
+   * Sends a message for a room to the nodes with members in it, other than
+   * this one and the one it came from.
+   */
+  private void fanOut(String room, Object msg, String from)
+  {
+    Set<String> nodes = subscribers.get(room);
+
+    if (nodes == null)
+      return;
+
+    for (String node : nodes)
+    {
+      if (!node.equals(from) && !node.equals(nodeID))
+        send(message(RelayBatch.Message.FANOUT, room, node, msg), null);
+    }
+  }
+
+  /**
+   * Makes a message on this node.
+   */
+  private RelayBatch.Message message(byte kind, String key, String target,
+    Object payload)
+  {
+    return new RelayBatch.Message(nodeID, incarnation,
+      nextSequence.getAndIncrement(), kind, key, target, payload);
+  }
+
+  /**
+   * Queues a message for the link to its target, if it is up, or else for
+   * every link except those to its origin and to the node it came from.
+   *
+   * @param message the message.
+   * @param from the ID of the node it came from, or null.
+   */
+  private void send(RelayBatch.Message message, String from)
+  {
+    if (message.target != null)
+    {
+      for (PeerLink link : links)
+      {
+        if (message.target.equals(link.peerID) && link.isConnected())
+        {
+          link.enqueue(message);
+          return;
+        }
+      }
+    }
+
+    for (PeerLink link : links)
+    {
+      String peer = link.peerID;
+
+      if (peer == null || (!peer.equals(message.origin) && !peer.equals(from)))
+        link.enqueue(message);
+    }
+  }
+
+  /**
+   * Tells every node this one is up, and takes the nodes not heard of for
+   * too long off the ring.
+   */
+  private void announce()
+  {
+    send(message(RelayBatch.Message.ALIVE, null, null, null), null);
+
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Long> entry : lastHeard.entrySet())
+    {
+      if (now - entry.getValue() > NODE_TIMEOUT
+        && lastHeard.remove(entry.getKey(), entry.getValue()))
+        peerChanged(entry.getKey(), false);
+    }
+  }
+
+  /**
+   * Notes news of a node, putting it on the ring if it was not.
+   *
+   * @param node the ID of the node.
+   */
+  private void heard(String node)
+  {
+    if (lastHeard.put(node, System.currentTimeMillis()) == null)
+      peerChanged(node, true);
+  }
+
+  /**
+   * Updates the ring when a node is first heard of or taken for down, and tells the new
+   * owners of the rooms and login IDs of this node about them.
+   *
+   * @param peer the ID of the node.
+   * @param up true if the node is up.
+   */
+  private synchronized void peerChanged(String peer, boolean up)
+  {
+    if (up ? !ring.add(peer) : !ring.remove(peer))
+      return;
+
+    if (!up)
+    {
+      // What the peer told this node no longer holds
+      for (Set<String> nodes : subscribers.values())
+        nodes.remove(peer);
+      presence.values().removeAll(Collections.singleton(peer));
+    }
+
+    for (Map.Entry<String, String> entry : subscribedAt.entrySet())
+    {
+      String owner = ring.getOwner(entry.getKey());
+      if (owner.equals(entry.getValue()))
+        continue;
+
+      if (!entry.getValue().equals(nodeID))
+        send(message(RelayBatch.Message.UNSUBSCRIBE, entry.getKey(),
+          entry.getValue(), null), null);
+      if (!owner.equals(nodeID))
+        send(message(RelayBatch.Message.SUBSCRIBE, entry.getKey(), owner,
+          null), null);
+      entry.setValue(owner);
+    }
+
+    for (Map.Entry<String, String> entry : registeredAt.entrySet())
+    {
+      String owner = ring.getOwner(entry.getKey());
+      if (owner.equals(entry.getValue()))
+        continue;
+
+      if (entry.getValue().equals(nodeID))
+        presence.remove(entry.getKey(), nodeID);
+      else
+        send(message(RelayBatch.Message.PRESENCE, entry.getKey(),
+          entry.getValue(), null), null);
+
+      if (owner.equals(nodeID))
+        presence.put(entry.getKey(), nodeID);
+      else
+        send(message(RelayBatch.Message.PRESENCE, entry.getKey(), owner,
+          nodeID), null);
+      entry.setValue(owner);
+    }
+  }
+
+  /**
+   * Tells whether a message is received for the first time.
+   */
+  private boolean firstSeen(RelayBatch.Message message)
+  {
+    String key = message.origin + "@" + message.incarnation;
+    DuplicateWindow window = received.get(key);
+
+    if (window == null)
+    {
+      DuplicateWindow created = new DuplicateWindow();
+      window = received.putIfAbsent(key, created);
+      if (window == null)
+        window = created;
+    }
+    return window.firstSeen(message.sequence);
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * The sequence numbers received from one origin: the highest, and which
+   * of the <code>WINDOW</code> below it were received. Older ones are
+   * taken for copies.
+   */
+  private static final class DuplicateWindow
+  {
+    private final long[] bits = new long[WINDOW / 64];
+    private long highest = -1;
+
+    synchronized boolean firstSeen(long sequence)
+    {
+      if (sequence > highest)
+      {
+        // Forget the numbers that fall out of the window
+        if (sequence - highest >= WINDOW)
+          Arrays.fill(bits, 0);
+        else
+          for (long s = highest + 1; s < sequence; s++)
+            clear(s);
+
+        highest = sequence;
+        set(sequence);
+        return true;
+      }
+
+      if (highest - sequence >= WINDOW || isSet(sequence))
+        return false;
+
+      set(sequence);
+      return true;
+    }
+
+    private void set(long sequence)
+    {
+      int bit = (int)(sequence % WINDOW);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long sequence)
+    {
+      int bit = (int)(sequence % WINDOW);
+      bits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    private boolean isSet(long sequence)
+    {
+      int bit = (int)(sequence % WINDOW);
+      return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+  }
+
+  /**
+   * The link to one peer: a client of the peer's server that sends it
+   * batches of messages, one at a time.
+   */
+  private final class PeerLink extends AbstractClient
+  {
+    /**
+     * The ID of the peer, once it has introduced itself.
+     */
+    volatile String peerID;
+
+    /**
+     * The messages waiting to be sent. Also the lock of the link's state.
+     */
+    private final ArrayDeque<RelayBatch.Message> queue =
+      new ArrayDeque<RelayBatch.Message>();
+
+    /**
+     * Indicates if a batch is being written.
+     */
+    private boolean sending = false;
+
+    PeerLink(String host, int port)
+    {
+      super(host, port);
+    }
+
+    int getQueueLength()
+    {
+      synchronized (queue)
+      {
+        return queue.size();
+      }
+    }
+
+    /**
+     * Queues a message, sending it at once if the link is idle.
+     */
+    void enqueue(RelayBatch.Message message)
+    {
+      synchronized (queue)
+      {
+        if (queue.size() >= MAX_QUEUED)
+        {
+          queue.poll();
+          overflowed.increment();
+        }
+        queue.add(message);
+      }
+      sendNext();
+    }
+
+    /**
+     * Sends what is queued as one batch, unless a batch is being written:
+     * whatever is queued meanwhile goes in the next one.
+     */
+    private void sendNext()
+    {
+      final RelayBatch.Message[] messages;
+
+      synchronized (queue)
+      {
+        if (sending || queue.isEmpty() || !isConnected())
+          return;
+
+        messages = new RelayBatch.Message[Math.min(queue.size(), MAX_BATCH)];
+        for (int i = 0; i < messages.length; i++)
+          messages[i] = queue.poll();
+        sending = true;
+      }
+
+      batches.increment();
+      sendToServerAsync(new RelayBatch(nodeID, messages))
+        .whenComplete(new java.util.function.BiConsumer<Void, Throwable>()
+      {
+        public void accept(Void result, Throwable failure)
+        {
+          synchronized (queue)
+          {
+            sending = false;
+
+            // Sent again once the link is back; copies are dropped
+            if (failure != null)
+              for (int i = messages.length - 1; i >= 0; i--)
+                queue.addFirst(messages[i]);
+          }
+
+          if (failure == null)
+            sendNext();
+        }
+      });
+    }
+
+    void scheduleConnect(long delay)
+    {
+      if (closed)
+        return;
+
+      try
+      {
+        connector.schedule(new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              openConnection();
+            }
+            catch (IOException ex)
+            {
+              scheduleConnect(RECONNECT_DELAY);
+            }
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+      catch (RejectedExecutionException ex) {}
+    }
+
+    protected void connectionEstablished()
+    {
+      // Introduces this node, so the peer stops treating the link as a
+      // client, then sends what waited
+      sendToServerAsync(new RelayBatch(nodeID, new RelayBatch.Message[0]));
+      sendNext();
+    }
+
+    protected void connectionException(Exception exception)
+    {
+      // The peer stays on the ring while other nodes still hear of it
+      scheduleConnect(RECONNECT_DELAY);
+    }
+
+    protected void handleMessageFromServer(Object msg)
+    {
+      // The peer answers the introduction with its own
+      if (msg instanceof RelayBatch)
+      {
+        peerID = ((RelayBatch)msg).sender;
+        heard(peerID);
+      }
+    }
+  }
+}
+// End of ClusterNode Class
@@ -0,0 +1,227 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* A <code> ConnectionRegistry </code> holds the live connections of a
+* server. It can be iterated, counted and searched from any thread without
+* locking and without copying: iteration sees every connection present
+* when it starts and no connection twice, and may or may not see the ones
+* added or removed meanwhile.<p>
+*
+* Connections are also indexed by the login ID saved through
+* <code> ConnectionToClient.setInfo(LOGIN_ID, ...)</code>, so a client can
+* be found by name in constant time. A login ID belongs to at most one
+* connection; <code> claimLoginID </code> takes one atomically, which is
+* how duplicate logins are refused.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.AbstractServer#getConnectionRegistry
+*/
+public final class ConnectionRegistry implements Iterable<ConnectionToClient>
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The info type under which connections save their login ID.
+   */
+  public static final String LOGIN_ID = "loginID";
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The live connections.
+   */
+  private final Set<ConnectionToClient> connections =
+    ConcurrentHashMap.newKeySet();
+
+  /**
+   * The exact number of live connections.
+   */
+  private final AtomicInteger count = new AtomicInteger();
+
+  /**
+   * The live connections that have a login ID, by login ID.
+   */
+  private final ConcurrentHashMap<Object, ConnectionToClient> byLoginID =
+    new ConcurrentHashMap<Object, ConnectionToClient>();
+
+  /**
+   * The metrics of the server, which count connections and logins.
+   */
+  private final ServerMetrics metrics;
+
+  /**
+   * The cluster node told when login IDs are taken and given up, or null.
+   */
+  volatile ClusterNode cluster;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs an empty registry. Only servers create registries.
+   *
+   * @param metrics the metrics of the server.
+   */
+  ConnectionRegistry(ServerMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Returns the number of live connections.
+   *
+   * @return the exact count, in constant time.
+   */
+  public int size()
+  {
+    return count.get();
+  }
+
+  /**
+   * Returns an iterator over the live connections, which does not support
+   * removal.
+   *
+   * @return the iterator.
+   */
+  public Iterator<ConnectionToClient> iterator()
+  {
+    return Collections.unmodifiableSet(connections).iterator();
+  }
+
+  /**
+   * Finds the connection of a logged in client.
+   *
+   * @param loginID the client's login ID.
+   * @return the connection, or null if no live connection has that
+   *  login ID.
+   */
+  public ConnectionToClient getByLoginID(Object loginID)
+  {
+    return loginID == null ? null : byLoginID.get(loginID);
+  }
+
+  /**
+   * Gives a login ID to a connection, unless another live connection
+   * already has it. On success the login ID is saved as the connection's
+   * <code>LOGIN_ID</code> info, replacing any previous one.
+   *
+   * @param client the connection.
+   * @param loginID the login ID.
+   * @return true if the connection now has the login ID, false if it
+   *  belongs to another connection.
+   */
+  public boolean claimLoginID(ConnectionToClient client, Object loginID)
+  {
+    ConnectionToClient owner = byLoginID.putIfAbsent(loginID, client);
+
+    if (owner != null && owner != client)
+      return false;
+
+    Object previous = client.getInfo(LOGIN_ID);
+    client.saveInfo(LOGIN_ID, loginID);
+
+    if (previous != null && !previous.equals(loginID))
+    {
+      byLoginID.remove(previous, client);
+      loginIDChanged(previous);
+    }
+
+    // A connection removed meanwhile must not stay indexed
+    if (!connections.contains(client))
+      byLoginID.remove(loginID, client);
+
+    if (owner == null)
+    {
+      metrics.loggedIn();
+      loginIDChanged(loginID);
+    }
+    return true;
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Adds a connection.
+   *
+   * @param client the new connection.
+   */
+  void add(ConnectionToClient client)
+  {
+    if (connections.add(client))
+    {
+      count.incrementAndGet();
+      metrics.connectionOpened();
+    }
+  }
+
+  /**
+   * @param client a connection.
+   * @return true if the connection is live.
+   */
+  boolean contains(ConnectionToClient client)
+  {
+    return connections.contains(client);
+  }
+
+  /**
+   * Removes a connection and its login ID. Has no effect if the
+   * connection was already removed.
+   *
+   * @param client the closed connection.
+   */
+  void remove(ConnectionToClient client)
+  {
+    if (!connections.remove(client))
+      return;
+
+    count.decrementAndGet();
+    metrics.connectionClosed();
+
+    Object loginID = client.getInfo(LOGIN_ID);
+    if (loginID != null && byLoginID.remove(loginID, client))
+      loginIDChanged(loginID);
+  }
+
+  /**
+   * Updates the index when a connection's login ID is set directly through
+   * <code>setInfo</code>, which, unlike <code>claimLoginID</code>, takes
+   * the login ID over from any other connection.
+   *
+   * @param client the connection.
+   * @param previous its former login ID, or null.
+   * @param loginID its new login ID, or null.
+   */
+  void loginIDChanged(ConnectionToClient client, Object previous,
+    Object loginID)
+  {
+    if (previous != null && byLoginID.remove(previous, client))
+      loginIDChanged(previous);
+
+    if (loginID != null && connections.contains(client))
+    {
+      byLoginID.put(loginID, client);
+      loginIDChanged(loginID);
+    }
+  }
+
+  /**
+   * Tells the cluster node, if any, that a login ID was taken or given up.
+   */
+  private void loginIDChanged(Object loginID)
+  {
+    ClusterNode node = cluster;
+    if (node != null)
+      node.userChanged(loginID.toString());
+  }
+}
+// End of ConnectionRegistry Class
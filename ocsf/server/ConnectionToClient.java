@@ -6,7 +6,17 @@ package ocsf.server;
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ocsf.codec.*;
 
 /**
  * An instance of this class is created by the server when a client connects. It
@@ -15,6 +25,28 @@ import java.util.HashMap;
  * contains a set of instances of this class and is responsible for adding and
  * deleting them.
  * <p>
+ * A connection is not itself a thread. With the threaded engines it reads the
+ * client's socket on a reader thread, platform or virtual, created by the
+ * server. When the server runs the <code>NIO_SELECTOR</code> engine the
+ * connection wraps a non-blocking socket channel instead and has no thread at
+ * all: a <code>SelectorWorker</code> feeds it the bytes the client sends.
+ * <p>
+ * The first bytes the client sends pick the codec of the connection; see
+ * <code>CodecHandshake</code>. Until the handshake completes the server is
+ * not told about the client and nothing can be sent to it.
+ * <p>
+ * Messages sent to the client are encoded by the sending thread into a
+ * bounded outbound queue and written out later, so a client that reads slowly
+ * only delays itself. The queue of a channel connection is drained by its
+ * selector worker; that of a threaded connection by a writer task the server
+ * starts whenever the queue stops being empty. Either way, whatever is queued
+ * when the connection writes is gathered into a single write call, and the
+ * server's maximum write delay lets more build up first. What happens once
+ * the queue is full is decided by the server's <code>SlowConsumerPolicy</code>.
+ * <p>
+ * Files are streamed to the client a chunk at a time, straight from the file
+ * to the socket, whenever the queue is empty; see <code>sendFile</code>.
+ * <p>
  * Project Name: OCSF (Object Client-Server Framework)
  * <p>
  * 
@@ -24,9 +56,65 @@ import java.util.HashMap;
  * @author Paul Holden
  * @version February 2001 (2.12)
  */
-public class ConnectionToClient extends Thread {
+public class ConnectionToClient implements Runnable {
+	// CONSTANTS ********************************************************
+
+	/**
+	 * The number of messages a channel connection may have waiting for
+	 * dispatch before the worker stops reading from its channel.
+	 */
+	private static final int	MAX_PENDING_MESSAGES	= 256;
+
+	/**
+	 * The number of messages dispatched in one go before the dispatch task
+	 * gives other connections a turn.
+	 */
+	private static final int	DISPATCH_BATCH			= 64;
+
+	/**
+	 * Stands for a null message in the dispatch queue, which cannot hold
+	 * nulls.
+	 */
+	private static final Object	NULL_MESSAGE			= new Object();
+
+	/**
+	 * The largest number of queued messages gathered into one write.
+	 */
+	private static final int	GATHER_LIMIT			= 64;
+
+	/**
+	 * The size of the buffer a threaded connection copies queued messages
+	 * into so as to write them in one call. Larger messages are written on
+	 * their own.
+	 */
+	private static final int	COALESCE_BUFFER_SIZE	= 64 * 1024;
+
+	/**
+	 * How long closing a threaded connection waits for its running writer
+	 * task to write what is queued, in milliseconds.
+	 */
+	private static final long	CLOSE_TIMEOUT			= 5000;
+
+	// CLASS VARIABLES **************************************************
+
+	/**
+	 * Numbers the connections to give each of them a name.
+	 */
+	private static final AtomicLong	connectionCount	= new AtomicLong();
+
 	// INSTANCE VARIABLES ***********************************************
 
+	/**
+	 * The name of this connection.
+	 */
+	private final String		name	= "ConnectionToClient-" + connectionCount.incrementAndGet();
+
+	/**
+	 * The thread reading from the socket of a threaded connection, or null
+	 * for a channel connection.
+	 */
+	private Thread				readerThread;
+
 	/**
 	 * A reference to the Server that created this instance.
 	 */
@@ -41,56 +129,257 @@ public class ConnectionToClient extends Thread {
 	private Socket				clientSocket;
 
 	/**
-	 * Stream used to read from the client.
+	 * Stream used to read from the client. It can push back the first bytes
+	 * of a client that did not send a codec offer.
+	 */
+	private PushbackInputStream	input;
+
+	/**
+	 * The codec chosen during the handshake, or null until then.
+	 */
+	private volatile Codec		codec;
+
+	/**
+	 * Encodes the messages sent to the client. Null until the handshake
+	 * completes and once the connection is closed.
+	 */
+	private MessageEncoder		encoder;
+
+	/**
+	 * Decodes the messages received from the client. Null until the
+	 * handshake completes.
+	 */
+	private MessageDecoder		decoder;
+
+	/**
+	 * The socket's output stream, which the writer task of a threaded
+	 * connection writes queued messages to.
+	 */
+	private OutputStream		socketOutput;
+
+	/**
+	 * Encoded messages waiting to be written to the client, oldest first.
+	 * Its length is bounded by the server's outbound queue capacity. Also
+	 * guards the encoder and the writing flag.
+	 */
+	private final ArrayDeque<ByteBuffer>	pendingOutput	= new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Indicates if a shared frame has been queued since the encoder last
+	 * encoded. The encoder must then be reset before encoding again, so
+	 * that it stops relying on what the client decoded before the frame.
+	 */
+	private boolean				outputNeedsReset;
+
+	/**
+	 * The file holding the messages past the queue's high-water mark under
+	 * the <code>SPILL_TO_DISK</code> policy, created when first needed.
+	 */
+	private SpillFile			spillFile;
+
+	/**
+	 * The number of messages discarded under the <code>DROP_OLDEST</code>
+	 * policy.
+	 */
+	private long				droppedMessages;
+
+	/**
+	 * The number of messages queued for the client, file chunks aside.
+	 * Guarded by the lock on the queue.
+	 */
+	private long				sentMessages;
+
+	/**
+	 * The session of the client, or null if it has none.
 	 */
-	private ObjectInputStream	input;
+	private volatile Session	session;
 
 	/**
-	 * Stream used to write to the client.
+	 * Indicates if the server closed the connection on purpose, rather than
+	 * losing it.
 	 */
-	private ObjectOutputStream	output;
+	private volatile boolean	closeRequested;
+
+	/**
+	 * The files being streamed to the client, in order. Guarded by the lock
+	 * on the queue.
+	 */
+	private final ArrayDeque<FileTransfer>	pendingTransfers	= new ArrayDeque<FileTransfer>();
+
+	/**
+	 * Indicates if a writer task is draining the queue of a threaded
+	 * connection. At most one runs at a time.
+	 */
+	private boolean				writing;
+
+	/**
+	 * The number of messages the writer task of a threaded connection has
+	 * taken from the queue and is writing.
+	 */
+	private int					inFlight;
+
+	/**
+	 * Indicates if messages are queued since <code>outputQueuedSince</code>
+	 * and have not been timed yet.
+	 */
+	private boolean				outputWaiting;
+
+	/**
+	 * When the oldest message queued was queued, or at most when queued
+	 * output was last written, in <code>System.nanoTime</code> terms.
+	 */
+	private long				outputQueuedSince;
+
+	/**
+	 * Indicates if the writer task of a threaded connection is waiting for
+	 * more output before it writes.
+	 */
+	private boolean				lingering;
+
+	/**
+	 * The buffer the writer task of a threaded connection coalesces
+	 * messages into, created when first needed.
+	 */
+	private byte[]				coalesceBuffer;
+
+	/**
+	 * The buffers gathered into one write to a channel, created when first
+	 * needed.
+	 */
+	private ByteBuffer[]		gatherBuffers;
+
+	/**
+	 * Indicates if the output of a channel connection is being held back
+	 * until its worker flushes it, once the maximum write delay is over.
+	 */
+	private boolean				flushScheduled;
+
+	/**
+	 * When a held back flush of a channel connection is due, in
+	 * <code>System.nanoTime</code> terms.
+	 */
+	private volatile long		flushDeadline;
+
+	/**
+	 * The number of write calls made to the client.
+	 */
+	private volatile long		writeCalls;
+
+	/**
+	 * The number of bytes written to the client.
+	 */
+	private volatile long		bytesWritten;
+
+	/**
+	 * The task draining the queue of a threaded connection.
+	 */
+	private final Runnable		writeTask	= new Runnable() {
+		public void run() {
+			writePending();
+		}
+	};
 
 	/**
 	 * Indicates if the thread is ready to stop. Set to true when closing of the
 	 * connection is initiated.
 	 */
-	private boolean				readyToStop;
+	private volatile boolean	readyToStop;
 
 	/**
 	 * Map to save information about the client such as its login ID. The
 	 * initial size of the map is small since it is not expected that concrete
 	 * servers will want to store many different types of information about each
-	 * client. Used by the setInfo and getInfo methods.
+	 * client. Used by the setInfo and getInfo methods. Concurrent, since with
+	 * concurrent dispatch other connections' handlers may read it.
+	 */
+	private ConcurrentHashMap<String, Object>	savedInfo	= new ConcurrentHashMap<String, Object>(10);
+
+	/**
+	 * The non-blocking channel of a connection serviced by a
+	 * <code>SelectorWorker</code>, or null for a threaded connection.
+	 */
+	private SocketChannel		channel;
+
+	/**
+	 * The worker whose selector the channel is registered with.
+	 */
+	private SelectorWorker		worker;
+
+	/**
+	 * The key of the channel in the worker's selector.
+	 */
+	private volatile SelectionKey	selectionKey;
+
+	/**
+	 * Bytes read from the channel that do not complete a message yet. Null
+	 * whenever nothing is left over, so idle clients hold no buffer.
+	 */
+	private ByteBuffer			pendingInput;
+
+	/**
+	 * Messages from a channel connection waiting to be handled by the
+	 * server's dispatch threads, oldest first. Also guards the two flags
+	 * below.
+	 */
+	private ArrayDeque<Object>	pendingMessages;
+
+	/**
+	 * When each pending message was read, in <code>System.nanoTime</code>
+	 * terms: a ring kept in step with the pending messages, starting at
+	 * <code>receivedHead</code>. Guarded by the pending messages.
+	 */
+	private long[]				receivedTimes;
+
+	/**
+	 * Where the time of the oldest pending message is in the ring.
+	 */
+	private int					receivedHead;
+
+	/**
+	 * Indicates if a dispatch task is handling the pending messages. At most
+	 * one runs at a time, which keeps the messages of a client in order.
 	 */
-	private HashMap				savedInfo	= new HashMap(10);
+	private boolean				dispatching;
+
+	/**
+	 * Indicates if the worker has stopped reading the channel because too
+	 * many messages are waiting for dispatch.
+	 */
+	private volatile boolean	readPaused;
+
+	/**
+	 * The task handling the pending messages.
+	 */
+	private Runnable			dispatchTask;
 
 	// CONSTRUCTORS *****************************************************
 
 	/**
-	 * Constructs a new connection to a client.
+	 * Constructs a new connection to a client. The connection's reader thread
+	 * is created but not started.
 	 * 
-	 * @param group
-	 *            the thread groupSystem.out.println("Client at "+ client +
-	 *            "connected"); that contains the connections.
 	 * @param clientSocket
 	 *            contains the client's socket.
 	 * @param server
 	 *            a reference to the server that created this instance
+	 * @param threads
+	 *            the factory creating the reader thread.
 	 * @exception IOException
 	 *                if an I/O error occur when creating the connection.
 	 */
-	ConnectionToClient(ThreadGroup group, Socket clientSocket, AbstractServer server) throws IOException {
-		super(group, (Runnable) null);
+	ConnectionToClient(Socket clientSocket, final AbstractServer server, ThreadFactory threads)
+			throws IOException {
 		// Initialize variables
 		this.clientSocket = clientSocket;
 		this.server = server;
 
 		clientSocket.setSoTimeout(0); // make sure timeout is infinite
 
-		// Initialize the objects streams
+		// Initialize the streams; the codec is chosen by the reader thread
 		try {
-			input = new ObjectInputStream(clientSocket.getInputStream());
-			output = new ObjectOutputStream(clientSocket.getOutputStream());
+			input = new PushbackInputStream(
+					new BufferedInputStream(new CountingInputStream(clientSocket.getInputStream())), 4);
+			socketOutput = clientSocket.getOutputStream();
 		} catch (IOException ex) {
 			try {
 				closeAll();
@@ -101,24 +390,134 @@ public class ConnectionToClient extends Thread {
 		}
 
 		readyToStop = false;
-		start(); // Start the thread waits for data from the socket
+
+		readerThread = threads.newThread(this);
+		readerThread.setName(name);
+
+		// All uncaught exceptions in the reader thread will
+		// be sent to the clientException callback method.
+		readerThread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread thread, Throwable exception) {
+				server.clientException(ConnectionToClient.this, exception);
+			}
+		});
+	}
+
+	/**
+	 * Constructs a new connection to a client over a non-blocking channel.
+	 * The connection has no thread; the worker services it.
+	 * 
+	 * @param channel
+	 *            the client's channel, already in non-blocking mode.
+	 * @param server
+	 *            a reference to the server that created this instance
+	 * @param worker
+	 *            the selector worker that will service the channel.
+	 */
+	ConnectionToClient(SocketChannel channel, AbstractServer server, SelectorWorker worker) {
+		this.channel = channel;
+		this.clientSocket = channel.socket();
+		this.server = server;
+		this.worker = worker;
+
+		pendingMessages = new ArrayDeque<Object>();
+		receivedTimes = new long[MAX_PENDING_MESSAGES];
+		dispatchTask = new Runnable() {
+			public void run() {
+				dispatchPending();
+			}
+		};
+
+		readyToStop = false;
 	}
 
 	// INSTANCE METHODS *************************************************
 
 	/**
-	 * Sends an object to the client.
+	 * Sends an object to the client. The object is encoded straight away
+	 * but written out later, so the method returns without waiting for the
+	 * client to accept it.
 	 * 
 	 * @param msg
 	 *            the message to be sent.
 	 * @exception IOException
-	 *                if an I/O error occur when sending the message.
+	 *                if an I/O error occur when sending the message, if the
+	 *                codec handshake has not completed yet, or if
+	 *                the client's outbound queue is full and the server's
+	 *                slow consumer policy refuses the message or disconnects
+	 *                the client.
 	 */
 	final public void sendToClient(Object msg) throws IOException {
-		if (clientSocket == null || output == null)
-			throw new SocketException("socket does not exist");
+		send(msg, null);
+	}
+
+	/**
+	 * Sends a message already encoded by the <code>encodeShared</code> method
+	 * of this connection's codec. The same frame can be sent to any number of
+	 * clients; each connection only keeps its own position in it.
+	 * 
+	 * @param msg
+	 *            the message, kept by the client's session if it has one.
+	 * @param frame
+	 *            the encoded message.
+	 * @exception IOException
+	 *                if an I/O error occur when sending the message, or if
+	 *                the slow consumer policy refuses it.
+	 */
+	final void sendFrame(Object msg, ByteBuffer frame) throws IOException {
+		send(msg, frame);
+	}
+
+	/**
+	 * Streams a file to the client as <code>FileChunk</code> frames, without
+	 * reading it into memory. Messages sent meanwhile are written between
+	 * chunks, so they do not wait for the transfer. The client needs a codec
+	 * writing binary frames.
+	 * 
+	 * @param transferID
+	 *            the transfer ID the chunks carry.
+	 * @param file
+	 *            the file, which must not change until the transfer is over.
+	 * @return a future completed once the whole file has been written, or
+	 *         completed exceptionally if the connection closes first.
+	 * @exception IOException
+	 *                if the file cannot be opened, if the connection is
+	 *                closed, or if its codec cannot stream files.
+	 */
+	final public CompletableFuture<Void> sendFile(int transferID, Path file) throws IOException {
+		Codec current = codec;
+
+		if (current == null)
+			throw new IOException("codec handshake not complete");
+
+		if (!BinaryCodec.usesBinaryFrames(current))
+			throw new IOException("codec " + current + " cannot stream files");
+
+		FileTransfer transfer = new FileTransfer(transferID, file);
+		boolean startWriter = false;
+
+		synchronized (pendingOutput) {
+			if (clientSocket == null) {
+				SocketException closed = new SocketException("socket does not exist");
+				transfer.finish(closed);
+				throw closed;
+			}
+
+			pendingTransfers.add(transfer);
 
-		output.writeObject(msg);
+			if (channel == null) {
+				startWriter = !writing;
+				writing = true;
+			}
+		}
+
+		if (channel != null)
+			worker.updateInterest(this);
+
+		if (startWriter)
+			server.getWriterExecutor().execute(writeTask);
+
+		return transfer.getFuture();
 	}
 
 	/**
@@ -127,21 +526,71 @@ public class ConnectionToClient extends Thread {
     * in some circumstances when Java refuses to send data that it thinks has been sent.
 	 */
 	final public void forceResetAfterSend() throws IOException {
-      output.reset();
+		synchronized (pendingOutput) {
+			if (encoder != null)
+				encoder.reset();
+		}
 	}
 
 	/**
 	 * Closes the client. If the connection is already closed, this call has no
-	 * effect.
+	 * effect. Messages still queued are written first; a channel is only
+	 * written to as far as it accepts without blocking, and the writer task
+	 * of a threaded connection is waited for at most a few seconds.
 	 * 
 	 * @exception IOException
 	 *                if an error occurs when closing the socket.
 	 */
 	final public void close() throws IOException {
+		close(true);
+	}
+
+	/**
+	 * Closes the client on one of the server's writer threads, so that the
+	 * caller does not wait for the messages still queued to be written, as
+	 * <code>close</code> may for a few seconds. Meant for a client dropped
+	 * while the server handles one of its messages.
+	 */
+	final public void closeLater() {
+		readyToStop = true;
+		closeRequested = true;
+
+		server.getWriterExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					close(true);
+				} catch (IOException ex) {
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes the client, writing the messages still queued first or giving
+	 * them up.
+	 * 
+	 * @param flush
+	 *            true to write the queued messages, false to drop them and
+	 *            close the socket at once.
+	 * @exception IOException
+	 *                if an error occurs when closing the socket.
+	 */
+	private void close(boolean flush) throws IOException {
 		readyToStop = true; // Set the flag that tells the thread to stop
+		closeRequested = true;
+
+		// A lost connection waiting for its client has no reader left to
+		// remove it
+		Session current = session;
+		boolean waiting = current != null && current.waitsFor(this);
 
 		try {
+			if (flush)
+				flushPendingOutput();
 			closeAll();
+
+			if (waiting)
+				server.removeConnection(this);
 		} finally {
 			server.clientDisconnected(this);
 		}
@@ -158,6 +607,115 @@ public class ConnectionToClient extends Thread {
 		return clientSocket == null ? null : clientSocket.getInetAddress();
 	}
 
+	/**
+	 * Returns the session of the client.
+	 * 
+	 * @return the session, or null if the client has none.
+	 * @see ocsf.server.AbstractServer#openSession
+	 */
+	final public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * Returns the codec the client and the server agreed on.
+	 * 
+	 * @return the codec, or null while the handshake is under way.
+	 */
+	final public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to the client.
+	 * 
+	 * @return the depth of the outbound queue.
+	 */
+	final public int getOutboundQueueDepth() {
+		synchronized (pendingOutput) {
+			return pendingOutput.size() + inFlight;
+		}
+	}
+
+	/**
+	 * Returns the number of write calls made to the client's socket or
+	 * channel.
+	 * 
+	 * @return the number of write calls.
+	 */
+	final public long getWriteCount() {
+		return writeCalls;
+	}
+
+	/**
+	 * Returns the number of bytes written to the client.
+	 * 
+	 * @return the number of bytes written.
+	 */
+	final public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the number of messages waiting in the spill file of the
+	 * client under the <code>SPILL_TO_DISK</code> policy. They are not
+	 * included in the outbound queue depth.
+	 * 
+	 * @return the number of spilled messages.
+	 */
+	final public int getSpilledMessageCount() {
+		synchronized (pendingOutput) {
+			return spillFile == null ? 0 : spillFile.size();
+		}
+	}
+
+	/**
+	 * Returns the number of messages discarded because the client fell
+	 * behind under the <code>DROP_OLDEST</code> policy.
+	 * 
+	 * @return the number of dropped messages.
+	 */
+	final public long getDroppedMessageCount() {
+		synchronized (pendingOutput) {
+			return droppedMessages;
+		}
+	}
+
+	/**
+	 * Returns the number of objects the encoder of this connection, and
+	 * therefore the client's decoder, keeps references to until the next
+	 * reset. Stays bounded under the server's reset policy.
+	 * 
+	 * @return the size of the handle table, or 0 if the codec keeps none.
+	 */
+	final public int getHandleCount() {
+		synchronized (pendingOutput) {
+			return encoder == null ? 0 : encoder.getHandleCount();
+		}
+	}
+
+	/**
+	 * Returns the number of times the encoder of this connection has been
+	 * reset.
+	 * 
+	 * @return the reset count.
+	 */
+	final public long getResetCount() {
+		synchronized (pendingOutput) {
+			return encoder == null ? 0 : encoder.getResetCount();
+		}
+	}
+
+	/**
+	 * Returns the name of this connection, which is also the name of its
+	 * reader thread if it has one.
+	 * 
+	 * @return the connection's name.
+	 */
+	final public String getName() {
+		return name;
+	}
+
 	/**
 	 * Returns a string representation of the client.
 	 * 
@@ -170,15 +728,20 @@ public class ConnectionToClient extends Thread {
 
 	/**
 	 * Saves arbitrary information about this client. Designed to be used by
-	 * concrete subclasses of AbstractServer. Based on a hash map.
+	 * concrete subclasses of AbstractServer. Based on a hash map. Setting
+	 * the <code>ConnectionRegistry.LOGIN_ID</code> info also indexes the
+	 * connection by login ID in the server's registry.
 	 * 
 	 * @param infoType
 	 *            identifies the type of information
 	 * @param info
-	 *            the information itself.
+	 *            the information itself, or null to forget it.
 	 */
 	public void setInfo(String infoType, Object info) {
-		savedInfo.put(infoType, info);
+		Object previous = saveInfo(infoType, info);
+
+		if (ConnectionRegistry.LOGIN_ID.equals(infoType))
+			server.getConnectionRegistry().loginIDChanged(this, previous, info);
 	}
 
 	/**
@@ -195,23 +758,23 @@ public class ConnectionToClient extends Thread {
 	// RUN METHOD -------------------------------------------------------
 
 	/**
-	 * Constantly reads the client's input stream. Sends all objects that are
-	 * read to the server. Not to be called.
+	 * Negotiates the codec, then constantly reads the client's input stream.
+	 * Sends all objects that are read to the server. Not to be called.
 	 */
 	final public void run() {
-		server.clientConnected(this);
-
 		// This loop reads the input stream and responds to messages
 		// from clients
 		try {
+			establish(CodecHandshake.accept(input, server.getCodecs()));
+
 			// The message from the client
 			Object msg;
 
 			while (!readyToStop) {
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				msg = input.readObject();
-				server.receiveMessageFromClient(msg, this);
+				msg = decoder.read(input);
+				server.receiveMessageFromClient(msg, this, System.nanoTime());
 			}
 		} catch (Exception exception) {
 			if (!readyToStop) {
@@ -220,43 +783,1091 @@ public class ConnectionToClient extends Thread {
 				} catch (Exception ex) {
 				}
 
-				server.clientException(this, exception);
+				server.connectionLost(this, exception);
 			}
+		} finally {
+			// Like a thread leaving its group, the connection stops being
+			// counted once its reader ends
+			server.removeConnection(this);
 		}
 	}
 
 	// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
 	/**
-	 * Closes all connection to the server.
+	 * Saves information about this client without updating the server's
+	 * registry.
 	 * 
-	 * @exception IOException
-	 *                if an I/O error occur when closing the connection.
-	 */
-	private void closeAll() throws IOException {
+	 * @param infoType
+	 *            identifies the type of information
+	 * @param info
+	 *            the information itself, or null to forget it.
+	 * @return the information previously saved, or null.
+	 */
+	Object saveInfo(String infoType, Object info) {
+		if (info == null)
+			return savedInfo.remove(infoType);
+		else
+			return savedInfo.put(infoType, info);
+	}
+
+	/**
+	 * Opens a session for the client, unless it has one.
+	 * 
+	 * @param capacity
+	 *            the number of messages the session keeps.
+	 * @return the session.
+	 */
+	Session openSession(int capacity) {
+		synchronized (pendingOutput) {
+			if (session == null)
+				session = new Session(this, sentMessages, capacity);
+			return session;
+		}
+	}
+
+	/**
+	 * Takes over the session of a client that lost its connection: queues
+	 * an acknowledgement, not counted among the session's messages, then
+	 * the messages the client missed, ahead of any other.
+	 * 
+	 * @param previous
+	 *            the session.
+	 * @param received
+	 *            the number of messages the client received.
+	 * @param acknowledgement
+	 *            the message telling the client its session was resumed.
+	 * @return false if the session cannot be resumed.
+	 * @exception IOException
+	 *                if the messages cannot be encoded.
+	 */
+	boolean resume(Session previous, long received, Object acknowledgement) throws IOException {
+		synchronized (pendingOutput) {
+			if (clientSocket == null || encoder == null || session != null)
+				return false;
+
+			Object[] missed = previous.moveTo(this, received);
+			if (missed == null)
+				return false;
+
+			session = previous;
+
+			// Each message is encoded from a fresh state, as the client
+			// may yet lose the connection before reading all of them
+			encoder.reset();
+			pendingOutput.add(encoder.encode(acknowledgement));
+			for (Object msg : missed) {
+				encoder.reset();
+				pendingOutput.add(encoder.encode(msg));
+			}
+			outputNeedsReset = true;
+		}
+
+		startOutput();
+		return true;
+	}
+
+	/**
+	 * Ends the session of the client, if it has one, so that losing the
+	 * connection ends it as well.
+	 */
+	void endSession() {
+		session = null;
+	}
+
+	/**
+	 * Takes the information saved about a client that lost its connection,
+	 * its login ID included.
+	 * 
+	 * @param previous
+	 *            the lost connection of the client.
+	 */
+	void takeInfo(ConnectionToClient previous) {
+		for (String infoType : previous.savedInfo.keySet())
+			setInfo(infoType, previous.getInfo(infoType));
+	}
+
+	/**
+	 * Closes a lost connection whose client came back on another, without
+	 * telling the server: as far as it is concerned, the client never left.
+	 */
+	void supersede() {
+		readyToStop = true;
+		closeRequested = true;
+
+		try {
+			closeAll();
+		} catch (IOException ex) {
+		}
+	}
+
+	/**
+	 * @return true if the server closed the connection on purpose.
+	 */
+	boolean isCloseRequested() {
+		return closeRequested;
+	}
+
+	/**
+	 * Starts the reader thread of a threaded connection.
+	 */
+	void start() {
+		readerThread.start();
+	}
+
+	/**
+	 * Changes when the encoder of this connection resets by itself.
+	 * 
+	 * @param policy
+	 *            the reset policy.
+	 */
+	void setResetPolicy(ResetPolicy policy) {
+		synchronized (pendingOutput) {
+			if (encoder != null)
+				encoder.setResetPolicy(policy);
+		}
+	}
+
+	/**
+	 * @return the channel of a connection serviced by a selector worker.
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the key of the channel in its worker's selector.
+	 */
+	SelectionKey getSelectionKey() {
+		return selectionKey;
+	}
+
+	/**
+	 * Records the key of the channel once the worker has registered it.
+	 * 
+	 * @param key
+	 *            the selection key.
+	 */
+	void setSelectionKey(SelectionKey key) {
+		selectionKey = key;
+	}
+
+	/**
+	 * Reads what the client has sent and passes every complete message to the
+	 * server, either directly or through the server's dispatch threads. The
+	 * first bytes are the codec handshake. Called by the selector worker when
+	 * the channel is readable.
+	 * 
+	 * @param buffer
+	 *            the worker's read buffer, empty and ready to be filled.
+	 * @exception Exception
+	 *                if the channel fails, reaches its end, or the server
+	 *                fails to handle a message.
+	 */
+	void readFromChannel(ByteBuffer buffer) throws Exception {
+		int count = channel.read(buffer);
+		if (count < 0)
+			throw new EOFException("channel closed by client");
+
+		server.getMetrics().bytesRead(count);
+		long receivedAt = System.nanoTime();
+
+		buffer.flip();
+
+		ByteBuffer source = buffer;
+		if (pendingInput != null) {
+			pendingInput = append(pendingInput, buffer);
+			pendingInput.flip();
+			source = pendingInput;
+		}
+
+		if (decoder == null) {
+			CodecHandshake.Acceptance acceptance = CodecHandshake.accept(source, server.getCodecs());
+
+			if (acceptance != null)
+				establish(acceptance);
+		}
+
+		Object msg;
+		while (decoder != null && !readyToStop
+				&& (msg = decoder.decode(source)) != MessageDecoder.INCOMPLETE) {
+			if (server.isConcurrentDispatch())
+				queueForDispatch(msg, receivedAt);
+			else
+				server.receiveMessageFromClient(msg, this, receivedAt);
+		}
+
+		if (source.hasRemaining() && !readyToStop) {
+			// Keep the start of a message until the rest arrives
+			if (source == buffer)
+				pendingInput = append(null, buffer);
+			else
+				pendingInput.compact();
+		} else {
+			pendingInput = null;
+		}
+	}
+
+	/**
+	 * @return when the held back output of the channel is due to be
+	 *         flushed, in <code>System.nanoTime</code> terms.
+	 */
+	long getFlushDeadline() {
+		return flushDeadline;
+	}
+
+	/**
+	 * Writes as much queued output as the channel accepts. Called by the
+	 * selector worker when the channel is writable, and when held back
+	 * output is due.
+	 * 
+	 * @exception IOException
+	 *                if the channel fails.
+	 */
+	void writeToChannel() throws IOException {
+		synchronized (pendingOutput) {
+			drainOutput();
+		}
+	}
+
+	/**
+	 * Returns the operations the worker should select the channel for: reads
+	 * unless they are paused, and writes while output is queued and not
+	 * held back or a file is being streamed.
+	 * 
+	 * @return the interest set of the channel.
+	 */
+	int interestOps() {
+		int ops = readPaused ? 0 : SelectionKey.OP_READ;
+
+		synchronized (pendingOutput) {
+			// Output held back is written when the worker flushes it
+			if ((!pendingOutput.isEmpty() && !flushScheduled) || !pendingTransfers.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+
+	/**
+	 * Handles the failure of a channel the same way the run method handles
+	 * the failure of a socket.
+	 * 
+	 * @param exception
+	 *            the exception raised while servicing the channel.
+	 */
+	void channelFailed(Exception exception) {
+		if (!readyToStop) {
+			// Whichever of the worker and the dispatch threads fails first
+			// reports the exception
+			readyToStop = true;
+
+			try {
+				closeAll();
+			} catch (Exception ex) {
+			}
+
+			server.connectionLost(this, exception);
+		}
+	}
+
+	/**
+	 * Queues a message for the client, applying the server's slow consumer
+	 * policy, and makes sure it gets written.
+	 * 
+	 * @param msg
+	 *            the message to encode, if no frame is given.
+	 * @param sharedFrame
+	 *            the message already encoded by the codec's
+	 *            <code>encodeShared</code>, or null.
+	 * @exception IOException
+	 *                if the message cannot be queued.
+	 */
+	private void send(Object msg, ByteBuffer sharedFrame) throws IOException {
+		boolean overflow;
+		boolean drained = true;
+		boolean startWriter = false;
+		boolean scheduleFlush = false;
+		SlowConsumerPolicy policy = server.getSlowConsumerPolicy();
+		long delay = server.getMaxWriteDelayNanos();
+
+		if (clientSocket == null && sendAfterLoss(msg))
+			return;
+
+		synchronized (pendingOutput) {
+			if (clientSocket == null)
+				throw new SocketException("socket does not exist");
+
+			if (encoder == null)
+				throw new IOException("codec handshake not complete");
+
+			overflow = pendingOutput.size() >= server.getOutboundQueueCapacity()
+					&& (policy == SlowConsumerPolicy.REJECT || policy == SlowConsumerPolicy.DISCONNECT);
+
+			if (overflow && policy == SlowConsumerPolicy.REJECT)
+				throw new IOException("outbound queue full");
+
+			if (!overflow) {
+				ByteBuffer frame;
+
+				if (sharedFrame != null) {
+					frame = sharedFrame.duplicate();
+					outputNeedsReset = true;
+				} else {
+					if (policy == SlowConsumerPolicy.DROP_OLDEST || outputNeedsReset) {
+						// A queued message can only be dropped if the client
+						// can read the next one without it, so each message
+						// is encoded from a fresh state
+						encoder.reset();
+						outputNeedsReset = false;
+					}
+
+					frame = encoder.encode(msg);
+				}
+
+				overflow = !queueFrame(frame, policy);
+
+				if (!overflow)
+					server.getMetrics().messageQueued(pendingOutput.size() + inFlight);
+
+				if (!overflow && isCounted(msg)) {
+					sentMessages++;
+
+					if (session != null)
+						session.record(this, msg);
+				}
+			}
+
+			if (overflow) {
+				// The client is disconnected below, outside the lock
+			} else if (channel != null) {
+				if (delay > 0 && pendingOutput.size() < GATHER_LIMIT) {
+					// Hold the output back, unless that is already done
+					if (!flushScheduled && pendingOutput.size() == 1) {
+						flushScheduled = true;
+						flushDeadline = System.nanoTime() + delay;
+						scheduleFlush = true;
+					}
+				} else if (pendingOutput.size() == 1 || flushScheduled) {
+					// Try the channel right away if nothing is ahead in line
+					drained = drainOutput();
+				} else {
+					drained = false;
+				}
+			} else {
+				startWriter = !writing;
+				writing = true;
+
+				// A full batch is worth writing without further delay
+				if (lingering && pendingOutput.size() >= GATHER_LIMIT)
+					pendingOutput.notify();
+			}
+		}
+
+		if (overflow) {
+			// Whatever a stuck writer has not written is given up without
+			// waiting, so the sender, maybe a broadcast, is not held up
+			close(false);
+			throw new IOException("slow consumer disconnected");
+		}
+
+		if (!drained)
+			worker.updateInterest(this);
+
+		if (scheduleFlush)
+			worker.scheduleFlush(this);
+
+		if (startWriter)
+			server.getWriterExecutor().execute(writeTask);
+	}
+
+	/**
+	 * Handles a message sent after the connection was lost: it waits in the
+	 * client's session for the client to come back, or goes to the
+	 * connection the client came back on.
+	 * 
+	 * @param msg
+	 *            the message.
+	 * @return false if the client has no session to take the message.
+	 * @exception IOException
+	 *                if the new connection cannot take the message.
+	 */
+	private boolean sendAfterLoss(Object msg) throws IOException {
+		Session current = session;
+
+		if (current == null)
+			return false;
+
+		if (current.waitsFor(this)) {
+			if (isCounted(msg))
+				current.record(this, msg);
+			return true;
+		}
+
+		ConnectionToClient successor = current.getConnection();
+		if (successor == null || successor == this)
+			return false;
+
+		successor.sendToClient(msg);
+		return true;
+	}
+
+	/**
+	 * Completes the codec handshake: queues the answer to the client's offer
+	 * and the header of the chosen codec, then tells the server the client
+	 * has connected. If the server supports none of the codecs offered, the
+	 * refusal is written out as far as possible and the handshake fails.
+	 * 
+	 * @param acceptance
+	 *            the outcome of the client's offer.
+	 * @exception IOException
+	 *                if no codec was agreed on or its encoder cannot be
+	 *                created.
+	 */
+	private void establish(CodecHandshake.Acceptance acceptance) throws IOException {
+		Codec chosen = acceptance.getCodec();
+
+		synchronized (pendingOutput) {
+			if (acceptance.getAnswer() != null)
+				pendingOutput.add(acceptance.getAnswer());
+
+			if (chosen != null) {
+				encoder = chosen.newEncoder();
+				encoder.setResetPolicy(server.getResetPolicy());
+				decoder = chosen.newDecoder();
+				codec = chosen;
+
+				ByteBuffer header = encoder.header();
+				if (header.hasRemaining())
+					pendingOutput.add(header);
+			}
+		}
+
+		if (chosen == null) {
+			flushPendingOutput();
+			throw new IOException("no codec in common with the client");
+		}
+
+		startOutput();
+		server.clientConnected(this);
+	}
+
+	/**
+	 * Makes sure what was queued outside of <code>send</code> gets written.
+	 * 
+	 * @exception IOException
+	 *                if the channel fails.
+	 */
+	private void startOutput() throws IOException {
+		boolean drained = true;
+		boolean startWriter = false;
+
+		synchronized (pendingOutput) {
+			if (pendingOutput.isEmpty()) {
+				// Nothing to write
+			} else if (channel != null) {
+				drained = drainOutput();
+			} else {
+				startWriter = !writing;
+				writing = true;
+			}
+		}
+
+		if (!drained)
+			worker.updateInterest(this);
+
+		if (startWriter)
+			server.getWriterExecutor().execute(writeTask);
+	}
+
+	/**
+	 * Adds an encoded message to the outbound queue, applying the slow
+	 * consumer policy if the queue has reached its high-water mark. Must be
+	 * called while holding the lock on the queue.
+	 * 
+	 * @param frame
+	 *            the encoded message.
+	 * @param policy
+	 *            the server's slow consumer policy.
+	 * @return false if the client must be disconnected because the message
+	 *         fits nowhere.
+	 * @exception IOException
+	 *                if a spill file cannot be created.
+	 */
+	private boolean queueFrame(ByteBuffer frame, SlowConsumerPolicy policy) throws IOException {
+		// Once messages have spilled, later ones follow them to keep order
+		if (spillFile != null && spillFile.size() > 0)
+			return spillFile.append(frame);
+
+		if (pendingOutput.size() < server.getOutboundQueueCapacity()) {
+			if (!outputWaiting) {
+				outputQueuedSince = System.nanoTime();
+				outputWaiting = true;
+			}
+
+			pendingOutput.add(frame);
+			return true;
+		}
+
+		switch (policy) {
+		case DROP_OLDEST:
+			if (channel == null) {
+				// The writer task takes what it writes out of the queue
+				pendingOutput.poll();
+				pendingOutput.add(frame);
+			} else if (pendingOutput.size() > 1) {
+				// The head of the queue may be half written, so the
+				// message after it goes; with nothing after it the new
+				// message goes
+				ByteBuffer head = pendingOutput.poll();
+				pendingOutput.poll();
+				pendingOutput.addFirst(head);
+				pendingOutput.add(frame);
+			}
+			droppedMessages++;
+
+			// The client's count of messages no longer matches the session's
+			if (session != null)
+				session.markLossy();
+			return true;
+
+		case SPILL_TO_DISK:
+			if (spillFile == null)
+				spillFile = new SpillFile(server.getSpillFileCapacity());
+			return spillFile.append(frame);
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Moves spilled messages back into the outbound queue once the queue
+	 * has drained to half its capacity. Must be called while holding the
+	 * lock on the queue.
+	 */
+	private void refillFromSpill() {
+		if (spillFile == null || spillFile.size() == 0)
+			return;
+
+		int capacity = server.getOutboundQueueCapacity();
+
+		if (pendingOutput.size() > capacity / 2)
+			return;
+
+		ByteBuffer next;
+		while (pendingOutput.size() < capacity && (next = spillFile.next()) != null)
+			pendingOutput.add(next);
+	}
+
+	/**
+	 * Writes the queue of a threaded connection to the socket until it is
+	 * empty. Run by the writer task. Queued messages are taken in batches,
+	 * copied together and written in one call; they count in the queue depth
+	 * until they have been written. If the socket fails the connection is
+	 * closed, which makes the reader thread report the failure.
+	 */
+	private void writePending() {
+		ByteBuffer[] batch = new ByteBuffer[GATHER_LIMIT];
+		WritableByteChannel outChannel = null;
+
+		while (true) {
+			OutputStream out;
+			FileTransfer transfer = null;
+			int count = 0;
+
+			synchronized (pendingOutput) {
+				inFlight = 0;
+				refillFromSpill();
+				lingerForOutput();
+
+				out = socketOutput;
+
+				if ((pendingOutput.isEmpty() && pendingTransfers.isEmpty()) || out == null) {
+					writing = false;
+
+					// Closing the connection may be waiting for the queue
+					// to be written
+					pendingOutput.notifyAll();
+					return;
+				}
+
+				// Files are streamed a chunk at a time, when nothing else
+				// is waiting
+				if (pendingOutput.isEmpty())
+					transfer = pendingTransfers.peek();
+
+				// Take whole messages while they fit in the buffer
+				int length = 0;
+				ByteBuffer next;
+				while (count < GATHER_LIMIT && (next = pendingOutput.peek()) != null
+						&& (count == 0 || length + next.remaining() <= COALESCE_BUFFER_SIZE)) {
+					batch[count++] = pendingOutput.poll();
+					length += next.remaining();
+				}
+				inFlight = count;
+
+				if (count > 0)
+					timeOutput();
+			}
+
+			try {
+				if (transfer != null) {
+					if (outChannel == null)
+						outChannel = Channels.newChannel(out);
+
+					recordWrite(transfer.writeChunk(outChannel));
+					finishTransfer(transfer);
+				} else {
+					writeBatch(out, batch, count);
+				}
+			} catch (IOException ex) {
+				synchronized (pendingOutput) {
+					writing = false;
+					inFlight = 0;
+					pendingOutput.notifyAll();
+				}
+				try {
+					closeAll();
+				} catch (IOException exc) {
+				}
+				return;
+			} finally {
+				Arrays.fill(batch, 0, count, null);
+			}
+		}
+	}
+
+	/**
+	 * Removes a file transfer once all of it has been written.
+	 * 
+	 * @param transfer
+	 *            the transfer.
+	 */
+	private void finishTransfer(FileTransfer transfer) {
+		synchronized (pendingOutput) {
+			// Unless closing the connection has failed it meanwhile
+			if (transfer.isComplete() && pendingTransfers.remove(transfer))
+				transfer.finish(null);
+		}
+	}
+
+	/**
+	 * Writes a batch of messages to the socket of a threaded connection in
+	 * one call, or the one message of a batch directly.
+	 * 
+	 * @param out
+	 *            the socket's output stream.
+	 * @param batch
+	 *            the messages.
+	 * @param count
+	 *            the number of messages in the batch.
+	 * @exception IOException
+	 *                if the socket fails.
+	 */
+	private void writeBatch(OutputStream out, ByteBuffer[] batch, int count) throws IOException {
+		byte[] bytes;
+		int offset;
+		int length;
+
+		if (count == 1) {
+			bytes = batch[0].array();
+			offset = batch[0].arrayOffset() + batch[0].position();
+			length = batch[0].remaining();
+		} else {
+			if (coalesceBuffer == null)
+				coalesceBuffer = new byte[COALESCE_BUFFER_SIZE];
+
+			bytes = coalesceBuffer;
+			offset = 0;
+			length = 0;
+
+			for (int i = 0; i < count; i++) {
+				batch[i].duplicate().get(bytes, length, batch[i].remaining());
+				length += batch[i].remaining();
+			}
+		}
+
+		out.write(bytes, offset, length);
+		recordWrite(length);
+	}
+
+	/**
+	 * Waits, up to the server's maximum write delay, for a short queue to
+	 * fill up to a full batch before the writer task of a threaded
+	 * connection writes it. Must be called while holding the lock on the
+	 * queue.
+	 */
+	private void lingerForOutput() {
+		long delay = server.getMaxWriteDelayNanos();
+
+		if (delay <= 0 || pendingOutput.isEmpty() || pendingOutput.size() >= GATHER_LIMIT)
+			return;
+
+		long deadline = System.nanoTime() + delay;
+		lingering = true;
+		try {
+			while (pendingOutput.size() < GATHER_LIMIT && socketOutput != null && !readyToStop) {
+				long left = deadline - System.nanoTime();
+
+				if (left <= 0)
+					break;
+
+				pendingOutput.wait(left / 1000000, (int) (left % 1000000));
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lingering = false;
+		}
+	}
+
+	/**
+	 * Counts a write call made to the client.
+	 * 
+	 * @param bytes
+	 *            the number of bytes written.
+	 */
+	private void recordWrite(long bytes) {
+		writeCalls++;
+		bytesWritten += bytes;
+		server.recordWrite(bytes);
+	}
+
+	/**
+	 * Counts how long the oldest of the output about to be written was
+	 * queued. What is left queued afterwards is counted from now, which
+	 * it may in fact predate. Must be called while holding the lock on the
+	 * queue.
+	 */
+	private void timeOutput() {
+		long now = System.nanoTime();
+
+		if (outputWaiting)
+			server.getMetrics().outputWaited(now - outputQueuedSince);
+
+		outputQueuedSince = now;
+		outputWaiting = !pendingOutput.isEmpty();
+	}
+
+	/**
+	 * Writes out the messages still queued when the connection is closed. A
+	 * channel is only written to as far as it accepts without blocking. The
+	 * writer task of a threaded connection, if running, is left to write the
+	 * queue for up to <code>CLOSE_TIMEOUT</code>; a writer still busy after
+	 * that is taken to be stuck on the client, and what it has not written
+	 * is given up.
+	 */
+	private void flushPendingOutput() {
+		try {
+			if (channel != null) {
+				synchronized (pendingOutput) {
+					if (clientSocket != null)
+						drainOutput();
+				}
+				return;
+			}
+
+			ByteBuffer[] remaining;
+			OutputStream out;
+
+			synchronized (pendingOutput) {
+				// A lingering writer task stops waiting for more output
+				pendingOutput.notifyAll();
+
+				long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+				while (writing && socketOutput != null) {
+					long left = deadline - System.currentTimeMillis();
+
+					if (left <= 0)
+						return;
+
+					pendingOutput.wait(left);
+				}
+
+				if (socketOutput == null)
+					return;
+
+				writing = true;
+				out = socketOutput;
+
+				// Whatever is still on disk is given up
+				remaining = pendingOutput.toArray(new ByteBuffer[0]);
+				pendingOutput.clear();
+			}
+
+			for (ByteBuffer next : remaining)
+				out.write(next.array(), next.arrayOffset() + next.position(), next.remaining());
+		} catch (IOException ex) {
+			// The connection is being closed anyway
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues a message for the server's dispatch threads, starting a dispatch
+	 * task if none is running. Reading is paused when the queue is full.
+	 * 
+	 * @param msg
+	 *            the message received.
+	 * @param receivedAt
+	 *            when it was read.
+	 */
+	private void queueForDispatch(Object msg, long receivedAt) {
+		boolean schedule;
+
+		synchronized (pendingMessages) {
+			int count = pendingMessages.size();
+
+			if (count == receivedTimes.length) {
+				long[] grown = new long[2 * count];
+				for (int i = 0; i < count; i++)
+					grown[i] = receivedTimes[(receivedHead + i) % count];
+				receivedTimes = grown;
+				receivedHead = 0;
+			}
+
+			receivedTimes[(receivedHead + count) % receivedTimes.length] = receivedAt;
+			pendingMessages.add(msg == null ? NULL_MESSAGE : msg);
+
+			if (pendingMessages.size() >= MAX_PENDING_MESSAGES)
+				readPaused = true;
+
+			schedule = !dispatching;
+			dispatching = true;
+		}
+
+		if (schedule)
+			server.getDispatchExecutor().execute(dispatchTask);
+	}
+
+	/**
+	 * Hands a batch of pending messages to the server, one at a time and in
+	 * the order they were received. Reading is resumed once the queue has
+	 * drained by half, and the task requeues itself if messages are left.
+	 */
+	private void dispatchPending() {
+		for (int i = 0; i < DISPATCH_BATCH; i++) {
+			Object msg;
+			long receivedAt = 0;
+			boolean resume = false;
+
+			synchronized (pendingMessages) {
+				msg = pendingMessages.poll();
+
+				if (msg == null) {
+					dispatching = false;
+				} else {
+					receivedAt = receivedTimes[receivedHead];
+					receivedHead = (receivedHead + 1) % receivedTimes.length;
+				}
+
+				if (readPaused && pendingMessages.size() <= MAX_PENDING_MESSAGES / 2) {
+					readPaused = false;
+					resume = true;
+				}
+			}
+
+			if (resume)
+				worker.updateInterest(this);
+
+			if (msg == null)
+				return;
+
+			if (readyToStop)
+				continue;
+
+			try {
+				server.receiveMessageFromClient(msg == NULL_MESSAGE ? null : msg, this, receivedAt);
+			} catch (Exception ex) {
+				channelFailed(ex);
+			}
+		}
+
+		// Let the messages of other clients through before carrying on
+		server.getDispatchExecutor().execute(dispatchTask);
+	}
+
+	/**
+	 * Writes queued output until the queue is empty or the channel is full,
+	 * gathering up to a batch of messages into each write, then streams the
+	 * pending files a chunk at a time, going back to the queue between
+	 * chunks. Must be called while holding the lock on the queue.
+	 * 
+	 * @return true if the queue is empty and no file is being streamed.
+	 * @exception IOException
+	 *                if the channel or a file fails.
+	 */
+	private boolean drainOutput() throws IOException {
+		flushScheduled = false;
+
+		if (gatherBuffers == null)
+			gatherBuffers = new ByteBuffer[GATHER_LIMIT];
+
+		while (true) {
+			FileTransfer transfer = pendingTransfers.peek();
+
+			// A chunk under way is finished before anything else
+			if (transfer != null && (transfer.isInChunk() || pendingOutput.isEmpty())) {
+				recordWrite(transfer.writeChunk(channel));
+
+				if (transfer.isInChunk())
+					return false;
+
+				finishTransfer(transfer);
+				continue;
+			}
+
+			if (pendingOutput.isEmpty()) {
+				outputWaiting = false;
+				return true;
+			}
+
+			timeOutput();
+
+			int count = 0;
+			for (ByteBuffer next : pendingOutput) {
+				gatherBuffers[count++] = next;
+
+				if (count == GATHER_LIMIT)
+					break;
+			}
+
+			long written = channel.write(gatherBuffers, 0, count);
+			boolean full = gatherBuffers[count - 1].hasRemaining();
+
+			Arrays.fill(gatherBuffers, 0, count, null);
+			recordWrite(written);
+
+			// Only the head of the queue can be left half written
+			ByteBuffer next;
+			while ((next = pendingOutput.peek()) != null && !next.hasRemaining()) {
+				pendingOutput.poll();
+				refillFromSpill();
+			}
+
+			if (full)
+				return false;
+		}
+	}
+
+	/**
+	 * Tells if a message counts among those of the client's session. The
+	 * client counts neither file chunks nor pings, so they are not recorded
+	 * for replay when it resumes either.
+	 * 
+	 * @param msg
+	 *            the message sent.
+	 * @return true if the message is counted.
+	 */
+	private static boolean isCounted(Object msg) {
+		return !(msg instanceof FileChunk) && !(msg instanceof Ping);
+	}
+
+	/**
+	 * Appends the remaining bytes of one buffer to another, growing it when
+	 * needed.
+	 * 
+	 * @param target
+	 *            the buffer to append to, in write mode, or null.
+	 * @param bytes
+	 *            the bytes to append.
+	 * @return the buffer holding the result, in write mode.
+	 */
+	private static ByteBuffer append(ByteBuffer target, ByteBuffer bytes) {
+		if (target == null || target.remaining() < bytes.remaining()) {
+			int used = target == null ? 0 : target.position();
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * used, used + bytes.remaining()));
+
+			if (target != null) {
+				target.flip();
+				grown.put(target);
+			}
+			target = grown;
+		}
+		return target.put(bytes);
+	}
+
+	/**
+	 * Closes all connection to the server.
+	 * 
+	 * @exception IOException
+	 *                if an I/O error occur when closing the connection.
+	 */
+	private void closeAll() throws IOException {
 		try {
 			// Close the socket
 			if (clientSocket != null)
 				clientSocket.close();
 
-			// Close the output stream
-			if (output != null)
-				output.close();
+			// A channel connection has no reader thread to end, so it
+			// stops being counted as soon as it is closed
+			if (channel != null)
+				server.removeConnection(this);
+
+			// The encoder only writes to buffers, so it is dropped
+			// below rather than closed
 
 			// Close the input stream
 			if (input != null)
 				input.close();
 		} finally {
+			// Queued messages can no longer be written
+			synchronized (pendingOutput) {
+				pendingOutput.clear();
+				socketOutput = null;
+				encoder = null;
+
+				FileTransfer transfer;
+				while ((transfer = pendingTransfers.poll()) != null)
+					transfer.finish(new SocketException("connection closed"));
+
+				// A writer task waiting for more output gives up
+				pendingOutput.notifyAll();
+
+				if (spillFile != null) {
+					spillFile.close();
+					spillFile = null;
+				}
+			}
+
+			// The decoder may hold native memory, such as an inflater's
+			if (decoder != null)
+				decoder.close();
+
 			// Set the streams and the sockets to NULL no matter what
 			// Doing so allows, but does not require, any finalizers
 			// of these objects to reclaim system resources if and
 			// when they are garbage collected.
-			output = null;
 			input = null;
 			clientSocket = null;
 		}
 	}
 
+	/**
+	 * Counts the bytes read from the socket of a threaded connection in the
+	 * server's metrics. It sits below the buffer, so it counts whole reads.
+	 */
+	private final class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				server.getMetrics().bytesRead(1);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count > 0)
+				server.getMetrics().bytesRead(count);
+			return count;
+		}
+	}
+
 	/**
 	 * This method is called by garbage collection.
 	 */
@@ -0,0 +1,191 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+
+import ocsf.codec.*;
+
+/**
+* A <code> FileTransfer </code> is a file being streamed to a client as a
+* sequence of <code> FILE_CHUNK </code> frames. Each frame is a small header
+* followed by bytes moved from the file to the socket by
+* <code> FileChannel.transferTo</code>, which lets the operating system
+* copy them without going through the heap when the connection has a
+* channel.<p>
+*
+* A connection writes its queued messages before each chunk, so a transfer
+* never holds up chat; once a chunk is started it is finished before
+* anything else is written. A transfer is only used by one thread at a
+* time: one holding the lock on the queue of its connection, or the writer
+* task of a threaded connection.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.ConnectionToClient#sendFile
+*/
+final class FileTransfer
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The transfer ID carried by the chunks.
+   */
+  private final int transferID;
+
+  /**
+   * The file.
+   */
+  private final FileChannel file;
+
+  /**
+   * The number of bytes to send.
+   */
+  private final long size;
+
+  /**
+   * Completed once the whole file has been written.
+   */
+  private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+  /**
+   * Where the next chunk starts in the file.
+   */
+  private long position = 0;
+
+  /**
+   * The part of the current chunk's header still to be written, or null
+   * between chunks.
+   */
+  private ByteBuffer header;
+
+  /**
+   * Where the current chunk ends in the file.
+   */
+  private long chunkEnd;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Opens a file to be streamed.
+   *
+   * @param transferID the transfer ID carried by the chunks.
+   * @param path the file.
+   * @exception IOException if the file cannot be opened.
+   */
+  FileTransfer(int transferID, Path path) throws IOException
+  {
+    this.transferID = transferID;
+    this.file = FileChannel.open(path, StandardOpenOption.READ);
+    this.size = file.size();
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the future completed once the whole file has been written.
+   */
+  CompletableFuture<Void> getFuture()
+  {
+    return done;
+  }
+
+  /**
+   * @return true if part of a chunk has been written, so the rest must
+   *  be written before anything else.
+   */
+  boolean isInChunk()
+  {
+    return header != null;
+  }
+
+  /**
+   * @return true once the whole file has been written.
+   */
+  boolean isComplete()
+  {
+    return header == null && position >= size;
+  }
+
+  /**
+   * Writes as much of the current chunk as the target accepts, starting a
+   * new chunk if none is under way. A blocking target takes the whole
+   * chunk.
+   *
+   * @param target the connection's channel, or its socket's stream
+   *  wrapped into a channel.
+   * @return the number of bytes written.
+   * @exception IOException if the file or the target fails.
+   */
+  long writeChunk(WritableByteChannel target) throws IOException
+  {
+    if (header == null)
+    {
+      int length = (int)Math.min(FileChunk.SIZE, size - position);
+      header = BinaryCodec.fileChunkHeader(transferID, position, length);
+      chunkEnd = position + length;
+    }
+
+    long written = 0;
+
+    while (header.hasRemaining())
+    {
+      int n = target.write(header);
+      if (n == 0)
+        return written;
+      written += n;
+    }
+
+    while (position < chunkEnd)
+    {
+      long n = file.transferTo(position, chunkEnd - position, target);
+
+      if (n == 0)
+      {
+        // A file cut short by someone else would otherwise never end
+        if (position >= file.size())
+          throw new EOFException("file shrank during transfer");
+        return written;
+      }
+
+      position += n;
+      written += n;
+    }
+
+    header = null;
+    return written;
+  }
+
+  /**
+   * Closes the file and completes the future, outside of the caller's
+   * locks.
+   *
+   * @param failure why the transfer stopped, or null if it is complete.
+   */
+  void finish(final IOException failure)
+  {
+    try
+    {
+      file.close();
+    }
+    catch (IOException ex) {}
+
+    CompletableFuture.runAsync(new Runnable()
+    {
+      public void run()
+      {
+        if (failure == null)
+          done.complete(null);
+        else
+          done.completeExceptionally(failure);
+      }
+    });
+  }
+}
+// End of FileTransfer Class
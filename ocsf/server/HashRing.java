@@ -0,0 +1,201 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+* A <code> HashRing </code> spreads keys, such as room names and login IDs,
+* over the nodes of a cluster by consistent hashing. Each node is placed at
+* many points of a ring of 64-bit hashes, and a key belongs to the node of
+* the first point at or after the key's hash. When a node is added or
+* removed, only the keys between its points and the previous ones change
+* owner: about one in N of them for N nodes.<p>
+*
+* The ring can be read from any thread without locking; changes, which are
+* rare, build a new ring and hold the lock.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.ClusterNode
+*/
+public final class HashRing
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * The number of points of each node unless told otherwise. Enough for
+   * the nodes' shares of the keys to stay within a few percent of each
+   * other.
+   */
+  public static final int DEFAULT_POINTS = 128;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The number of points of each node.
+   */
+  private final int pointsPerNode;
+
+  /**
+   * The points of the ring.
+   */
+  private volatile Points ring = new Points(new long[0], new String[0]);
+
+  /**
+   * The nodes.
+   */
+  private final TreeSet<String> nodes = new TreeSet<String>();
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs an empty ring with the default number of points per node.
+   */
+  public HashRing()
+  {
+    this(DEFAULT_POINTS);
+  }
+
+  /**
+   * Constructs an empty ring.
+   *
+   * @param pointsPerNode the number of points of each node.
+   */
+  public HashRing(int pointsPerNode)
+  {
+    this.pointsPerNode = Math.max(1, pointsPerNode);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Adds a node.
+   *
+   * @param node the ID of the node.
+   * @return false if the node was already on the ring.
+   */
+  public synchronized boolean add(String node)
+  {
+    if (!nodes.add(node))
+      return false;
+
+    rebuild();
+    return true;
+  }
+
+  /**
+   * Removes a node. Its keys go to the nodes following its points.
+   *
+   * @param node the ID of the node.
+   * @return false if the node was not on the ring.
+   */
+  public synchronized boolean remove(String node)
+  {
+    if (!nodes.remove(node))
+      return false;
+
+    rebuild();
+    return true;
+  }
+
+  /**
+   * Returns the node a key belongs to.
+   *
+   * @param key the key.
+   * @return the ID of the node, or null if the ring is empty.
+   */
+  public String getOwner(String key)
+  {
+    Points ring = this.ring;
+
+    if (ring.hashes.length == 0)
+      return null;
+
+    int i = Arrays.binarySearch(ring.hashes, hash(key));
+    if (i < 0)
+      i = -i - 1;
+
+    return ring.owners[i == ring.hashes.length ? 0 : i];
+  }
+
+  /**
+   * @return a copy of the IDs of the nodes.
+   */
+  public synchronized Set<String> getNodes()
+  {
+    return new TreeSet<String>(nodes);
+  }
+
+  /**
+   * Places the nodes' points anew.
+   */
+  private void rebuild()
+  {
+    TreeMap<Long, String> placed = new TreeMap<Long, String>();
+
+    for (String node : nodes)
+      for (int i = 0; i < pointsPerNode; i++)
+        placed.put(hash(node + "#" + i), node);
+
+    long[] hashes = new long[placed.size()];
+    String[] owners = new String[placed.size()];
+    int i = 0;
+    for (Map.Entry<Long, String> point : placed.entrySet())
+    {
+      hashes[i] = point.getKey();
+      owners[i++] = point.getValue();
+    }
+
+    ring = new Points(hashes, owners);
+  }
+
+// CLASS METHODS ****************************************************
+
+  /**
+   * Hashes a key to 64 bits: FNV-1a over its UTF-8 bytes, then mixed so
+   * that keys differing in their last characters land far apart.
+   *
+   * @param key the key.
+   * @return the hash.
+   */
+  static long hash(String key)
+  {
+    long h = 0xcbf29ce484222325L;
+
+    for (byte b : key.getBytes(StandardCharsets.UTF_8))
+    {
+      h ^= b & 0xFF;
+      h *= 0x100000001b3L;
+    }
+
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * The points of a ring, sorted, and the node of each. Replaced whole when
+   * the nodes change, so readers always see a consistent ring.
+   */
+  private static final class Points
+  {
+    final long[] hashes;
+    final String[] owners;
+
+    Points(long[] hashes, String[] owners)
+    {
+      this.hashes = hashes;
+      this.owners = owners;
+    }
+  }
+}
+// End of HashRing Class
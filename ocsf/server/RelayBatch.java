@@ -0,0 +1,155 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.Serializable;
+
+/**
+* A <code> RelayBatch </code> is what cluster nodes send each other: the
+* messages gathered while the previous batch was being written, so that
+* a busy link sends few large messages rather than many small ones. A
+* batch without messages introduces the node that sent it.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.ClusterNode
+*/
+final class RelayBatch implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The ID of the node that sent the batch, which may have relayed the
+   * messages for others.
+   */
+  final String sender;
+
+  /**
+   * The messages, oldest first.
+   */
+  final Message[] messages;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a batch.
+   *
+   * @param sender the ID of the node sending the batch.
+   * @param messages the messages.
+   */
+  RelayBatch(String sender, Message[] messages)
+  {
+    this.sender = sender;
+    this.messages = messages;
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * A message made on one node for others. It is known by its origin and
+   * its sequence number there, which is how nodes that receive it twice,
+   * by different routes, drop the copy. A message with a target is only
+   * for that node; the others pass it on.
+   */
+  static final class Message implements Serializable
+  {
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * A broadcast to every client, or to the members of a room on every
+     * node. The key is the room, or null.
+     */
+    static final byte BROADCAST = 0;
+
+    /**
+     * A message for a room, sent to the node owning the room. The key is
+     * the room.
+     */
+    static final byte ROOM = 1;
+
+    /**
+     * A message for a room, sent by its owner to a node with members.
+     */
+    static final byte FANOUT = 2;
+
+    /**
+     * Tells the owner of a room that the origin has members in it.
+     */
+    static final byte SUBSCRIBE = 3;
+
+    /**
+     * Tells the owner of a room that the origin has no members left in it.
+     */
+    static final byte UNSUBSCRIBE = 4;
+
+    /**
+     * A message for one client. The key is its login ID.
+     */
+    static final byte USER = 5;
+
+    /**
+     * Tells the owner of a login ID where the client using it is connected:
+     * at the node given as payload, or nowhere if it is null.
+     */
+    static final byte PRESENCE = 6;
+
+    /**
+     * Tells every node that the origin is up. Sent by each node every
+     * second, so that nodes not linked directly know of each other.
+     */
+    static final byte ALIVE = 7;
+
+    /**
+     * The ID of the node the message was made on.
+     */
+    final String origin;
+
+    /**
+     * When the origin node started, telling its sequence numbers apart
+     * from those it used before restarting.
+     */
+    final long incarnation;
+
+    /**
+     * The number of the message among those of its origin.
+     */
+    final long sequence;
+
+    /**
+     * What the message is, one of the constants above.
+     */
+    final byte kind;
+
+    /**
+     * The room or login ID the message is about.
+     */
+    final String key;
+
+    /**
+     * The ID of the only node the message is for, or null for every node.
+     */
+    final String target;
+
+    /**
+     * The message.
+     */
+    final Object payload;
+
+    Message(String origin, long incarnation, long sequence, byte kind,
+      String key, String target, Object payload)
+    {
+      this.origin = origin;
+      this.incarnation = incarnation;
+      this.sequence = sequence;
+      this.kind = kind;
+      this.key = key;
+      this.target = target;
+      this.payload = payload;
+    }
+  }
+}
+// End of RelayBatch Class
@@ -0,0 +1,208 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* A <code> RoomIndex </code> records which connections are members of which
+* rooms, so that a message can be sent to the members of one room without
+* looking at anyone else. A connection may be a member of any number of
+* rooms. Membership can be read from any thread without locking, which is
+* what sending to a room does; changes, which are much rarer, hold the
+* index's lock. A room exists as long as it has members.<p>
+*
+* Connections leave all their rooms when they are removed from the
+* server.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.AbstractServer#sendToRoom
+*/
+public final class RoomIndex
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The connections of the server owning the index.
+   */
+  private final ConnectionRegistry registry;
+
+  /**
+   * The members of each room.
+   */
+  private final ConcurrentHashMap<String, Set<ConnectionToClient>> members =
+    new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+
+  /**
+   * The rooms of each connection that is a member of any.
+   */
+  private final ConcurrentHashMap<ConnectionToClient, Set<String>> rooms =
+    new ConcurrentHashMap<ConnectionToClient, Set<String>>();
+
+  /**
+   * The cluster node told when rooms appear and disappear, or null.
+   */
+  volatile ClusterNode cluster;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs an empty index. Only servers create room indexes.
+   *
+   * @param registry the connections of the server.
+   */
+  RoomIndex(ConnectionRegistry registry)
+  {
+    this.registry = registry;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Makes a connection a member of a room, creating the room if needed.
+   *
+   * @param room the name of the room.
+   * @param client the connection.
+   * @return false if the connection already was a member, or has been
+   *  removed from the server.
+   */
+  public synchronized boolean join(String room, ConnectionToClient client)
+  {
+    // A connection removed from the server would never leave again
+    if (!registry.contains(client))
+      return false;
+
+    Set<ConnectionToClient> set = members.get(room);
+    if (set == null)
+    {
+      set = ConcurrentHashMap.newKeySet();
+      members.put(room, set);
+    }
+    boolean created = set.isEmpty();
+
+    Set<String> joined = rooms.get(client);
+    if (joined == null)
+    {
+      joined = ConcurrentHashMap.newKeySet();
+      rooms.put(client, joined);
+    }
+
+    joined.add(room);
+    boolean added = set.add(client);
+
+    if (created)
+      roomChanged(room);
+    return added;
+  }
+
+  /**
+   * Removes a connection from a room. The room disappears with its last
+   * member.
+   *
+   * @param room the name of the room.
+   * @param client the connection.
+   * @return false if the connection was not a member.
+   */
+  public synchronized boolean leave(String room, ConnectionToClient client)
+  {
+    Set<String> joined = rooms.get(client);
+    if (joined == null || !joined.remove(room))
+      return false;
+
+    if (joined.isEmpty())
+      rooms.remove(client);
+
+    Set<ConnectionToClient> set = members.get(room);
+    set.remove(client);
+
+    if (set.isEmpty())
+    {
+      members.remove(room);
+      roomChanged(room);
+    }
+
+    return true;
+  }
+
+  /**
+   * Removes a connection from all its rooms.
+   *
+   * @param client the connection.
+   */
+  public synchronized void leaveAll(ConnectionToClient client)
+  {
+    Set<String> joined = rooms.remove(client);
+
+    if (joined == null)
+      return;
+
+    for (String room : joined)
+    {
+      Set<ConnectionToClient> set = members.get(room);
+      set.remove(client);
+
+      if (set.isEmpty())
+      {
+        members.remove(room);
+        roomChanged(room);
+      }
+    }
+  }
+
+  /**
+   * Returns the members of a room. The set is live and read-only: it can
+   * be iterated without copying, with the same guarantees as the server's
+   * connection registry.
+   *
+   * @param room the name of the room.
+   * @return the members, empty if there is no such room.
+   */
+  public Set<ConnectionToClient> getMembers(String room)
+  {
+    Set<ConnectionToClient> set = room == null ? null : members.get(room);
+
+    return set == null
+      ? Collections.<ConnectionToClient>emptySet()
+      : Collections.unmodifiableSet(set);
+  }
+
+  /**
+   * Returns the rooms a connection is a member of.
+   *
+   * @param client the connection.
+   * @return a copy of the names of its rooms.
+   */
+  public Set<String> getRooms(ConnectionToClient client)
+  {
+    Set<String> set = rooms.get(client);
+
+    return set == null
+      ? Collections.<String>emptySet()
+      : new TreeSet<String>(set);
+  }
+
+  /**
+   * Returns the names of the rooms that have members.
+   *
+   * @return a copy of the names.
+   */
+  public Set<String> getRoomNames()
+  {
+    return new TreeSet<String>(members.keySet());
+  }
+
+  /**
+   * Tells the cluster node, if any, that a room appeared or disappeared.
+   */
+  private void roomChanged(String room)
+  {
+    ClusterNode node = cluster;
+    if (node != null)
+      node.roomChanged(room);
+  }
+}
+// End of RoomIndex Class
@@ -0,0 +1,349 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+* A <code> SelectorWorker </code> is one of the threads of a server running
+* the <code> NIO_SELECTOR </code> engine. It owns a selector on which a share
+* of the server's client channels are registered, reads the messages those
+* clients send and writes out whatever could not be written immediately by
+* <code> ConnectionToClient.sendToClient</code>. Messages are handled on the
+* worker's thread unless the server dispatches concurrently, in which case
+* they are handed to the server's dispatch threads.<p>
+*
+* When the server has a maximum write delay, output queued on an idle
+* channel is held back, so that more can be gathered into the same write;
+* the worker flushes it once the delay is over.<p>
+*
+* Channels may only be registered and have their interest changed by the
+* worker's own thread, so other threads queue such requests and wake the
+* selector up.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.ServerEngine
+* @see ocsf.server.ConnectionToClient
+*/
+final class SelectorWorker implements Runnable
+{
+  // CONSTANTS *******************************************************
+
+  /**
+   * Size of the buffer each worker reads client channels into.
+   */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The server the connections of this worker belong to.
+   */
+  private final AbstractServer server;
+
+  /**
+   * The selector watching this worker's channels.
+   */
+  private final Selector selector;
+
+  /**
+   * The thread running the selection loop.
+   */
+  private final Thread thread;
+
+  /**
+   * Connections waiting to be registered with the selector.
+   */
+  private final Queue<ConnectionToClient> pendingRegistrations =
+    new ConcurrentLinkedQueue<ConnectionToClient>();
+
+  /**
+   * Connections whose interest set has changed, for instance because they
+   * have output waiting for their channel to drain.
+   */
+  private final Queue<ConnectionToClient> pendingInterestUpdates =
+    new ConcurrentLinkedQueue<ConnectionToClient>();
+
+  /**
+   * Connections whose output is held back, in the order their flushes
+   * are due.
+   */
+  private final Queue<ConnectionToClient> pendingFlushes =
+    new ConcurrentLinkedQueue<ConnectionToClient>();
+
+  /**
+   * The buffer shared by all channels of this worker for reading. Bytes
+   * that do not complete a message are copied out by the connection, so
+   * idle clients hold no buffer of their own.
+   */
+  private final ByteBuffer readBuffer =
+    ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  /**
+   * Indicates if the selection loop should stop.
+   */
+  private volatile boolean readyToStop = false;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs a worker. The worker is not running until
+   * <code>start</code> is called.
+   *
+   * @param server the server owning the connections.
+   * @param name the name given to the worker's thread.
+   * @exception IOException if the selector cannot be opened.
+   */
+  SelectorWorker(AbstractServer server, String name) throws IOException
+  {
+    this.server = server;
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Starts the selection loop.
+   */
+  void start()
+  {
+    thread.start();
+  }
+
+  /**
+   * Asks the selection loop to stop. The selector is closed by the
+   * worker's thread once it has left the loop.
+   */
+  void stop()
+  {
+    readyToStop = true;
+    selector.wakeup();
+
+    // A worker that never ran has nobody to close its selector
+    if (thread.getState() == Thread.State.NEW)
+    {
+      try
+      {
+        selector.close();
+      }
+      catch (IOException ex) {}
+    }
+  }
+
+  /**
+   * Hands a newly accepted connection to this worker.
+   *
+   * @param client the connection to register.
+   */
+  void register(ConnectionToClient client)
+  {
+    pendingRegistrations.add(client);
+    selector.wakeup();
+  }
+
+  /**
+   * Asks for the channel of a connection to be selected for the operations
+   * the connection now wants, such as writing queued output.
+   *
+   * @param client the connection whose interest has changed.
+   */
+  void updateInterest(ConnectionToClient client)
+  {
+    pendingInterestUpdates.add(client);
+    selector.wakeup();
+  }
+
+  /**
+   * Asks for the held back output of a connection to be flushed once it is
+   * due.
+   *
+   * @param client the connection whose output is held back.
+   */
+  void scheduleFlush(ConnectionToClient client)
+  {
+    boolean first = pendingFlushes.isEmpty();
+    pendingFlushes.add(client);
+
+    // Otherwise the selector already wakes up for an earlier flush
+    if (first)
+      selector.wakeup();
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Runs the selection loop. Not to be called.
+   */
+  public void run()
+  {
+    try
+    {
+      while (!readyToStop)
+      {
+        select();
+
+        processRegistrations();
+        processInterestUpdates();
+        processFlushes();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          ConnectionToClient client = (ConnectionToClient)key.attachment();
+          try
+          {
+            if (key.isReadable())
+              client.readFromChannel(readBuffer);
+
+            if (key.isValid() && key.isWritable())
+              client.writeToChannel();
+
+            if (key.isValid())
+              key.interestOps(client.interestOps());
+          }
+          catch (CancelledKeyException ex)
+          {
+            // The connection was closed by another thread
+          }
+          catch (Exception ex)
+          {
+            client.channelFailed(ex);
+          }
+          finally
+          {
+            readBuffer.clear();
+          }
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      server.listeningException(ex);
+    }
+    finally
+    {
+      try
+      {
+        selector.close();
+      }
+      catch (IOException ex) {}
+    }
+  }
+
+// METHODS TO BE USED FROM WITHIN THE WORKER ONLY -------------------
+
+  /**
+   * Waits for a channel to be ready, for a wakeup, or for the next held
+   * back flush to be due.
+   */
+  private void select() throws IOException
+  {
+    ConnectionToClient next = pendingFlushes.peek();
+
+    if (next == null)
+    {
+      selector.select();
+      return;
+    }
+
+    long wait = next.getFlushDeadline() - System.nanoTime();
+
+    // Rounded up, since selecting for 0 milliseconds waits forever
+    if (wait > 0)
+      selector.select((wait + 999999) / 1000000);
+    else
+      selector.selectNow();
+  }
+
+  /**
+   * Flushes the held back output that is due. Flushes are due in the order
+   * they were scheduled, as long as the write delay stays the same.
+   */
+  private void processFlushes()
+  {
+    long now = System.nanoTime();
+    ConnectionToClient client;
+
+    while ((client = pendingFlushes.peek()) != null
+      && client.getFlushDeadline() - now <= 0)
+    {
+      pendingFlushes.poll();
+      SelectionKey key = client.getSelectionKey();
+
+      try
+      {
+        client.writeToChannel();
+
+        if (key != null && key.isValid())
+          key.interestOps(client.interestOps());
+      }
+      catch (CancelledKeyException ex)
+      {
+        // The connection was closed in the meantime
+      }
+      catch (Exception ex)
+      {
+        client.channelFailed(ex);
+      }
+    }
+  }
+
+  /**
+   * Registers the connections handed over since the last selection. The
+   * server is told a client has connected once its codec handshake is
+   * over.
+   */
+  private void processRegistrations()
+  {
+    ConnectionToClient client;
+
+    while ((client = pendingRegistrations.poll()) != null)
+    {
+      try
+      {
+        // The client speaks first, with its codec offer
+        client.setSelectionKey(client.getChannel().register(selector,
+          client.interestOps(), client));
+      }
+      catch (Exception ex)
+      {
+        client.channelFailed(ex);
+      }
+    }
+  }
+
+  /**
+   * Updates the interest set of the connections that asked for it.
+   */
+  private void processInterestUpdates()
+  {
+    ConnectionToClient client;
+
+    while ((client = pendingInterestUpdates.poll()) != null)
+    {
+      SelectionKey key = client.getSelectionKey();
+
+      try
+      {
+        if (key != null)
+          key.interestOps(client.interestOps());
+      }
+      catch (CancelledKeyException ex)
+      {
+        // The connection was closed in the meantime
+      }
+    }
+  }
+}
+// End of SelectorWorker Class
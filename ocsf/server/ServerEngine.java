@@ -0,0 +1,38 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+/**
+* The <code> ServerEngine </code> enumeration lists the ways an
+* <code> AbstractServer </code> can service its client connections.
+* The engine is chosen when the server is constructed and cannot be
+* changed afterwards.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.AbstractServer
+*/
+public enum ServerEngine
+{
+  /**
+   * Each client is serviced by its own <code> ConnectionToClient </code>
+   * thread blocked in a read. This is the original OCSF behaviour.
+   */
+  THREAD_PER_CONNECTION,
+
+  /**
+   * Same programming model as <code> THREAD_PER_CONNECTION</code>, but the
+   * connections are read by JDK virtual threads, which cost a few
+   * kilobytes each instead of a platform stack. Requires JDK 21.
+   */
+  VIRTUAL_THREAD,
+
+  /**
+   * Clients are multiplexed over non-blocking socket channels by a small,
+   * fixed number of selector threads. Idle clients cost no thread at all.
+   */
+  NIO_SELECTOR
+}
+// End of ServerEngine Enum
@@ -0,0 +1,571 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import ocsf.common.LatencyHistogram;
+
+/**
+* A <code> ServerMetrics </code> counts what a server does: messages and
+* bytes in and out, connections, logins, how many clients each broadcast
+* reaches and how deep the outbound queues get. It also times each message
+* on its way through the server: how long it waits to be handled once
+* received, how long handling it takes, and how long output waits in the
+* outbound queues to be written. The connections update it as they work,
+* from any thread, so the counters are striped <code>LongAdder</code>s,
+* the peaks <code>LongAccumulator</code>s and the times
+* <code>LatencyHistogram</code>s: updating them takes no lock and
+* allocates nothing. Figures that describe the present, such as the number of
+* connections or the messages queued, are only computed when a
+* <code>Snapshot</code> is taken.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.AbstractServer#getMetrics
+*/
+public final class ServerMetrics
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The server counted.
+   */
+  private final AbstractServer server;
+
+  /**
+   * When counting started, in milliseconds since the epoch.
+   */
+  private final long startTime = System.currentTimeMillis();
+
+  /**
+   * The number of messages received from clients.
+   */
+  private final LongAdder messagesIn = new LongAdder();
+
+  /**
+   * The number of bytes read from clients.
+   */
+  private final LongAdder bytesIn = new LongAdder();
+
+  /**
+   * The number of messages queued for clients.
+   */
+  private final LongAdder messagesOut = new LongAdder();
+
+  /**
+   * The number of bytes written to clients.
+   */
+  private final LongAdder bytesOut = new LongAdder();
+
+  /**
+   * The number of write calls made to client sockets and channels.
+   */
+  private final LongAdder writeCalls = new LongAdder();
+
+  /**
+   * The number of connections accepted.
+   */
+  private final LongAdder connectionsOpened = new LongAdder();
+
+  /**
+   * The number of connections removed.
+   */
+  private final LongAdder connectionsClosed = new LongAdder();
+
+  /**
+   * The number of login IDs claimed.
+   */
+  private final LongAdder logins = new LongAdder();
+
+  /**
+   * The number of messages sent to all clients or to a room.
+   */
+  private final LongAdder broadcasts = new LongAdder();
+
+  /**
+   * The number of clients those messages were queued for.
+   */
+  private final LongAdder recipients = new LongAdder();
+
+  /**
+   * The most clients one of those messages was queued for.
+   */
+  private final LongAccumulator maxFanOut =
+    new LongAccumulator(Math::max, 0);
+
+  /**
+   * The deepest any outbound queue has been.
+   */
+  private final LongAccumulator peakQueueDepth =
+    new LongAccumulator(Math::max, 0);
+
+  /**
+   * How long messages wait, from being read to being handled.
+   */
+  private final LatencyHistogram dispatchWait = new LatencyHistogram();
+
+  /**
+   * How long handling messages takes.
+   */
+  private final LatencyHistogram handleTime = new LatencyHistogram();
+
+  /**
+   * How long output waits in the outbound queues to be written.
+   */
+  private final LatencyHistogram writeWait = new LatencyHistogram();
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Constructs the metrics of a server. Only servers create them.
+   *
+   * @param server the server counted.
+   */
+  ServerMetrics(AbstractServer server)
+  {
+    this.server = server;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Takes a snapshot of the counters, along with the number of
+   * connections and sessions and the depth of the outbound queues, which
+   * are read from every connection.
+   *
+   * @return the snapshot.
+   */
+  public Snapshot snapshot()
+  {
+    return new Snapshot(this);
+  }
+
+  /**
+   * @return when counting started, in milliseconds since the epoch.
+   */
+  public long getStartTime()
+  {
+    return startTime;
+  }
+
+  /**
+   * @return the number of messages received from clients and handled.
+   */
+  public long getMessagesReceived()
+  {
+    return messagesIn.sum();
+  }
+
+  /**
+   * @return the number of bytes read from clients.
+   */
+  public long getBytesReceived()
+  {
+    return bytesIn.sum();
+  }
+
+  /**
+   * @return the number of messages queued for clients, file chunks
+   *  included.
+   */
+  public long getMessagesSent()
+  {
+    return messagesOut.sum();
+  }
+
+  /**
+   * @return the number of bytes written to clients.
+   */
+  public long getBytesWritten()
+  {
+    return bytesOut.sum();
+  }
+
+  /**
+   * @return the number of write calls made to client sockets and
+   *  channels.
+   */
+  public long getWriteCount()
+  {
+    return writeCalls.sum();
+  }
+
+  /**
+   * @return the number of connections accepted.
+   */
+  public long getConnectionsOpened()
+  {
+    return connectionsOpened.sum();
+  }
+
+  /**
+   * @return the number of connections removed.
+   */
+  public long getConnectionsClosed()
+  {
+    return connectionsClosed.sum();
+  }
+
+  /**
+   * @return the number of login IDs claimed through the connection
+   *  registry.
+   */
+  public long getLoginCount()
+  {
+    return logins.sum();
+  }
+
+  /**
+   * @return the number of messages sent to all clients or to a room,
+   *  those relayed from other cluster nodes included.
+   */
+  public long getBroadcastCount()
+  {
+    return broadcasts.sum();
+  }
+
+  /**
+   * @return the number of clients those messages were queued for.
+   */
+  public long getBroadcastRecipients()
+  {
+    return recipients.sum();
+  }
+
+  /**
+   * @return the most clients one broadcast was queued for.
+   */
+  public long getMaxFanOut()
+  {
+    return maxFanOut.get();
+  }
+
+  /**
+   * @return the deepest any outbound queue has been.
+   */
+  public long getPeakQueueDepth()
+  {
+    return peakQueueDepth.get();
+  }
+
+  /**
+   * Returns how long messages from clients wait, from being read to being
+   * handled: behind other messages of the same client, for a dispatch
+   * thread, or for the server's lock.
+   *
+   * @return the live histogram, in nanoseconds.
+   */
+  public LatencyHistogram getDispatchWait()
+  {
+    return dispatchWait;
+  }
+
+  /**
+   * Returns how long handling messages from clients takes.
+   *
+   * @return the live histogram, in nanoseconds.
+   */
+  public LatencyHistogram getHandleTime()
+  {
+    return handleTime;
+  }
+
+  /**
+   * Returns how long output waits in the outbound queues. Each write call
+   * counts once, for the oldest message it writes; when a queue never
+   * empties, the wait of a message still queued after a write is counted
+   * from the start of that write.
+   *
+   * @return the live histogram, in nanoseconds.
+   */
+  public LatencyHistogram getWriteWait()
+  {
+    return writeWait;
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Counts bytes read from a client.
+   *
+   * @param bytes the number of bytes.
+   */
+  void bytesRead(long bytes)
+  {
+    if (bytes > 0)
+      bytesIn.add(bytes);
+  }
+
+  /**
+   * Counts a message queued for a client.
+   *
+   * @param depth the depth of its outbound queue afterwards.
+   */
+  void messageQueued(int depth)
+  {
+    messagesOut.increment();
+    peakQueueDepth.accumulate(depth);
+  }
+
+  /**
+   * Counts a write call made to a client.
+   *
+   * @param bytes the number of bytes written.
+   */
+  void written(long bytes)
+  {
+    writeCalls.increment();
+    bytesOut.add(bytes);
+  }
+
+  /**
+   * Counts a connection accepted.
+   */
+  void connectionOpened()
+  {
+    connectionsOpened.increment();
+  }
+
+  /**
+   * Counts a connection removed.
+   */
+  void connectionClosed()
+  {
+    connectionsClosed.increment();
+  }
+
+  /**
+   * Counts a login ID claimed.
+   */
+  void loggedIn()
+  {
+    logins.increment();
+  }
+
+  /**
+   * Counts a message sent to a group of clients.
+   *
+   * @param count the number of clients it was queued for.
+   */
+  void broadcast(int count)
+  {
+    broadcasts.increment();
+    recipients.add(count);
+    maxFanOut.accumulate(count);
+  }
+
+  /**
+   * Counts a message from a client, once handled.
+   *
+   * @param waited how long it waited to be handled once read.
+   * @param handled how long handling it took.
+   */
+  void dispatched(long waited, long handled)
+  {
+    messagesIn.increment();
+    dispatchWait.record(waited);
+    handleTime.record(handled);
+  }
+
+  /**
+   * Times a write call made to a client.
+   *
+   * @param waited how long the oldest message written was queued.
+   */
+  void outputWaited(long waited)
+  {
+    writeWait.record(waited);
+  }
+
+  // INNER CLASSES ---------------------------------------------------
+
+  /**
+   * The figures of a server at one point in time. Formatted against an
+   * earlier snapshot, the counters are also given as rates over the time
+   * in between.
+   */
+  public static final class Snapshot
+  {
+    private final long time;
+    private final long startTime;
+    private final long messagesIn;
+    private final long bytesIn;
+    private final long messagesOut;
+    private final long bytesOut;
+    private final long writeCalls;
+    private final long connectionsOpened;
+    private final long connectionsClosed;
+    private final long logins;
+    private final long broadcasts;
+    private final long recipients;
+    private final long maxFanOut;
+    private final long peakQueueDepth;
+    private final LatencyHistogram dispatchWait;
+    private final LatencyHistogram handleTime;
+    private final LatencyHistogram writeWait;
+    private final int connections;
+    private final int sessions;
+    private final long resumedSessions;
+    private final long queued;
+    private final int deepestQueue;
+
+    /**
+     * Reads the figures of a server.
+     *
+     * @param metrics the metrics of the server.
+     */
+    private Snapshot(ServerMetrics metrics)
+    {
+      time = System.currentTimeMillis();
+      startTime = metrics.startTime;
+      messagesIn = metrics.getMessagesReceived();
+      bytesIn = metrics.getBytesReceived();
+      messagesOut = metrics.getMessagesSent();
+      bytesOut = metrics.getBytesWritten();
+      writeCalls = metrics.getWriteCount();
+      connectionsOpened = metrics.getConnectionsOpened();
+      connectionsClosed = metrics.getConnectionsClosed();
+      logins = metrics.getLoginCount();
+      broadcasts = metrics.getBroadcastCount();
+      recipients = metrics.getBroadcastRecipients();
+      maxFanOut = metrics.getMaxFanOut();
+      peakQueueDepth = metrics.getPeakQueueDepth();
+      dispatchWait = metrics.dispatchWait.copy();
+      handleTime = metrics.handleTime.copy();
+      writeWait = metrics.writeWait.copy();
+
+      AbstractServer server = metrics.server;
+      connections = server.getNumberOfClients();
+      sessions = server.getSessionCount();
+      resumedSessions = server.getResumedSessionCount();
+
+      long total = 0;
+      int deepest = 0;
+      for (ConnectionToClient client : server.getConnectionRegistry())
+      {
+        int depth = client.getOutboundQueueDepth();
+        total += depth;
+        deepest = Math.max(deepest, depth);
+      }
+      queued = total;
+      deepestQueue = deepest;
+    }
+
+    /**
+     * @return when the snapshot was taken, in milliseconds since the
+     *  epoch.
+     */
+    public long getTime()
+    {
+      return time;
+    }
+
+    /**
+     * @return the number of connections when the snapshot was taken.
+     */
+    public int getConnectionCount()
+    {
+      return connections;
+    }
+
+    /**
+     * @return the number of messages queued for all clients when the
+     *  snapshot was taken.
+     */
+    public long getQueuedMessageCount()
+    {
+      return queued;
+    }
+
+    /**
+     * Formats the snapshot as lines of text, giving the counters as rates
+     * over the time since an earlier snapshot, or since counting started.
+     *
+     * @param previous the earlier snapshot, or null.
+     * @return the text, one line per subject.
+     */
+    public String format(Snapshot previous)
+    {
+      if (previous != null && previous.time >= time)
+        previous = null;
+
+      double seconds = Math.max(1, time
+        - (previous == null ? startTime : previous.time)) / 1000.0;
+
+      long sent = broadcasts - (previous == null ? 0 : previous.broadcasts);
+      long reached = recipients - (previous == null ? 0 : previous.recipients);
+
+      StringBuilder text = new StringBuilder();
+      text.append(String.format(Locale.ROOT,
+        "Statistics at %tF %<tT, up %s, rates over the last %.1f s%n",
+        new Date(time), duration(time - startTime), seconds));
+      text.append(String.format(Locale.ROOT,
+        "Connections: %d open, %d opened (%.1f/s), %d closed, %d logins (%.1f/s)%n",
+        connections, connectionsOpened,
+        rate(connectionsOpened, previous == null ? 0 : previous.connectionsOpened, seconds),
+        connectionsClosed, logins,
+        rate(logins, previous == null ? 0 : previous.logins, seconds)));
+      text.append(String.format(Locale.ROOT,
+        "Messages: %d in (%.1f/s), %d out (%.1f/s)%n",
+        messagesIn, rate(messagesIn, previous == null ? 0 : previous.messagesIn, seconds),
+        messagesOut, rate(messagesOut, previous == null ? 0 : previous.messagesOut, seconds)));
+      text.append(String.format(Locale.ROOT,
+        "Bytes: %d in (%.1f/s), %d out (%.1f/s) in %d writes%n",
+        bytesIn, rate(bytesIn, previous == null ? 0 : previous.bytesIn, seconds),
+        bytesOut, rate(bytesOut, previous == null ? 0 : previous.bytesOut, seconds),
+        writeCalls));
+      text.append(String.format(Locale.ROOT,
+        "Broadcasts: %d (%.1f/s), %.1f recipients each, %d at most%n",
+        broadcasts, rate(broadcasts, previous == null ? 0 : previous.broadcasts, seconds),
+        sent == 0 ? 0.0 : (double)reached / sent, maxFanOut));
+      text.append(String.format(Locale.ROOT,
+        "Outbound queues: %d messages, %d in the deepest, %d at the peak%n",
+        queued, deepestQueue, peakQueueDepth));
+      text.append(String.format(Locale.ROOT, "Waiting to be handled: %s%n",
+        dispatchWait.since(previous == null ? null : previous.dispatchWait)));
+      text.append(String.format(Locale.ROOT, "Handling: %s%n",
+        handleTime.since(previous == null ? null : previous.handleTime)));
+      text.append(String.format(Locale.ROOT, "Waiting to be written: %s%n",
+        writeWait.since(previous == null ? null : previous.writeWait)));
+      text.append(String.format(Locale.ROOT,
+        "Sessions: %d open, %d resumed%n", sessions, resumedSessions));
+
+      return text.toString();
+    }
+
+    /**
+     * Formats the snapshot with the rates since counting started.
+     *
+     * @return the text.
+     */
+    public String toString()
+    {
+      return format(null);
+    }
+
+    /**
+     * @return how fast a counter went from one value to another.
+     */
+    private static double rate(long value, long previous, double seconds)
+    {
+      return (value - previous) / seconds;
+    }
+
+    /**
+     * @return a duration as hours, minutes and seconds.
+     */
+    private static String duration(long millis)
+    {
+      long seconds = millis / 1000;
+      return String.format(Locale.ROOT, "%d:%02d:%02d",
+        seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+  }
+}
+// End of ServerMetrics Class
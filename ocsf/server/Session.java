@@ -0,0 +1,262 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.security.SecureRandom;
+
+/**
+* A <code> Session </code> lets a client that lost its connection take up
+* where it left off on a new one. The messages sent to the client are
+* numbered in the order they are queued, from 0 for the first message of
+* the connection the session was opened on; the client numbers them the
+* same way as it receives them, so the numbers need not travel with the
+* messages. The session keeps the last messages sent in a ring, so a
+* client that comes back with the token of its session and the number of
+* messages it received is sent only the ones it missed.<p>
+*
+* File chunks are not numbered: a file being received is lost with the
+* connection anyway. Nor can a session be resumed once the
+* <code>DROP_OLDEST</code> policy has dropped any of its messages, since
+* the client's numbers then no longer match.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.AbstractServer#openSession
+* @see ocsf.server.AbstractServer#resumeSession
+*/
+public final class Session
+{
+  // CLASS VARIABLES *************************************************
+
+  /**
+   * The source of the tokens.
+   */
+  private static final SecureRandom random = new SecureRandom();
+
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The token the client shows to resume the session.
+   */
+  private final String token;
+
+  /**
+   * The last messages sent, each at its number modulo the length.
+   */
+  private final Object[] ring;
+
+  /**
+   * The number of the next message.
+   */
+  private long sequence;
+
+  /**
+   * The number of the first message kept.
+   */
+  private final long firstSequence;
+
+  /**
+   * The connection the session is on.
+   */
+  private ConnectionToClient connection;
+
+  /**
+   * Indicates if the connection was lost and the session waits for the
+   * client to come back.
+   */
+  private boolean waiting;
+
+  /**
+   * Indicates if the session is over.
+   */
+  private boolean closed;
+
+  /**
+   * Indicates if messages of the session were dropped.
+   */
+  private boolean lossy;
+
+  /**
+   * The exception that ended the connection, if any.
+   */
+  private Throwable cause;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Opens a session on a connection. Only servers open sessions.
+   *
+   * @param connection the connection.
+   * @param sequence the number of messages already sent on it.
+   * @param capacity the number of messages kept.
+   */
+  Session(ConnectionToClient connection, long sequence, int capacity)
+  {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+
+    StringBuilder hex = new StringBuilder(32);
+    for (byte b : bytes)
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+        .append(Character.forDigit(b & 0xF, 16));
+
+    this.token = hex.toString();
+    this.connection = connection;
+    this.sequence = sequence;
+    this.firstSequence = sequence;
+    this.ring = new Object[Math.max(1, capacity)];
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the token the client shows to resume the session.
+   */
+  public String getToken()
+  {
+    return token;
+  }
+
+  /**
+   * @return the number of messages sent in the session.
+   */
+  public synchronized long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * @return the most messages a client can miss and still resume.
+   */
+  public int getCapacity()
+  {
+    return ring.length;
+  }
+
+  /**
+   * @return true if the connection was lost and the session waits for the
+   *  client to come back.
+   */
+  public synchronized boolean isWaiting()
+  {
+    return waiting;
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * @return the connection the session is on, or null once it is over.
+   */
+  synchronized ConnectionToClient getConnection()
+  {
+    return closed ? null : connection;
+  }
+
+  /**
+   * Keeps a message queued for a connection, if the session is on it.
+   *
+   * @param from the connection.
+   * @param msg the message.
+   */
+  synchronized void record(ConnectionToClient from, Object msg)
+  {
+    if (from != connection || closed)
+      return;
+
+    ring[(int)(sequence % ring.length)] = msg;
+    sequence++;
+  }
+
+  /**
+   * Notes that a message of the session was dropped.
+   */
+  synchronized void markLossy()
+  {
+    lossy = true;
+  }
+
+  /**
+   * Makes the session wait for its client, whose connection was lost.
+   *
+   * @param from the lost connection.
+   * @return true if the session started waiting; false if it already
+   *  was, or is not on the connection.
+   */
+  synchronized boolean startWaiting(ConnectionToClient from)
+  {
+    if (from != connection || closed || waiting)
+      return false;
+
+    waiting = true;
+    return true;
+  }
+
+  /**
+   * @param from a connection.
+   * @return true if the session waits for the client of the connection.
+   */
+  synchronized boolean waitsFor(ConnectionToClient from)
+  {
+    return from == connection && waiting && !closed;
+  }
+
+  /**
+   * @return the exception that ended the connection, if any.
+   */
+  synchronized Throwable getCause()
+  {
+    return cause;
+  }
+
+  /**
+   * @param cause the exception that ended the connection.
+   */
+  synchronized void setCause(Throwable cause)
+  {
+    if (this.cause == null)
+      this.cause = cause;
+  }
+
+  /**
+   * Moves the session to a new connection, if the client has missed no
+   * more messages than are kept.
+   *
+   * @param to the new connection.
+   * @param received the number of messages the client received.
+   * @return the messages it missed, oldest first, or null if the session
+   *  cannot be resumed.
+   */
+  synchronized Object[] moveTo(ConnectionToClient to, long received)
+  {
+    if (closed || lossy || received < firstSequence || received > sequence
+      || sequence - received > ring.length)
+      return null;
+
+    Object[] missed = new Object[(int)(sequence - received)];
+    for (int i = 0; i < missed.length; i++)
+      missed[i] = ring[(int)((received + i) % ring.length)];
+
+    connection = to;
+    waiting = false;
+    cause = null;
+    return missed;
+  }
+
+  /**
+   * Ends the session if it is on a connection.
+   *
+   * @param from the connection.
+   * @return true if the session ended.
+   */
+  synchronized boolean close(ConnectionToClient from)
+  {
+    if (from != connection || closed)
+      return false;
+
+    closed = true;
+    return true;
+  }
+}
+// End of Session Class
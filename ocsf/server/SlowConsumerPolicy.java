@@ -0,0 +1,43 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+/**
+* The <code> SlowConsumerPolicy </code> enumeration lists what a server does
+* when a message is sent to a client whose outbound queue has reached its
+* high-water mark, i.e. the server's outbound queue capacity.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.AbstractServer#setSlowConsumerPolicy
+*/
+public enum SlowConsumerPolicy
+{
+  /**
+   * The new message is refused: <code> sendToClient </code> throws an
+   * <code> IOException </code> and the client never sees the message.
+   */
+  REJECT,
+
+  /**
+   * The oldest message not yet being written is discarded to make room
+   * for the new one, so the client skips ahead to recent traffic.
+   */
+  DROP_OLDEST,
+
+  /**
+   * The client is disconnected through
+   * <code> ConnectionToClient.close()</code>.
+   */
+  DISCONNECT,
+
+  /**
+   * Messages past the high-water mark are appended to a memory-mapped
+   * spill file and moved back into the queue, in order, as the client
+   * catches up. The client is disconnected if the spill file fills up.
+   */
+  SPILL_TO_DISK
+}
+// End of SlowConsumerPolicy Enum
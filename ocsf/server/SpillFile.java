@@ -0,0 +1,159 @@
+// This file contains material supporting section 3.8 of the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package ocsf.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+* A <code> SpillFile </code> holds the serialized messages that did not fit
+* in the outbound queue of a slow client when the server runs the
+* <code> SPILL_TO_DISK </code> policy. Messages are appended to, and read
+* back from, a temporary file mapped into memory, so the overflow lives in
+* the page cache instead of the heap. Each message is stored as its length
+* followed by its bytes.<p>
+*
+* A spill file is only used while holding the lock on the queue of its
+* connection, and is deleted when the connection is closed.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see ocsf.server.SlowConsumerPolicy
+*/
+final class SpillFile
+{
+  // INSTANCE VARIABLES **********************************************
+
+  /**
+   * The temporary file.
+   */
+  private final File file;
+
+  /**
+   * The channel the file was mapped through.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The mapping of the whole file.
+   */
+  private final MappedByteBuffer map;
+
+  /**
+   * Where the next message will be appended.
+   */
+  private int writePosition = 0;
+
+  /**
+   * Where the next message will be read from.
+   */
+  private int readPosition = 0;
+
+  /**
+   * The number of messages in the file.
+   */
+  private int messages = 0;
+
+// CONSTRUCTOR ******************************************************
+
+  /**
+   * Creates and maps a temporary spill file.
+   *
+   * @param capacity the size of the file in bytes.
+   * @exception IOException if the file cannot be created or mapped.
+   */
+  SpillFile(int capacity) throws IOException
+  {
+    file = File.createTempFile("ocsf-spill-", ".bin");
+    file.deleteOnExit();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      channel = raf.getChannel();
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+    catch (IOException ex)
+    {
+      raf.close();
+      file.delete();
+      throw ex;
+    }
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Appends a message.
+   *
+   * @param frame the serialized message; its position is not changed.
+   * @return false if the file has no room left for the message.
+   */
+  boolean append(ByteBuffer frame)
+  {
+    int length = frame.remaining();
+
+    if (length > map.capacity() - writePosition - 4)
+      return false;
+
+    map.putInt(writePosition, length);
+    map.position(writePosition + 4);
+    map.put(frame.duplicate());
+
+    writePosition += 4 + length;
+    messages++;
+    return true;
+  }
+
+  /**
+   * Removes the oldest message. Once the file is empty, it is written from
+   * the start again.
+   *
+   * @return the message copied to the heap, or null if the file is empty.
+   */
+  ByteBuffer next()
+  {
+    if (messages == 0)
+      return null;
+
+    int length = map.getInt(readPosition);
+    byte[] bytes = new byte[length];
+
+    map.position(readPosition + 4);
+    map.get(bytes);
+
+    readPosition += 4 + length;
+    if (--messages == 0)
+      readPosition = writePosition = 0;
+
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /**
+   * @return the number of messages in the file.
+   */
+  int size()
+  {
+    return messages;
+  }
+
+  /**
+   * Closes and deletes the file. Its mapping is released once it is
+   * garbage collected.
+   */
+  void close()
+  {
+    try
+    {
+      channel.close();
+    }
+    catch (IOException ex) {}
+
+    file.delete();
+  }
+}
+// End of SpillFile Class